@@ -26,6 +26,8 @@ public class Entry implements PluginEntry {
             databaseBuilder.registerEntity(TrackFile.class);
             databaseBuilder.registerEntity(Tag.class);
             databaseBuilder.registerEntity(TrackTag.class);
+            databaseBuilder.registerEntity(TrackMetadata.class);
+            databaseBuilder.registerEntity(TrackAlias.class);
         });
 
         Plugin audioPlugin = builder.requirePlugin(ManifestIdentifier.fromString("io.manebot.plugin:audio"));
@@ -32,6 +32,9 @@ import io.manebot.plugin.audio.player.TransitionedAudioPlayer;
 import io.manebot.plugin.audio.resample.*;
 import io.manebot.plugin.music.api.DefaultMusicRegistration;
 import io.manebot.plugin.music.api.MusicRegistration;
+import io.manebot.plugin.music.channel.ChannelState;
+import io.manebot.plugin.music.channel.ChannelStateRegistry;
+import io.manebot.plugin.music.channel.PrefetchedTrack;
 import io.manebot.plugin.music.config.*;
 import io.manebot.plugin.music.config.AudioFormat;
 import io.manebot.plugin.music.database.model.*;
@@ -41,6 +44,7 @@ import io.manebot.plugin.music.playlist.*;
 import io.manebot.plugin.music.repository.FileRepository;
 import io.manebot.plugin.music.repository.NullRepository;
 import io.manebot.plugin.music.repository.Repository;
+import io.manebot.plugin.music.scheduler.JobScheduler;
 import io.manebot.plugin.music.source.*;
 import io.manebot.security.Permission;
 import io.manebot.tuple.Pair;
@@ -62,6 +66,7 @@ import java.util.stream.StreamSupport;
 
 public class Music implements PluginReference, EventListener {
     private static final int transcodeBufferSize = 32768;
+    private static final double teeBufferSeconds = 30D;
 
     private final Plugin plugin;
     private final Database database;
@@ -73,11 +78,23 @@ public class Music implements PluginReference, EventListener {
     private final ResamplerFactory resamplerFactory = new FFmpegResampler.FFmpegResamplerFactory();
 
     private final Map<Plugin, MusicRegistration> registrations = new LinkedHashMap<>();
-    private final Map<AudioChannel, Play> playingTracks = new LinkedHashMap<>();
-    private final Map<AudioChannel, Playlist> playlists = new LinkedHashMap<>();
-    private final Map<AudioChannel, BlockingQueue<Pair<UserAssociation, Track>>> queues = new LinkedHashMap<>();
-
-    private final ExecutorService cacheExecutor;
+    private final ChannelStateRegistry channelStates;
+
+    private final JobScheduler scheduler;
+    private final boolean cacheEnabled;
+    private final int queueLookahead;
+    private final double prerollSeconds;
+    private final double cacheAbandonThreshold;
+    private final ExecutorService transitionExecutor;
+    private final ExecutorService resolveExecutor;
+    private final ExecutorService openExecutor;
+    private final ExecutorService resampleExecutor;
+    private final ExecutorService findExecutor;
+    private final TrackSourceDispatcher trackSources;
+    private final YoutubeDLResolverPool resolverPool;
+    private final RangedFetcher rangedFetcher;
+    private final TrackImporter trackImporter;
+    private final ScheduledExecutorService maintenanceExecutor;
     private final Map<Track, Future<Repository.Resource>> downloads = new LinkedHashMap<>();
 
     public Music(Plugin plugin, Database database, MusicManager manager, Audio audio) {
@@ -87,22 +104,155 @@ public class Music implements PluginReference, EventListener {
         this.localTrackSource = new DatabaseTrackSource(this);
         this.audio = audio;
 
+        // concurrentDownloads bounds transcodes (-1: one per processor, 0: disable caching)
         int concurrentDownloads = Integer.parseInt(plugin.getProperty("concurrentDownloads", "-1"));
-        if (concurrentDownloads > 0)
-            this.cacheExecutor = Executors.newFixedThreadPool(concurrentDownloads, new ThreadFactoryBuilder().setPriority(Thread.MIN_PRIORITY).build());
-        else if (concurrentDownloads == -1)
-            this.cacheExecutor = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setPriority(Thread.MIN_PRIORITY).build());
-        else
-            this.cacheExecutor = null;
+        int concurrentFetches = Integer.parseInt(plugin.getProperty("concurrentFetches", "8"));
+        // Transcodes fed by a playing track, one per cold play; they must start within the tee's window
+        int concurrentTees = Integer.parseInt(plugin.getProperty("concurrentTees", "256"));
+        long jobAging = TimeUnit.SECONDS.toMillis(Long.parseLong(plugin.getProperty("jobAgingSeconds", "10")));
+
+        this.cacheEnabled = concurrentDownloads != 0;
+        this.scheduler = new JobScheduler(
+                concurrentFetches,
+                concurrentDownloads > 0 ? concurrentDownloads : Runtime.getRuntime().availableProcessors(),
+                concurrentTees,
+                jobAging
+        );
+
+        // Playback transitions are serialized per channel, borrowing threads from this pool only while they run
+        this.transitionExecutor = Executors.newCachedThreadPool(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("music-channel-%d").build()
+        );
+        this.channelStates = new ChannelStateRegistry(transitionExecutor);
+
+        // Stages of playAsync(); attaching to the channel happens on the channel's own executor
+        this.resolveExecutor = Executors.newFixedThreadPool(
+                Integer.parseInt(plugin.getProperty("concurrentResolves", "8")),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("music-resolve-%d").build()
+        );
+        this.openExecutor = Executors.newCachedThreadPool(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("music-open-%d").build()
+        );
+        this.resampleExecutor = Executors.newFixedThreadPool(
+                Runtime.getRuntime().availableProcessors(),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("music-resample-%d").build()
+        );
+
+        // Number of entries at the head of each channel's queue to open ahead of time
+        this.queueLookahead = Integer.parseInt(plugin.getProperty("queueLookahead", "2"));
+
+        // Seconds before a playlist track's fade-out to open the track that follows it
+        this.prerollSeconds = Double.parseDouble(plugin.getProperty("prerollSeconds", "15"));
+
+        // Fraction of a track a stopped play must have reached for its cache transcode to be worth finishing
+        this.cacheAbandonThreshold = Double.parseDouble(plugin.getProperty("cacheAbandonThreshold", "0.5"));
+
+        // Periodically drop the state of channels nothing has happened on for a while
+        long channelIdleTimeout = TimeUnit.SECONDS.toMillis(
+                Long.parseLong(plugin.getProperty("channelIdleTimeout", "300"))
+        );
+        this.maintenanceExecutor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setPriority(Thread.MIN_PRIORITY).build()
+        );
+        this.maintenanceExecutor.scheduleWithFixedDelay(
+                () -> channelStates.evictIdle(channelIdleTimeout),
+                channelIdleTimeout, channelIdleTimeout, TimeUnit.MILLISECONDS
+        );
+
+        // Persisted track source metadata is useless once expired; keep the table from growing forever
+        this.maintenanceExecutor.scheduleWithFixedDelay(() -> {
+            try {
+                musicManager.deleteExpiredTrackMetadata(System.currentTimeMillis());
+            } catch (RuntimeException e) {
+                plugin.getLogger().log(Level.WARNING, "Problem deleting expired track metadata", e);
+            }
+        }, 1L, 1L, TimeUnit.HOURS);
+
+        // Remote lookups run on every eligible track source at once
+        this.findExecutor = Executors.newCachedThreadPool(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("music-find-%d").build()
+        );
+        this.trackSources = new TrackSourceDispatcher(
+                findExecutor,
+                TimeUnit.SECONDS.toMillis(Long.parseLong(plugin.getProperty("findDeadline", "35")))
+        );
+
+        // Playlist imports share the find pool, but only run a few lookups at a time each
+        this.trackImporter = new TrackImporter(
+                trackSources,
+                findExecutor,
+                Integer.parseInt(plugin.getProperty("importConcurrency", "4")),
+                Integer.parseInt(plugin.getProperty("importBatchSize", "100"))
+        );
+
+        // Resident youtube-dl processes, so lookups don't pay for interpreter start-up
+        this.resolverPool = new YoutubeDLResolverPool(
+                plugin.getProperty("python", "python3"),
+                Integer.parseInt(plugin.getProperty("resolverWorkers", "4")),
+                Integer.parseInt(plugin.getProperty("resolverMaxRequests", "100")),
+                TimeUnit.SECONDS.toMillis(Long.parseLong(plugin.getProperty("resolverHealthCheck", "60")))
+        );
+
+        int fetchBufferSize = Integer.parseInt(plugin.getProperty("fetchBufferSize", Integer.toString(64 * 1024)));
+
+        // Downloads fetch a few ranges ahead at once, since hosts tend to throttle each connection
+        this.rangedFetcher = new RangedFetcher(
+                Integer.parseInt(plugin.getProperty("readAhead", "2")),
+                // Dropped connections pick up again from the byte they got to
+                new RetryPolicy(
+                        Integer.parseInt(plugin.getProperty("fetchAttempts", "5")),
+                        Long.parseLong(plugin.getProperty("fetchRetryDelayMillis", "500")),
+                        Long.parseLong(plugin.getProperty("fetchRetryDelayMaxMillis", "8000"))
+                ),
+                // Ranges are sized to what each host delivers, between these bounds
+                Integer.parseInt(plugin.getProperty("fetchMinChunkSize", Integer.toString(256 * 1024))),
+                Integer.parseInt(plugin.getProperty("fetchMaxChunkSize", Integer.toString(16 * 1024 * 1024))),
+                Long.parseLong(plugin.getProperty("fetchRangeMillis", "2000")),
+                // Ranges are read through small pooled buffers, however big the ranges are
+                new BufferPool(
+                        fetchBufferSize,
+                        Integer.parseInt(plugin.getProperty("fetchBufferPoolSize", Integer.toString(64 * 1024 * 1024)))
+                                / fetchBufferSize
+                )
+        );
 
         // Default implementation
         createRegistration(plugin, builder -> {
             builder.registerRepository(FileRepository.class, FileRepository::new);
             builder.registerRepository(NullRepository.class, NullRepository::new);
-            builder.registerTrackSource(new YoutubeDLTrackSource(
+            builder.registerTrackSource(new YoutubeDLTrackSource.Builder(
                     plugin.getProperty("youtube-dl", "youtube-dl"),
                     Integer.parseInt(plugin.getProperty("timeout", "30"))
-            ));
+            )
+                    .setMetadataCache(
+                            new MetadataCache(
+                                    musicManager,
+                                    "youtube-dl",
+                                    Integer.parseInt(plugin.getProperty("metadataCacheSize", "1024"))
+                            ),
+                            Long.parseLong(plugin.getProperty("metadataTtl", "3600"))
+                    )
+                    .setResolverPool(resolverPool)
+                    .setFormatPolicy(new DefaultFormatPolicy())
+                    // Formats are chosen before the channel is known; this is what its mixer is expected to run at
+                    .setPlaybackFormat(new AudioFormat(
+                            Integer.parseInt(plugin.getProperty("playbackSampleRate", "48000")),
+                            Integer.parseInt(plugin.getProperty("playbackChannels", "2"))
+                    ))
+                    // Recently failed URLs, and sites failing outright, are refused instead of retried
+                    .setFailureCache(new FailureCache(
+                            Integer.parseInt(plugin.getProperty("failureCacheSize", "1024")),
+                            TimeUnit.SECONDS.toMillis(Long.parseLong(plugin.getProperty("failureBackoff", "30"))),
+                            TimeUnit.SECONDS.toMillis(Long.parseLong(plugin.getProperty("failureBackoffMax", "3600"))),
+                            Integer.parseInt(plugin.getProperty("breakerThreshold", "5")),
+                            TimeUnit.SECONDS.toMillis(Long.parseLong(plugin.getProperty("breakerOpen", "60")))
+                    ))
+                    .setFetcher(rangedFetcher)
+                    // Opt-in: open the next-best format alongside one that is this slow to respond
+                    .setHedgeDelay(Long.parseLong(plugin.getProperty("hedgeDelayMillis", "0")))
+                    // HLS segments are fetched a few at a time on the fetcher, instead of one by one in FFmpeg
+                    .setHlsSegmentsAhead(Integer.parseInt(plugin.getProperty("hlsSegmentsAhead", "3")))
+                    .build());
         });
     }
 
@@ -121,6 +271,7 @@ public class Music implements PluginReference, EventListener {
 
         MusicRegistration registration;
         registrations.put(plugin, registration = inst.build());
+        registration.getTrackSources().forEach(trackSources::register);
 
         return registration;
     }
@@ -137,12 +288,16 @@ public class Music implements PluginReference, EventListener {
         return musicManager;
     }
 
+    public TrackImporter getTrackImporter() {
+        return trackImporter;
+    }
+
     public TrackSource getLocalTrackSource() {
         return localTrackSource;
     }
 
     public Collection<Playlist> getPlaylists() {
-        return Collections.unmodifiableCollection(playlists.values());
+        return channelStates.getPlaylists();
     }
 
     public Stream<Playlist> getPlaylists(PlatformUser user) {
@@ -152,34 +307,31 @@ public class Music implements PluginReference, EventListener {
     }
 
     public Stream<Playlist> getPlaylists(User user) {
-        return getPlaylists().stream()
-                .filter(x -> x.getUser().getUser() != null)
-                .filter(x -> x.getUser().getUser().equals(user));
+        return channelStates.getPlaylists(user);
     }
 
     public Stream<Playlist> getPlaylists(Platform platform) {
-        return getPlaylists().stream()
-                .filter(x -> x.getChannel().getPlatform().equals(platform));
+        return channelStates.getPlaylists(platform);
     }
 
     public Playlist getPlaylist(CommandSender sender) {
         if (sender == null) return null;
-        return playlists.get(audio.getChannel(sender));
+        return getPlaylist(audio.getChannel(sender));
     }
 
     public Playlist getPlaylist(Conversation conversation) {
         if (conversation == null) return null;
-        return playlists.get(audio.getChannel(conversation));
+        return getPlaylist(audio.getChannel(conversation));
     }
 
     public Playlist getPlaylist(Chat chat) {
         if (chat == null) return null;
-        return playlists.get(audio.getChannel(chat));
+        return getPlaylist(audio.getChannel(chat));
     }
 
     public Playlist getPlaylist(AudioChannel channel) {
-        if (channel == null) return null;
-        return playlists.get(channel);
+        ChannelState state = channelStates.get(channel);
+        return state != null ? state.getPlaylist() : null;
     }
 
     public BlockingQueue<Pair<UserAssociation, Track>> getQueue(CommandSender sender) {
@@ -199,10 +351,31 @@ public class Music implements PluginReference, EventListener {
 
     public BlockingQueue<Pair<UserAssociation, Track>> getQueue(AudioChannel channel) {
         if (channel == null) return null;
-        synchronized (queues) {
-            return queues.computeIfAbsent(channel,
-                    (ignored) -> new ArrayBlockingQueue<>(channel.getMaximumQueueSize()));
-        }
+        return channelStates.getOrCreate(channel).getQueue();
+    }
+
+    /**
+     * Gets the registry holding the per-channel state (current play, playlist and queue) of this Music instance.
+     * @return ChannelStateRegistry instance.
+     */
+    public ChannelStateRegistry getChannelStates() {
+        return channelStates;
+    }
+
+    /**
+     * Gets the scheduler running background jobs (downloads, transcodes and warmups) for this Music instance.
+     * @return JobScheduler instance.
+     */
+    public JobScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Gets the fetcher downloads read remote media through.
+     * @return RangedFetcher instance.
+     */
+    public RangedFetcher getRangedFetcher() {
+        return rangedFetcher;
     }
 
     /**
@@ -213,8 +386,9 @@ public class Music implements PluginReference, EventListener {
     public Track getPlayedTrack(Conversation conversation) {
         AudioChannel channel = audio.getChannel(conversation);
 
-        if (channel != null) {
-            Play association = playingTracks.get(channel);
+        ChannelState state = channelStates.get(channel);
+        if (state != null) {
+            Play association = state.getPlay();
             if (association != null) {
                 return association.getTrack();
             }
@@ -233,33 +407,19 @@ public class Music implements PluginReference, EventListener {
     }
 
     public TrackSource.Result findRemoteTrack(Community community, URL url) throws IllegalArgumentException {
+        return findRemoteTrack(community, url, CancellationToken.NONE);
+    }
+
+    public TrackSource.Result findRemoteTrack(Community community, URL url, CancellationToken cancellation)
+            throws IllegalArgumentException, CancellationException {
         Objects.requireNonNull(community);
 
-        return registrations.values().stream()
-                .flatMap(registration -> registration.getTrackSources().stream())
-                .map(trackSource -> {
-                    try {
-                        return trackSource.find(community, url);
-                    } catch (TrackDownloadException e) {
-                        throw new IllegalArgumentException(e.getMessage());
-                    }
-                })
-                .filter(Objects::nonNull)
-                .sorted(
-                        new Comparator<TrackSource.Result>() {
-                            @Override
-                            public int compare(TrackSource.Result a, TrackSource.Result b) {
-                                return Integer.compare(a.getPriority().getOrdinal(), b.getPriority().getOrdinal());
-                            }
-                        }.reversed().thenComparingInt(x -> x.isLocal() ? 0 : 1)
-                )
-                .findFirst()
-                .orElseThrow(() ->
-                        new IllegalArgumentException(
-                                "url",
-                                new Exception("track not found: " + url.toExternalForm())
-                        )
-                );
+        TrackSource.Result result = trackSources.find(community, url, cancellation);
+
+        // Whatever the source made of the URL, find the track by the URL as given next time
+        if (result != null && !result.isLocal()) result.addAlias(url);
+
+        return result;
     }
 
     public TrackSource.Result findLocalTrack(Community community, URL url) throws IOException, TrackDownloadException {
@@ -280,9 +440,14 @@ public class Music implements PluginReference, EventListener {
     }
 
     public TrackSource.Result findTrack(Community community, URL url) throws IOException, TrackDownloadException {
+        return findTrack(community, url, CancellationToken.NONE);
+    }
+
+    public TrackSource.Result findTrack(Community community, URL url, CancellationToken cancellation)
+            throws IOException, TrackDownloadException, CancellationException {
         TrackSource.Result result = findLocalTrack(community, url);
         if (result == null)
-            result = findRemoteTrack(community, url);
+            result = findRemoteTrack(community, url, cancellation);
         return result;
     }
 
@@ -307,12 +472,36 @@ public class Music implements PluginReference, EventListener {
     }
 
     public int stop(UserAssociation userAssociation, AudioChannel channel, EnumSet<StopFlag> flags) {
+        ChannelState state = channelStates.getOrCreate(channel);
+
+        // Cancel plays being found or opened right away; a transition queued ahead of us may be waiting on one
+        int cancelled = flags.contains(StopFlag.TRACKS) ? cancelPending(state, userAssociation, flags) : 0;
+
+        return state.getExecutor().call(() -> stopNow(userAssociation, channel, flags, cancelled));
+    }
+
+    /**
+     * Stops playback on a channel from the calling thread, which must be running a transition on the channel's
+     * executor.
+     */
+    private int stopNow(UserAssociation userAssociation, AudioChannel channel, EnumSet<StopFlag> flags) {
+        return stopNow(userAssociation, channel, flags, 0);
+    }
+
+    /**
+     * Stops playback on a channel from the calling thread, which must be running a transition on the channel's
+     * executor.
+     * @param cancelled number of pending plays the caller already cancelled for this stop.
+     */
+    private int stopNow(UserAssociation userAssociation, AudioChannel channel, EnumSet<StopFlag> flags,
+                        int cancelled) {
         Set<AudioPlayer> stopped = new HashSet<>();
 
         // Stop any unbounded tracks (such as live-streams)
         if (flags.contains(StopFlag.STREAMS)) {
-            for (Play play : new ArrayList<>(playingTracks.values())) {
-                if (play.getTrack() != null && play.getTrack().getLength() == null && play.getPlayer().isPlaying() &&
+            for (ChannelState state : channelStates.getStates()) {
+                Play play = state.getPlay();
+                if (play != null && play.getTrack() != null && play.getTrack().getLength() == null && play.getPlayer().isPlaying() &&
                         play.getPlayer().kill()) {
                     stopped.add(play.getPlayer());
                 }
@@ -348,20 +537,161 @@ public class Music implements PluginReference, EventListener {
             }
         }
 
-        int stoppedCount = stopped.size();
+        int stoppedCount = stopped.size() + cancelled;
+
+        // Cancel plays still being resolved or opened, killing their lookups and fetches
+        if (flags.contains(StopFlag.TRACKS))
+            stoppedCount += cancelPending(channelStates.getOrCreate(channel), userAssociation, flags);
 
         // If we stopped anything, clear the queue
         if (flags.contains(StopFlag.QUEUE)) {
             if (stoppedCount > 0) {
-                Queue<Pair<UserAssociation, Track>> queue = getQueue(channel);
-                queue.removeIf(pair ->
+                ChannelState state = channelStates.getOrCreate(channel);
+                state.getQueue().removeIf(pair ->
                         pair.getLeft().equals(userAssociation.getUser()) || flags.contains(StopFlag.OTHERS));
+                prefetchQueue(state);
             }
         }
 
         return stoppedCount;
     }
 
+    /**
+     * Runs a transition on a channel's executor, holding ownership of the channel.  Ownership is only ever taken on
+     * the executor, so waiting on the executor for it can't deadlock with another transition.
+     * @param userAssociation user to obtain the channel for.
+     * @param channel channel to run the transition on.
+     * @param transition transition to run.
+     * @param <T> result type.
+     * @return result of the transition.
+     */
+    private <T> T transition(UserAssociation userAssociation, AudioChannel channel, Callable<T> transition)
+            throws Exception {
+        try {
+            return channelStates.getOrCreate(channel).getExecutor().call(() -> {
+                try (AudioChannel.Ownership ignored = channel.obtainChannel(userAssociation)) {
+                    return transition.call();
+                } catch (RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+            });
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof Exception) throw (Exception) e.getCause();
+            throw e;
+        }
+    }
+
+    private static int cancelPending(ChannelState state, UserAssociation userAssociation, EnumSet<StopFlag> flags) {
+        return state.cancelPending(user ->
+                user.getUser().equals(userAssociation.getUser()) || flags.contains(StopFlag.OTHERS));
+    }
+
+    /**
+     * Opens providers for the entries at the head of a channel's queue that haven't been opened yet, and closes the
+     * prefetches of entries that have since left the queue.
+     * @param state channel state to prefetch the queue of.
+     */
+    private void prefetchQueue(ChannelState state) {
+        state.prunePrefetches();
+
+        int position = 0;
+        for (Pair<UserAssociation, Track> entry : state.getQueue()) {
+            if (position++ >= queueLookahead) break;
+
+            PrefetchedTrack prefetch = state.getPrefetch(entry);
+            if (prefetch == null || !prefetch.schedule()) continue;
+
+            schedulePrefetch(prefetch, 0L);
+        }
+    }
+
+    /**
+     * Prepares the track following a play (such as the next track of a playlist) to take over from it without a gap.
+     * The track is resolved and opened in the background, <b>prerollSeconds</b> before the play is due to fade out.
+     * @param play play the track will follow.
+     * @param community community to find the track in.
+     * @param track track to prepare.
+     * @return PrefetchedTrack to hand to <b>Play.Builder.setPrefetch</b> or close.
+     */
+    public PrefetchedTrack preroll(Play play, Community community, Track track) {
+        PrefetchedTrack prefetch = new PrefetchedTrack(community, track, null, true);
+        prefetch.schedule();
+
+        Track playing = play.getTrack();
+        long delay = 0L;
+        if (playing != null && playing.getLength() != null) {
+            double fadeOut = playing.getLength() - getFadeTime(playing);
+            delay = (long) Math.max(0D, (fadeOut - prerollSeconds) * 1000D);
+        }
+
+        schedulePrefetch(prefetch, delay);
+        return prefetch;
+    }
+
+    private void schedulePrefetch(PrefetchedTrack prefetch, long delayMillis) {
+        Runnable submit = () -> {
+            try {
+                scheduler.submit(JobScheduler.Pool.IO, JobScheduler.Priority.QUEUED, () -> {
+                    openPrefetch(prefetch);
+                    return null;
+                });
+            } catch (RejectedExecutionException e) {
+                prefetch.close();
+            }
+        };
+
+        if (delayMillis <= 0L) {
+            submit.run();
+        } else {
+            try {
+                maintenanceExecutor.schedule(submit, delayMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                prefetch.close();
+            }
+        }
+    }
+
+    private void openPrefetch(PrefetchedTrack prefetch) {
+        if (!prefetch.begin()) return;
+
+        TrackSource.Result result = prefetch.getResult();
+        AudioProvider provider = null;
+
+        try {
+            if (result == null)
+                result = findTrack(prefetch.getCommunity(), prefetch.getTrack().toURL(), prefetch.getCancellation());
+
+            Repository.Resource resource = result.get();
+
+            if (result.isLocal() && resource.exists())
+                provider = protocol.openProvider(resource.openRead());
+            else if (prefetch.canDownload())
+                provider = result.openProvider(protocol, prefetch.getCancellation());
+        } catch (Exception e) {
+            // Not fatal; the track is resolved and opened again when it is played
+            plugin.getLogger().log(Level.FINE, "Problem prefetching track " + prefetch.getTrack().getUrlString(), e);
+        } finally {
+            prefetch.complete(result, provider);
+        }
+    }
+
+    private static double getFadeTime(Track track) {
+        return track.getLength() == null ? 3D : Math.min(track.getLength() / 4D, 3D);
+    }
+
+    /**
+     * Finds if caching a track can be given up on, given how far a stopped play got through it.  Tracks stopped
+     * early are mostly skipped ones, which aren't worth fetching and transcoding for the cache.
+     * @param track track being cached.
+     * @param secondsPlayed seconds of the track played before it was stopped.
+     * @return true if the transcode should be abandoned, false if it should be finished.
+     */
+    private boolean isAbandonable(Track track, double secondsPlayed) {
+        return track.getLength() != null && secondsPlayed < track.getLength() * cacheAbandonThreshold;
+    }
+
     public Playlist startPlaylist(UserAssociation userAssociation,
                                   Conversation conversation,
                                   Consumer<Playlist.Builder> consumer) {
@@ -411,6 +741,8 @@ public class Music implements PluginReference, EventListener {
 
             @Override
             public void onTransferred(Playlist playlist, UserAssociation a, UserAssociation b) {
+                channelStates.transferPlaylist(playlist, a, b);
+
                 getPlugin().getBot().getEventDispatcher().execute(new PlaylistTransferredEvent(this, Music.this, playlist, a, b));
                 
                 if (a != null && b != null)
@@ -428,7 +760,7 @@ public class Music implements PluginReference, EventListener {
 
             @Override
             public void onStopped(Playlist playlist) {
-                playlists.remove(playlist.getChannel(), playlist);
+                channelStates.removePlaylist(playlist.getChannel(), playlist);
     
                 getPlugin().getBot().getEventDispatcher().execute(new PlaylistEndedEvent(this, Music.this, playlist));
                 
@@ -445,15 +777,17 @@ public class Music implements PluginReference, EventListener {
 
         Playlist playlist = builder.create();
 
-        try (AudioChannel.Ownership ignored = channel.obtainChannel(userAssociation)) {
-            stop(userAssociation, channel);
+        try {
+            transition(userAssociation, channel, () -> {
+                stopNow(userAssociation, channel, getDefaultStopFlags());
 
-            if (getPlaylist(channel) != null)
-                throw new CommandAccessException("There is another playlist running on this channel.");
+                // Register before starting, so a playlist that immediately ends can unregister itself
+                if (!channelStates.setPlaylist(channel, playlist))
+                    throw new CommandAccessException("There is another playlist running on this channel.");
 
-            playlist.setRunning(true);
-
-            playlists.put(channel, playlist);
+                playlist.setRunning(true);
+                return null;
+            });
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
@@ -478,8 +812,88 @@ public class Music implements PluginReference, EventListener {
             throw new IllegalArgumentException("There is no audio channel associated with this conversation.");
 
         PlayBuilder builder = new PlayBuilder(user, community, channel, conversation);
-        consumer.accept(builder);
-        return builder.play();
+        builder.begin();
+
+        try {
+            consumer.accept(builder);
+            return builder.play();
+        } catch (CancellationException e) {
+            throw new IOException("Playback was stopped before the track started", e);
+        } finally {
+            builder.finish();
+        }
+    }
+
+    /**
+     * Plays a track without blocking the calling thread.  The track is resolved, located, opened, resampled and
+     * attached to the channel in stages on separate executors.
+     * @param user user playing the track.
+     * @param conversation conversation to play the track in.
+     * @param consumer builder consumer; it is called on a background thread.
+     * @return future completed with the Play once it has started or been queued.
+     */
+    public CompletableFuture<Play> playAsync(UserAssociation user, Conversation conversation,
+                                             Consumer<Play.Builder> consumer) {
+        Community community = getCommunity(conversation);
+        if (community == null)
+            return CompletableFuture.failedFuture(new IllegalArgumentException(
+                    "There is no music community associated with this conversation."
+            ));
+
+        return playAsync(user, conversation, community, consumer);
+    }
+
+    /**
+     * Plays a track without blocking the calling thread.  The track is resolved, located, opened, resampled and
+     * attached to the channel in stages on separate executors.
+     * @param user user playing the track.
+     * @param conversation conversation to play the track in.
+     * @param community community to find the track in.
+     * @param consumer builder consumer; it is called on a background thread.
+     * @return future completed with the Play once it has started or been queued.
+     */
+    public CompletableFuture<Play> playAsync(UserAssociation user, Conversation conversation, Community community,
+                                             Consumer<Play.Builder> consumer) {
+        AudioChannel channel = audio.getChannel(conversation);
+        if (channel == null)
+            return CompletableFuture.failedFuture(new IllegalArgumentException(
+                    "There is no audio channel associated with this conversation."
+            ));
+
+        return playAsync(new PlayBuilder(user, community, channel, conversation), consumer);
+    }
+
+    private CompletableFuture<Play> playAsync(PlayBuilder builder, Consumer<Play.Builder> consumer) {
+        builder.begin();
+        Executor attachExecutor = command ->
+                channelStates.getOrCreate(builder.getChannel()).getExecutor().execute(command);
+
+        CompletableFuture<Play> future = CompletableFuture
+                .runAsync(() -> {
+                    consumer.accept(builder);
+                    builder.resolve();
+                }, resolveExecutor)
+                .thenApplyAsync(ignored -> builder.stage(builder::locate), openExecutor)
+                .thenCompose(queued -> queued != null ? CompletableFuture.completedFuture(queued) :
+                        CompletableFuture
+                                .runAsync(() -> builder.stage(() -> {
+                                    builder.open();
+                                    return null;
+                                }), openExecutor)
+                                .thenRunAsync(() -> builder.stage(() -> {
+                                    builder.resample();
+                                    return null;
+                                }), resampleExecutor)
+                                .thenApplyAsync(ignored -> builder.stage(builder::attach), attachExecutor)
+                );
+
+        // Don't leak a provider opened by a stage before a later one failed
+        future.whenComplete((play, throwable) -> {
+            builder.finish();
+            if (throwable != null) builder.release();
+        });
+
+        return future;
     }
 
     @Override
@@ -489,17 +903,34 @@ public class Music implements PluginReference, EventListener {
 
     @Override
     public void unload(Plugin.Future plugin) {
-        queues.clear();
+        maintenanceExecutor.shutdownNow();
+
+        channelStates.getStates().forEach(state -> {
+            state.getQueue().clear();
+            state.prunePrefetches();
+        });
 
         new ArrayList<>(getPlaylists()).forEach(playlist -> playlist.setRunning(false));
 
-        new ArrayList<>(playingTracks.values()).forEach(association -> {
+        channelStates.getStates().stream().map(ChannelState::getPlay).filter(Objects::nonNull).forEach(association -> {
             try {
                 association.getPlayer().kill();
             } catch (Exception e) {
                 // ignore
             }
         });
+
+        channelStates.clear();
+
+        transitionExecutor.shutdown();
+        resolveExecutor.shutdown();
+        openExecutor.shutdown();
+        resampleExecutor.shutdown();
+        trackImporter.close();
+        findExecutor.shutdown();
+        resolverPool.close();
+        rangedFetcher.close();
+        scheduler.close();
     }
 
     public AudioProtocol getProtocol() {
@@ -516,11 +947,15 @@ public class Music implements PluginReference, EventListener {
         UserAssociation userAssociation = platformUser.getAssociation();
 
         if (userAssociation != null) {
-            stop(userAssociation, event.getChannel(), EnumSet.of(StopFlag.TRACKS, StopFlag.PLAYLISTS, StopFlag.QUEUE));
-
-            // Also remove any queued tracks that belong to this user
-            getQueue(event.getChannel())
-                    .removeIf(item -> item.getLeft().getPlatformUser().equals(event.getPlatformUser()));
+            AudioChannel channel = event.getChannel();
+            channelStates.getOrCreate(channel).getExecutor().execute(() -> {
+                stopNow(userAssociation, channel, EnumSet.of(StopFlag.TRACKS, StopFlag.PLAYLISTS, StopFlag.QUEUE));
+
+                // Also remove any queued tracks that belong to this user
+                ChannelState state = channelStates.getOrCreate(channel);
+                state.getQueue().removeIf(item -> item.getLeft().getPlatformUser().equals(platformUser));
+                prefetchQueue(state);
+            });
         }
     }
 
@@ -531,13 +966,16 @@ public class Music implements PluginReference, EventListener {
         AudioChannel channel = event.getFromChannel();
 
         if (userAssociation != null && event.hasLeft() && !event.wasFollowed()) {
-            Play play = playingTracks.get(channel);
+            ChannelState state = channelStates.get(channel);
+            Play play = state != null ? state.getPlay() : null;
             if (play == null)
                 return;
 
             if (play.getUser().equals(userAssociation)) {
                 if (event.wasMovedAway()) {
-                    stop(userAssociation, event.getFromChannel(), EnumSet.allOf(StopFlag.class));
+                    state.getExecutor().execute(() ->
+                            stopNow(userAssociation, channel, EnumSet.allOf(StopFlag.class))
+                    );
                 } else {
                     event.follow();
                 }
@@ -551,8 +989,21 @@ public class Music implements PluginReference, EventListener {
         private final AudioChannel channel;
         private final Conversation conversation;
         private TrackSource.Result result = null;
+        private PrefetchedTrack prefetch = null;
+
+        /**
+         * Cancelled when the play is stopped before it starts, or stopped early enough that caching it isn't worth
+         * finishing.
+         */
+        private final CancellationToken cancellation = new CancellationToken();
         private BiConsumer<Track, Track> fadeOut = (track, nextTrack) -> {};
 
+        // Carried between the stages of play()
+        private Track track;
+        private Repository.Resource resource;
+        private AudioProvider provider;
+        private Future<Repository.Resource> cacheFuture;
+
         /**
          * If the track should be cached in the repository it is retrieved on.
          * This is usually the repository associated with the community, which is in turn associated with the
@@ -601,7 +1052,7 @@ public class Music implements PluginReference, EventListener {
         @Override
         public Play.Builder setTrack(Function<Play.TrackSelector, TrackSource.Result> selector)
                 throws IllegalArgumentException {
-            this.result = Objects.requireNonNull(selector).apply(new TrackSelector(getCommunity()));
+            this.result = Objects.requireNonNull(selector).apply(new TrackSelector(getCommunity(), cancellation));
             return this;
         }
 
@@ -629,45 +1080,142 @@ public class Music implements PluginReference, EventListener {
             return this;
         }
 
+        @Override
+        public Play.Builder setPrefetch(PrefetchedTrack prefetch) {
+            this.prefetch = Objects.requireNonNull(prefetch);
+            this.canDownload = prefetch.canDownload();
+            return this;
+        }
+
         private Play play() throws IOException {
+            try {
+                resolve();
+
+                Play queued = locate();
+                if (queued != null)
+                    return queued;
+
+                open();
+                resample();
+                return attach();
+            } finally {
+                finish();
+                release();
+            }
+        }
+
+        /**
+         * Resolve stage: settles the track result, which <b>setTrack</b> usually resolved already.
+         */
+        private void resolve() {
             Objects.requireNonNull(userAssociation, "User association is required");
+            cancellation.throwIfCancelled();
+
+            // Take over a prefetched track, waiting on it if it is being opened right now
+            if (prefetch != null) {
+                // Closing the prefetch wakes us if a stop cancels us while it is being opened, and aborts the open
+                try (CancellationToken.Registration ignored = cancellation.onCancel(prefetch::close)) {
+                    provider = prefetch.take();
+                }
+
+                cancellation.throwIfCancelled();
+
+                if (prefetch.getResult() != null)
+                    result = prefetch.getResult();
+                else if (result == null)
+                    result = new TrackSelector(prefetch.getCommunity(), cancellation).find(prefetch.getTrack());
+            }
+
             Objects.requireNonNull(result, "Track is required");
 
+            if (behavior == null) {
+                behavior = Play.Behavior.QUEUED;
+            }
+        }
+
+        /**
+         * Locate stage: gets the track and its resource.  A track that can't start right away is queued here,
+         * before anything is opened; the queue opens it later.
+         * @return the queued Play if the track was queued, null otherwise.
+         */
+        private Play locate() throws IOException {
             // Get the track. This may actually create a track, if needed.
-            Track track = result.getTrack();
+            track = result.getTrack();
+
+            if (behavior == Play.Behavior.QUEUED && channel.getState() != AudioChannel.State.WAITING) {
+                try {
+                    Play queued = transition(userAssociation, channel, () -> {
+                        stopNow(userAssociation, channel, EnumSet.of(StopFlag.STREAMS));
+
+                        if (channel.getState() != AudioChannel.State.WAITING) {
+                            release();
+                            enqueue(track);
+                            return new Play(userAssociation, Music.this, track, channel, conversation, null,
+                                    behavior, true, null);
+                        }
+
+                        return null;
+                    });
+
+                    if (queued != null)
+                        return queued;
+                } catch (IllegalArgumentException | IllegalStateException exposed) {
+                    throw exposed;
+                } catch (Exception e) {
+                    throw new IOException("Problem queueing track", e);
+                }
+            }
 
             // Get the resource associated with this track. The resource is the local/cached copy of the track, which in
             // most cases won't exist. If it does exist, it is usually on a specific file directory, NFS share, etc.
-            Repository.Resource resource = result.get();
+            resource = result.get();
+
+            return null;
+        }
 
+        /**
+         * Open stage: opens a provider for the track, unless one was prefetched, and starts caching it if needed.
+         */
+        private void open() throws IOException {
             // Open a direct stream to the resource.
             // This is a somewhat complicated process. We must check to see if the resource exists. If it doesn't exist on
             // the Repository associated with the "community" parameter, we should cache it only if that Repository supports
             // writing to this Track's associated resource. If it does exist, we shouldn't save it to the cache twice.
             AudioProtocol protocol = getProtocol();
-            AudioProvider provider;
-
-            final Future<Repository.Resource> cacheFuture;
+            cancellation.throwIfCancelled();
 
             if (result.isLocal() && resource.exists()) {
-                provider = protocol.openProvider(resource.openRead());
+                if (provider == null) provider = protocol.openProvider(resource.openRead());
                 cacheFuture = null;
             } else if (!canDownload)
                 throw new IllegalArgumentException("cannot stream track: streaming/downloading was not allowed");
             else {
-                provider = result.openProvider(protocol);
+                if (provider == null) provider = result.openProvider(protocol, cancellation);
 
-                // Attempt to cache the track as well.
+                // Attempt to cache the track as well, from the same samples we decode for playback.
                 if (caching && resource.canWrite() &&
-                        (track.getLength() != null && track.getLength() > 0) && cacheExecutor != null) {
-                    cacheFuture = cacheAsync(resource, track);
+                        (track.getLength() != null && track.getLength() > 0) && cacheEnabled) {
+                    TeeAudioProvider tee = new TeeAudioProvider(
+                            provider,
+                            (int) Math.min(
+                                    Integer.MAX_VALUE,
+                                    teeBufferSeconds * provider.getSampleRate() * provider.getChannels()
+                            )
+                    );
+
+                    provider = tee;
+                    cacheFuture = cacheAsync(resource, track, tee);
                 } else {
                     cacheFuture = null;
                 }
             }
+        }
 
+        /**
+         * Resample stage: converts the provider to the mixer's format on an as-needed basis.
+         */
+        private void resample() throws IOException {
             try {
-                // Resample on an as-needed basis
                 if (provider.getChannels() != getChannel().getMixer().getAudioChannels() ||
                         provider.getSampleRate() != getChannel().getMixer().getAudioSampleRate()) {
                     provider = new ResampledAudioProvider(
@@ -680,31 +1228,41 @@ public class Music implements PluginReference, EventListener {
                             )
                     );
                 }
+            } catch (IllegalArgumentException | IllegalStateException exposed) {
+                throw exposed;
+            } catch (Throwable e) {
+                throw new IOException("Problem resampling track", e);
+            }
+        }
 
-                // Define a uniform constructor routine to create an instance of a Play.
-                Function<AudioPlayer, Play> playConstructor = (player) ->
-                        new Play(
-                                userAssociation,
-                                Music.this,
-                                track,
-                                channel,
-                                conversation,
-                                player,
-                                behavior,
-                                player == null,
-                                cacheFuture
-                        );
-
-                // Observing the behavior of the requested playback, handle playing the Track now or at a future time.
-                try (AudioChannel.Ownership ignored = channel.obtainChannel(userAssociation)) {
-                    if (behavior == null) {
-                        behavior = Play.Behavior.QUEUED;
-                    }
+        /**
+         * Attach stage: observing the behavior of the requested playback, plays the track now or queues it.
+         */
+        private Play attach() throws IOException {
+            // Define a uniform constructor routine to create an instance of a Play.
+            Function<AudioPlayer, Play> playConstructor = (player) ->
+                    new Play(
+                            userAssociation,
+                            Music.this,
+                            track,
+                            channel,
+                            conversation,
+                            player,
+                            behavior,
+                            player == null,
+                            cacheFuture
+                    );
+
+            // Past this point a stop reaches the play through its player; don't let our own stop cancel us
+            finish();
+            cancellation.throwIfCancelled();
 
+            try {
+                return transition(userAssociation, channel, () -> {
                     if (behavior == Play.Behavior.QUEUED) {
-                        stop(userAssociation, channel, EnumSet.of(StopFlag.STREAMS));
+                        stopNow(userAssociation, channel, EnumSet.of(StopFlag.STREAMS));
                     } else if (behavior == Play.Behavior.EXCLUSIVE) {
-                        stop(userAssociation, channel);
+                        stopNow(userAssociation, channel, getDefaultStopFlags());
                     }
 
                     if (behavior == Play.Behavior.EXCLUSIVE || behavior == Play.Behavior.PASSIVE ||
@@ -714,97 +1272,163 @@ public class Music implements PluginReference, EventListener {
                         // back to the Music singleton so we can track when it ends in this class.
                         AudioPlayer player = createPlayer(provider, track);
                         Play play = playConstructor.apply(player);
-                        player.getFuture().thenRun(() -> playingTracks.remove(channel, play));
+                        ChannelState state = channelStates.getOrCreate(channel);
+                        state.setPlay(play);
+                        player.getFuture().thenRun(() -> state.clearPlay(play));
+
+                        try {
+                            channel.addPlayer(player);
+                        } catch (Throwable e) {
+                            state.clearPlay(play);
+                            throw e;
+                        }
 
-                        channel.addPlayer(player);
-                        playingTracks.put(channel, play);
+                        // The player owns the provider now
+                        provider = null;
 
                         return play;
                     } else if (behavior == Play.Behavior.QUEUED) {
-                        // Any case where we should instead enqueue playback of this track
-                        getQueue(channel).add(new Pair<>(userAssociation, track));
+                        // Any case where we should instead enqueue playback of this track.  The channel got busy
+                        // after we opened the track; let the queue open it again when it gets close to playing.
+                        release();
+                        enqueue(track);
                         return playConstructor.apply(null);
                     } else {
                         throw new UnsupportedOperationException(behavior.name());
                     }
-                }
+                });
             } catch (IllegalArgumentException | IllegalStateException exposed) {
                 throw exposed;
             } catch (Throwable e) {
-                // Prevent leak:
+                throw new IOException("Problem playing track", e);
+            }
+        }
+
+        /**
+         * Registers this play with the channel's pending plays, so stops reach it before it has a player to kill.
+         */
+        private void begin() {
+            // A play without a user fails to resolve anyway
+            if (userAssociation != null)
+                channelStates.getOrCreate(channel).addPending(userAssociation, cancellation);
+        }
+
+        /**
+         * Unregisters this play from the channel's pending plays.
+         */
+        private void finish() {
+            channelStates.getOrCreate(channel).removePending(cancellation);
+        }
+
+        /**
+         * Closes the provider opened for this play, if it wasn't handed to a player.
+         */
+        private void release() {
+            AudioProvider provider = this.provider;
+            this.provider = null;
+
+            if (provider != null) {
                 try {
                     provider.close();
-                } catch (Exception ex) {
-                    e.addSuppressed(ex);
+                } catch (Exception e) {
+                    // ignore
                 }
+            }
+        }
 
-                throw new IOException("Problem playing track", e);
+        private <T> T stage(Callable<T> stage) {
+            try {
+                return stage.call();
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new CompletionException(e);
             }
         }
 
-        private Future<Repository.Resource> cacheAsync(Repository.Resource resource, Track track) {
+        private void enqueue(Track track) {
+            ChannelState state = channelStates.getOrCreate(channel);
+            Pair<UserAssociation, Track> entry = new Pair<>(userAssociation, track);
+
+            state.setPrefetch(entry, new PrefetchedTrack(community, track, result, canDownload));
+
+            try {
+                state.getQueue().add(entry);
+            } catch (IllegalStateException full) {
+                PrefetchedTrack prefetch = state.removePrefetch(entry);
+                if (prefetch != null) prefetch.close();
+                throw new IllegalStateException("The queue on this channel is full.", full);
+            }
+
+            prefetchQueue(state);
+        }
+
+        private Future<Repository.Resource> cacheAsync(Repository.Resource resource, Track track,
+                                                       TeeAudioProvider tee) {
             synchronized (downloads) {
                 Future<Repository.Resource> future = downloads.get(track);
                 if (future == null) {
-                    if (cacheExecutor == null) {
-                        throw new NullPointerException("cacheExecutor");
+                    if (!cacheEnabled) {
+                        throw new IllegalStateException("caching is disabled");
                     }
 
-                    future = cacheExecutor.submit(() -> cache(resource, track));
+                    // Fed at playback speed, so it runs on the tee lane rather than holding a CPU worker all track
+                    future = scheduler.submit(
+                            JobScheduler.Pool.TEE,
+                            JobScheduler.Priority.PLAYING,
+                            () -> cache(resource, track, tee)
+                    );
                     downloads.put(track, future);
                     return future;
                 } else {
+                    // Already being cached by another play; don't hold samples for nobody
+                    tee.detach();
                     return future;
                 }
             }
         }
 
-        private Repository.Resource cache(Repository.Resource resource, Track track) throws IOException {
+        private Repository.Resource cache(Repository.Resource resource, Track track, TeeAudioProvider tee)
+                throws IOException {
             try {
+                if (cancellation.isCancelled()) {
+                    // Abandoned while waiting for a worker; don't hold samples for nobody
+                    tee.detach();
+                    throw new CancellationException("play was stopped");
+                }
+
                 plugin.getLogger().fine(track.getUrlString() + ": transcoding to " +
                         resource.getRepository().getClass() + "...");
 
-                try (AudioProvider cachedAudioProvider = result.openProvider(protocol)) {
-                    AudioDownloadFormat downloadFormat = resource.getRepository().getDownloadFormat();
-                    AudioFormat targetFormat = AudioFormat.from(cachedAudioProvider.getFormat());
-
-                    try (Resampler resampler = protocol.openResampler(targetFormat, downloadFormat.getAudioFormat(),
-                            transcodeBufferSize)) {
-                        try (AudioConsumer cachedAudioConsumer =
-                                     protocol.openConsumer(resource.openWrite(), downloadFormat)) {
-                            // Set up resampling buffers
-                            float[] in_buffer = new float[transcodeBufferSize];
-                            int maxOutputBufferSize = (int) Math.ceil(transcodeBufferSize * (1d / resampler.getScale()));
-                            float[] out_buffer = new float[maxOutputBufferSize];
-
-                            boolean eof = false;
+                try {
+                    transcode(resource, tee.getBranch());
+                } catch (TeeAudioProvider.DetachedException ex) {
+                    // Stopped early; the player may not have reported how far it got yet, so judge from the tee
+                    double secondsPlayed = (double) tee.getPosition() /
+                            ((double) tee.getSampleRate() * (double) tee.getChannels());
+                    if (tee.isClosed() && isAbandonable(track, secondsPlayed))
+                        cancellation.cancel();
 
-                            long resampled = 0;
-                            int len;
+                    cancellation.throwIfCancelled();
 
-                            // Copy the samples to the consumer (file, NAS object, etc.) we're flushing to
-                            try {
-                                while ((len = cachedAudioProvider.read(in_buffer, 0, in_buffer.length)) > 0) {
-                                    len = resampler.resample(in_buffer, len, out_buffer, out_buffer.length);
-                                    cachedAudioConsumer.write(out_buffer, len);
-                                    resampled += len;
-                                }
-                            } catch (EOFException ignored) {
-                                // Ignore; EOFs are expected in the audio sample stream
-                                eof = true;
-                            }
+                    // Playback was stopped or got too far ahead of us; fetch the track again on our own.
+                    plugin.getLogger().fine(track.getUrlString() + ": " + ex.getMessage() +
+                            ", fetching separately...");
 
-                            // Flush the resampler to get any remaining samples out of the buffer
-                            len = resampler.flush(out_buffer, out_buffer.length);
-                            if (len > 0)
-                                cachedAudioConsumer.write(out_buffer, len);
+                    try {
+                        resource.delete();
+                    } catch (Exception deleteException) {
+                        // Nothing partial was written
+                    }
 
-                            // Look for the special case where we break out of the while loop when len <= 0
-                            if (!eof) {
-                                throw new IOException("resampled " + resampled +
-                                        " samples but did not encounter expected EOF.");
-                            }
-                        }
+                    // Our own fetch decodes as fast as it can, so it is real transcode work for the CPU lane
+                    try {
+                        scheduler.submit(JobScheduler.Pool.CPU, JobScheduler.Priority.PLAYING, () -> {
+                            transcode(resource, result.openProvider(protocol, cancellation));
+                            return null;
+                        }).get();
+                    } catch (ExecutionException fetchException) {
+                        throw fetchException.getCause();
                     }
                 }
 
@@ -818,6 +1442,21 @@ public class Music implements PluginReference, EventListener {
                 plugin.getLogger().fine(track.getUrlString() + ": transcode to " +
                         resource.getRepository().getClass() + " completed");
             } catch (Throwable e) {
+                if (cancellation.isCancelled()) {
+                    // Abandoned by policy; the failure (such as a closed connection) is expected
+                    plugin.getLogger().fine(track.getUrlString() + ": caching abandoned, play was stopped");
+
+                    try {
+                        resource.delete();
+                    } catch (Exception ex) {
+                        e.addSuppressed(ex);
+                    }
+
+                    CancellationException cancelled = new CancellationException("play was stopped");
+                    cancelled.initCause(e);
+                    throw cancelled;
+                }
+
                 String message = track.getUrlString() + ": problem transcoding track to repository: " +
                         resource.getRepository().getClass();
 
@@ -842,51 +1481,158 @@ public class Music implements PluginReference, EventListener {
             return resource;
         }
 
+        private void transcode(Repository.Resource resource, AudioProvider source) throws Exception {
+            try (AudioProvider cachedAudioProvider = source) {
+                AudioDownloadFormat downloadFormat = resource.getRepository().getDownloadFormat();
+                AudioFormat targetFormat = AudioFormat.from(cachedAudioProvider.getFormat());
+
+                try (Resampler resampler = protocol.openResampler(targetFormat, downloadFormat.getAudioFormat(),
+                        transcodeBufferSize)) {
+                    try (AudioConsumer cachedAudioConsumer =
+                                 protocol.openConsumer(resource.openWrite(), downloadFormat)) {
+                        // Set up resampling buffers
+                        float[] in_buffer = new float[transcodeBufferSize];
+                        int maxOutputBufferSize = (int) Math.ceil(transcodeBufferSize * (1d / resampler.getScale()));
+                        float[] out_buffer = new float[maxOutputBufferSize];
+
+                        boolean eof = false;
+
+                        long resampled = 0;
+                        int len;
+
+                        // Copy the samples to the consumer (file, NAS object, etc.) we're flushing to
+                        try {
+                            while ((len = cachedAudioProvider.read(in_buffer, 0, in_buffer.length)) > 0) {
+                                cancellation.throwIfCancelled();
+
+                                len = resampler.resample(in_buffer, len, out_buffer, out_buffer.length);
+                                cachedAudioConsumer.write(out_buffer, len);
+                                resampled += len;
+                            }
+                        } catch (EOFException ignored) {
+                            // Ignore; EOFs are expected in the audio sample stream
+                            eof = true;
+                        }
+
+                        // Flush the resampler to get any remaining samples out of the buffer
+                        len = resampler.flush(out_buffer, out_buffer.length);
+                        if (len > 0)
+                            cachedAudioConsumer.write(out_buffer, len);
+
+                        // Look for the special case where we break out of the while loop when len <= 0
+                        if (!eof) {
+                            throw new IOException("resampled " + resampled +
+                                    " samples but did not encounter expected EOF.");
+                        }
+                    }
+                }
+            }
+        }
+
         private AudioPlayer createPlayer(AudioProvider provider, Track track) {
             return new TransitionedAudioPlayer(
                     AudioPlayer.Type.BLOCKING,
                     userAssociation.getUser(),
                     provider,
                     track.getLength() == null ? Double.MAX_VALUE : track.getLength(),
-                    track.getLength() == null ? 3D : Math.min(track.getLength() / 4D, 3D),
+                    getFadeTime(track),
                     new TransitionedAudioPlayer.Callback() {
+                        // Callbacks fire on the mixer thread; hand the work to the channel and return immediately
+                        private final Executor executor = channelStates.getOrCreate(channel).getExecutor();
+
                         @Override
                         public void onFadeIn() {
-                            Event event = new TrackStartedEvent(this, Music.this, track);
-                            getPlugin().getBot().getEventDispatcher().execute(event);
+                            executor.execute(() -> {
+                                Event event = new TrackStartedEvent(this, Music.this, track);
+                                getPlugin().getBot().getEventDispatcher().execute(event);
+                            });
                         }
 
                         @Override
                         public void onFadeOut() {
-                            // Check queue
-                            Pair<UserAssociation, Track> queuedPlay;
+                            executor.execute(this::advance);
+                        }
 
-                            while ((queuedPlay = getQueue(channel).poll()) != null) {
-                                UserAssociation userAssociation = queuedPlay.getLeft();
-                                Track track = queuedPlay.getRight();
+                        /**
+                         * Starts the next track in the channel's queue, then runs the fade-out tail.  The track is
+                         * found and opened on the playAsync stages; only attaching it runs on the channel's executor,
+                         * so a stop isn't held up behind the lookup.
+                         */
+                        private void advance() {
+                            ChannelState state = channelStates.getOrCreate(channel);
+                            Pair<UserAssociation, Track> queuedPlay = state.getQueue().poll();
+                            if (queuedPlay == null) {
+                                fade(null);
+                                return;
+                            }
 
-                                try {
-                                    Music.this.play(userAssociation, conversation, community,
-                                            (builder) -> builder
-                                                    .setBehavior(Play.Behavior.PASSIVE)
-                                                    .setFadeOut(fadeOut) // Chain fade-out so playlists can pick back up
-                                                    .setTrack(trackSelector -> trackSelector.find(track))
-                                    );
+                            UserAssociation userAssociation = queuedPlay.getLeft();
+                            Track track = queuedPlay.getRight();
+                            PrefetchedTrack prefetch = state.removePrefetch(queuedPlay);
 
-                                    ChatSender sender = userAssociation.getPlatformUser().createSender(conversation.getChat());
-                                    sender.sendMessage("(Playing \"" + track.getName() + "\")");
+                            PlayBuilder builder = new PlayBuilder(
+                                    userAssociation,
+                                    prefetch != null ? prefetch.getCommunity() : community,
+                                    channel,
+                                    conversation
+                            );
+
+                            builder.setBehavior(Play.Behavior.PASSIVE);
+                            builder.setFadeOut(fadeOut); // Chain fade-out so playlists can pick back up
+
+                            CompletableFuture<Play> future;
+
+                            try {
+                                // The next entries move into the lookahead window
+                                prefetchQueue(state);
+
+                                future = playAsync(builder, playBuilder -> {
+                                    if (prefetch != null)
+                                        playBuilder.setPrefetch(prefetch);
+                                    else
+                                        playBuilder.setTrack(trackSelector -> trackSelector.find(track));
+                                });
+                            } catch (RuntimeException e) {
+                                future = CompletableFuture.failedFuture(e);
+                            }
+
+                            future.whenCompleteAsync((play, throwable) -> {
+                                if (throwable == null) {
+                                    // The play owns the prefetch now; nothing below may close it
+                                    try {
+                                        ChatSender sender = userAssociation.getPlatformUser().createSender(conversation.getChat());
+                                        sender.sendMessage("(Playing \"" + track.getName() + "\")");
+                                    } finally {
+                                        fade(track);
+                                    }
+
+                                    return;
+                                }
 
-                                    break;
-                                } catch (IOException e) {
+                                if (prefetch != null) prefetch.close();
+
+                                Throwable cause = throwable instanceof CompletionException && throwable.getCause() != null
+                                        ? throwable.getCause() : throwable;
+
+                                if (cause instanceof CancellationException) {
+                                    // Stopped while it was being found or opened; the stop took care of the queue
+                                    fade(null);
+                                    return;
+                                }
+
+                                try {
                                     String message = "Couldn't play queued track \"" + track.getName() + "\"";
-                                    Logger.getGlobal().log(Level.WARNING, message, e);
+                                    Logger.getGlobal().log(Level.WARNING, message, cause);
                                     ChatSender sender = userAssociation.getPlatformUser().createSender(conversation.getChat());
                                     sender.sendMessage("(" + message + " )");
+                                } finally {
+                                    // Try the next entry
+                                    advance();
                                 }
-                            }
-
-                            Track nextTrack = queuedPlay != null ? queuedPlay.getRight() : null;
+                            }, executor);
+                        }
 
+                        private void fade(Track nextTrack) {
                             if (fadeOut != null) {
                                 fadeOut.accept(track, nextTrack);
                             }
@@ -899,6 +1645,9 @@ public class Music implements PluginReference, EventListener {
                         public void onFinished(double timePlayedInSeconds) {
                             double end = System.currentTimeMillis() / 1000D;
 
+                            // Stopped or skipped early: give up on caching the track
+                            if (isAbandonable(track, timePlayedInSeconds)) cancellation.cancel();
+
                             if (userAssociation.getUser().getType() == UserType.ANONYMOUS) return;
 
                             // clamp time played
@@ -921,15 +1670,17 @@ public class Music implements PluginReference, EventListener {
 
     private class TrackSelector implements Play.TrackSelector {
         private final Community community;
+        private final CancellationToken cancellation;
 
-        private TrackSelector(Community community) {
+        private TrackSelector(Community community, CancellationToken cancellation) {
             this.community = community;
+            this.cancellation = cancellation;
         }
 
         @Override
         public TrackSource.Result find(URL url) throws IllegalArgumentException {
             try {
-                return Music.this.findTrack(community, url);
+                return Music.this.findTrack(community, url, cancellation);
             } catch (IOException | TrackDownloadException e) {
                 throw new IllegalArgumentException("Problem finding track " + url.toExternalForm(), e);
             }
@@ -943,7 +1694,7 @@ public class Music implements PluginReference, EventListener {
                             throw new IllegalArgumentException("more than 1 result found");
                         })
                         .map(Track::toURL)
-                        .orElseThrow(() -> new IllegalArgumentException("no results found")));
+                        .orElseThrow(() -> new IllegalArgumentException("no results found")), cancellation);
             } catch (IOException | TrackDownloadException e) {
                 throw new IllegalArgumentException("Problem finding track", e);
             }
@@ -955,7 +1706,7 @@ public class Music implements PluginReference, EventListener {
                 return Music.this.findTrack(community, searchResult.getResults().stream()
                         .map(Track::toURL)
                         .findFirst()
-                        .orElseThrow(() -> new IllegalArgumentException("no results found")));
+                        .orElseThrow(() -> new IllegalArgumentException("no results found")), cancellation);
             } catch (IOException | TrackDownloadException e) {
                 throw new IllegalArgumentException("Problem finding track", e);
             }
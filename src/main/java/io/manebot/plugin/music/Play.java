@@ -4,6 +4,7 @@ import io.manebot.conversation.Conversation;
 import io.manebot.database.search.SearchResult;
 import io.manebot.plugin.audio.channel.AudioChannel;
 import io.manebot.plugin.audio.player.AudioPlayer;
+import io.manebot.plugin.music.channel.PrefetchedTrack;
 import io.manebot.plugin.music.database.model.Community;
 import io.manebot.plugin.music.database.model.Track;
 import io.manebot.plugin.music.repository.Repository;
@@ -120,6 +121,15 @@ public class Play {
          */
         Builder setTrack(Function<TrackSelector, TrackSource.Result> selector) throws IllegalArgumentException;
 
+        /**
+         * Sets the track this playback will be based on to a track that was prefetched ahead of time.  Its resolved
+         * result and opened provider are used if they are ready; otherwise the track is resolved and opened as usual.
+         * The prefetch is owned by this playback afterwards.
+         * @param prefetch prefetched track to play.
+         * @return Builder for continuance.
+         */
+        Builder setPrefetch(PrefetchedTrack prefetch);
+
         /**
          * Changes the download behavior of the track playback. When true, new downloads are allowed for the playback.
          * @param download true if downloads should be allowed, false otherwise.
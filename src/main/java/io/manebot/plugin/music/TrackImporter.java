@@ -0,0 +1,299 @@
+package io.manebot.plugin.music;
+
+import io.manebot.plugin.music.database.model.Community;
+import io.manebot.plugin.music.database.model.Track;
+import io.manebot.plugin.music.source.CancellationToken;
+import io.manebot.plugin.music.source.TrackSource;
+import io.manebot.plugin.music.source.TrackSourceDispatcher;
+import io.manebot.user.User;
+
+import java.net.URL;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Imports every track in a collection (a playlist, a channel) into a community.
+ *
+ * The collection is listed once by its track source.  Tracks the listing fully describes are created straight from
+ * it; the rest are looked up in parallel, at most <b>concurrency</b> at a time.  Tracks are created in batches of
+ * <b>batchSize</b>, one transaction per batch, and URLs the community already has are skipped.
+ */
+public class TrackImporter implements AutoCloseable {
+    private final TrackSourceDispatcher trackSources;
+    private final Executor executor;
+    private final int concurrency;
+    private final int batchSize;
+    private final Set<CancellationToken> running = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Creates a new importer.
+     * @param trackSources dispatcher to list and look up tracks with.
+     * @param executor executor to run imports and their lookups on.
+     * @param concurrency maximum number of lookups each import runs at once.
+     * @param batchSize number of tracks created per transaction.
+     */
+    public TrackImporter(TrackSourceDispatcher trackSources, Executor executor, int concurrency, int batchSize) {
+        if (concurrency <= 0) throw new IllegalArgumentException("concurrency");
+        if (batchSize <= 0) throw new IllegalArgumentException("batchSize");
+
+        this.trackSources = trackSources;
+        this.executor = executor;
+        this.concurrency = concurrency;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Imports the tracks in a collection.
+     * @param community community to import the tracks into.
+     * @param user user the new tracks are attributed to.
+     * @param url URL of the collection.  A URL no track source lists as a collection is imported as a single track.
+     * @param listener listener called with the progress of the import after each batch.
+     * @return future completed with the final progress of the import.
+     */
+    public CompletableFuture<Progress> importTracks(Community community, User user, URL url,
+                                                    Consumer<Progress> listener) {
+        CancellationToken cancellation = new CancellationToken();
+        running.add(cancellation);
+
+        CompletableFuture<Progress> future = CompletableFuture.supplyAsync(() -> {
+            try {
+                return run(community, user, url, listener, cancellation);
+            } catch (TrackDownloadException | InterruptedException e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+
+        return future.whenComplete((progress, throwable) -> running.remove(cancellation));
+    }
+
+    /**
+     * Cancels every running import.  Tracks already created are kept.
+     */
+    @Override
+    public void close() {
+        new ArrayList<>(running).forEach(CancellationToken::cancel);
+    }
+
+    private Progress run(Community community, User user, URL url, Consumer<Progress> listener,
+                         CancellationToken cancellation) throws TrackDownloadException, InterruptedException {
+        List<TrackSource.Listing> listings = trackSources.expand(url, cancellation);
+        if (listings == null)
+            listings = Collections.singletonList(new TrackSource.Listing(url, null, null));
+
+        Map<String, TrackSource.Listing> remaining = new LinkedHashMap<>();
+        for (TrackSource.Listing listing : listings)
+            remaining.putIfAbsent(listing.getUrl().toExternalForm(), listing);
+
+        Batch batch = new Batch(community, listener, remaining.size());
+
+        // Drop what the community already has before spending any lookups on it
+        List<String> urlStrings = new ArrayList<>(remaining.keySet());
+        for (int i = 0; i < urlStrings.size(); i += batchSize) {
+            Set<String> existing =
+                    community.getExistingUrls(urlStrings.subList(i, Math.min(urlStrings.size(), i + batchSize)));
+            remaining.keySet().removeAll(existing);
+            batch.skipped += existing.size();
+        }
+
+        // Listings that already name the track don't need a lookup
+        List<TrackSource.Listing> unresolved = new ArrayList<>();
+        for (TrackSource.Listing listing : remaining.values()) {
+            cancellation.throwIfCancelled();
+
+            if (listing.isComplete()) {
+                Track.Builder builder = new Track.DefaultBuilder(community, null, listing.getUrl());
+                builder.setName(listing.getName());
+                builder.setLength(listing.getLength());
+                builder.setUser(user);
+                batch.add(builder);
+            } else {
+                unresolved.add(listing);
+            }
+        }
+
+        // Everything else is looked up in parallel, and created as the lookups come back
+        BlockingQueue<Optional<Track.Builder>> resolved = new LinkedBlockingQueue<>();
+        Semaphore permits = new Semaphore(concurrency);
+        int outstanding = 0;
+
+        for (TrackSource.Listing listing : unresolved) {
+            while (!permits.tryAcquire(100L, TimeUnit.MILLISECONDS)) {
+                cancellation.throwIfCancelled();
+                outstanding -= batch.drain(resolved);
+            }
+
+            cancellation.throwIfCancelled();
+            outstanding++;
+
+            try {
+                executor.execute(() -> {
+                    try {
+                        resolved.add(Optional.of(resolve(community, user, listing, cancellation)));
+                    } catch (Throwable e) {
+                        Logger.getGlobal().log(Level.FINE, "Couldn't import " + listing.getUrl(), e);
+                        resolved.add(Optional.empty());
+                    } finally {
+                        permits.release();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                permits.release();
+                throw new CancellationException("importer is shutting down");
+            }
+
+            outstanding -= batch.drain(resolved);
+        }
+
+        while (outstanding > 0) {
+            Optional<Track.Builder> builder = resolved.poll(100L, TimeUnit.MILLISECONDS);
+            cancellation.throwIfCancelled();
+            if (builder == null) continue;
+
+            batch.add(builder.orElse(null));
+            outstanding--;
+        }
+
+        batch.flush();
+        return batch.snapshot();
+    }
+
+    private Track.Builder resolve(Community community, User user, TrackSource.Listing listing,
+                                  CancellationToken cancellation) {
+        TrackSource.Result result = trackSources.find(community, listing.getUrl(), cancellation);
+
+        Track.Builder builder = new Track.DefaultBuilder(community, null, result.getUrl());
+        builder.setUser(user);
+        result.build(builder);
+
+        if (builder.getName() == null) {
+            String name = listing.getName() != null ? listing.getName() : listing.getUrl().getPath();
+            builder.setName(name.length() > 0 ? name : listing.getUrl().toExternalForm());
+        }
+
+        return builder;
+    }
+
+    private class Batch {
+        private final Community community;
+        private final Consumer<Progress> listener;
+        private final int total;
+        private final List<Track.Builder> builders = new ArrayList<>();
+
+        private int imported = 0;
+        private int skipped = 0;
+        private int failed = 0;
+
+        private Batch(Community community, Consumer<Progress> listener, int total) {
+            this.community = community;
+            this.listener = listener;
+            this.total = total;
+        }
+
+        /**
+         * Adds a track to the batch, creating the batch once it is full.
+         * @param builder track to create, or null if the track couldn't be looked up.
+         */
+        private void add(Track.Builder builder) {
+            if (builder == null) {
+                failed++;
+                return;
+            }
+
+            builders.add(builder);
+            if (builders.size() >= batchSize) flush();
+        }
+
+        /**
+         * Adds every lookup that has completed so far.
+         * @param resolved completed lookups.
+         * @return number of lookups added.
+         */
+        private int drain(BlockingQueue<Optional<Track.Builder>> resolved) {
+            List<Optional<Track.Builder>> completed = new ArrayList<>();
+            resolved.drainTo(completed);
+            completed.forEach(builder -> add(builder.orElse(null)));
+            return completed.size();
+        }
+
+        private void flush() {
+            if (builders.size() <= 0) return;
+
+            List<Track> created = community.createTracks(builders);
+
+            // Lookups can land on a URL the community already has, such as the canonical form of a short link
+            imported += created.size();
+            skipped += builders.size() - created.size();
+            builders.clear();
+
+            try {
+                listener.accept(snapshot());
+            } catch (RuntimeException e) {
+                Logger.getGlobal().log(Level.WARNING, "Problem reporting import progress", e);
+            }
+        }
+
+        private Progress snapshot() {
+            return new Progress(total, imported, skipped, failed);
+        }
+    }
+
+    /**
+     * Progress of an import.
+     */
+    public static class Progress {
+        private final int total;
+        private final int imported;
+        private final int skipped;
+        private final int failed;
+
+        private Progress(int total, int imported, int skipped, int failed) {
+            this.total = total;
+            this.imported = imported;
+            this.skipped = skipped;
+            this.failed = failed;
+        }
+
+        /**
+         * Gets the number of distinct tracks in the collection.
+         * @return track count.
+         */
+        public int getTotal() {
+            return total;
+        }
+
+        /**
+         * Gets the number of tracks created so far.
+         * @return track count.
+         */
+        public int getImported() {
+            return imported;
+        }
+
+        /**
+         * Gets the number of tracks skipped so far because the community already had them.
+         * @return track count.
+         */
+        public int getSkipped() {
+            return skipped;
+        }
+
+        /**
+         * Gets the number of tracks that couldn't be looked up so far.
+         * @return track count.
+         */
+        public int getFailed() {
+            return failed;
+        }
+
+        /**
+         * Gets the number of tracks dealt with so far.
+         * @return track count.
+         */
+        public int getCompleted() {
+            return imported + skipped + failed;
+        }
+    }
+}
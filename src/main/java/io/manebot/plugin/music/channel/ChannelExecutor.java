@@ -0,0 +1,112 @@
+package io.manebot.plugin.music.channel;
+
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Serialized executor for the playback state transitions of a single channel.  Tasks run one at a time, in
+ * submission order, on threads borrowed from a shared backing executor; no thread is held while the channel is
+ * quiet.
+ *
+ * Callers on real-time threads (such as audio mixers) should only ever use <b>execute</b>, which never blocks.
+ */
+public class ChannelExecutor implements Executor {
+    private final Executor executor;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    private volatile Thread thread;
+
+    public ChannelExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        tasks.add(task);
+        schedule();
+    }
+
+    /**
+     * Runs a task on this executor and waits for its result.  If the calling thread is already running a task for
+     * this executor, the task is run immediately instead, so nested calls can't deadlock.
+     * @param supplier task to run.
+     * @param <T> result type.
+     * @return result of the task.
+     */
+    public <T> T call(Supplier<T> supplier) {
+        if (isCurrentThread())
+            return supplier.get();
+
+        FutureTask<T> task = new FutureTask<>(supplier::get);
+        execute(task);
+
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted waiting for channel task", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            else if (cause instanceof Error) throw (Error) cause;
+            else throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * Finds if the calling thread is currently running a task for this executor.
+     * @return true if the current thread is this executor's active thread, false otherwise.
+     */
+    public boolean isCurrentThread() {
+        return thread == Thread.currentThread();
+    }
+
+    /**
+     * Finds if this executor has tasks running or waiting to run.
+     * @return true if the executor is busy, false otherwise.
+     */
+    public boolean isBusy() {
+        return scheduled.get() || !tasks.isEmpty();
+    }
+
+    private void schedule() {
+        if (!scheduled.compareAndSet(false, true))
+            return;
+
+        try {
+            executor.execute(this::drain);
+        } catch (RejectedExecutionException ex) {
+            // The backing executor has been shut down; nothing is going to run these transitions.
+            scheduled.set(false);
+            tasks.clear();
+            Logger.getGlobal().log(Level.FINE, "Dropped channel tasks: executor rejected them", ex);
+        }
+    }
+
+    private void drain() {
+        thread = Thread.currentThread();
+
+        try {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (Throwable e) {
+                    Logger.getGlobal().log(Level.WARNING, "Problem running channel task", e);
+                }
+            }
+        } finally {
+            thread = null;
+            scheduled.set(false);
+
+            // Pick up anything submitted after our last poll but before we released the schedule flag
+            if (!tasks.isEmpty())
+                schedule();
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package io.manebot.plugin.music.channel;
+
+import io.manebot.plugin.audio.channel.AudioChannel;
+import io.manebot.plugin.music.Play;
+import io.manebot.plugin.music.database.model.Track;
+import io.manebot.plugin.music.playlist.Playlist;
+import io.manebot.plugin.music.source.CancellationToken;
+import io.manebot.tuple.Pair;
+import io.manebot.user.UserAssociation;
+
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
+
+/**
+ * Holds the music state of a single AudioChannel: the current play, the running playlist, and the user queue.
+ *
+ * All members are safe to read and change from any thread.  Playlist changes should go through the owning
+ * ChannelStateRegistry so that its secondary indexes are kept up to date.  Playback transitions (fade-outs,
+ * queue advancement, stops) should be run on this state's ChannelExecutor so they apply one at a time.
+ */
+public class ChannelState {
+    private final AudioChannel channel;
+    private final AtomicReference<Play> play = new AtomicReference<>();
+    private final AtomicReference<Playlist> playlist = new AtomicReference<>();
+    private final BlockingQueue<Pair<UserAssociation, Track>> queue;
+    private final Map<Pair<UserAssociation, Track>, PrefetchedTrack> prefetches =
+            Collections.synchronizedMap(new IdentityHashMap<>());
+    private final Map<CancellationToken, UserAssociation> pending = new ConcurrentHashMap<>();
+    private final ChannelExecutor executor;
+
+    private volatile long lastActive;
+
+    ChannelState(AudioChannel channel, Executor executor) {
+        this.channel = channel;
+        this.queue = new ArrayBlockingQueue<>(channel.getMaximumQueueSize());
+        this.executor = new ChannelExecutor(executor);
+
+        touch();
+    }
+
+    /**
+     * Gets the audio channel this state is associated with.
+     * @return AudioChannel instance.
+     */
+    public AudioChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Gets the current (most recently started) play on this channel.
+     * @return Play instance, or null if nothing is playing.
+     */
+    public Play getPlay() {
+        return play.get();
+    }
+
+    /**
+     * Sets the current play on this channel.
+     * @param play play to set.
+     */
+    public void setPlay(Play play) {
+        this.play.set(play);
+        touch();
+    }
+
+    /**
+     * Clears the current play on this channel, only if it is still the provided play.
+     * @param play play to clear.
+     * @return true if the play was cleared, false otherwise.
+     */
+    public boolean clearPlay(Play play) {
+        if (this.play.compareAndSet(play, null)) {
+            touch();
+            return true;
+        } else return false;
+    }
+
+    /**
+     * Gets the playlist running on this channel.
+     * @return Playlist instance, or null if no playlist is running.
+     */
+    public Playlist getPlaylist() {
+        return playlist.get();
+    }
+
+    boolean compareAndSetPlaylist(Playlist expected, Playlist playlist) {
+        if (this.playlist.compareAndSet(expected, playlist)) {
+            touch();
+            return true;
+        } else return false;
+    }
+
+    /**
+     * Gets the user queue on this channel.
+     * @return queue instance.
+     */
+    public BlockingQueue<Pair<UserAssociation, Track>> getQueue() {
+        return queue;
+    }
+
+    /**
+     * Gets the prefetch associated with a queue entry.
+     * @param entry queue entry instance.
+     * @return PrefetchedTrack instance, or null if there is none.
+     */
+    public PrefetchedTrack getPrefetch(Pair<UserAssociation, Track> entry) {
+        return prefetches.get(entry);
+    }
+
+    /**
+     * Associates a prefetch with a queue entry.  Entries are matched by identity, so the same track queued twice is
+     * prefetched twice.
+     * @param entry queue entry instance.
+     * @param prefetch prefetch to associate.
+     */
+    public void setPrefetch(Pair<UserAssociation, Track> entry, PrefetchedTrack prefetch) {
+        PrefetchedTrack previous = prefetches.put(entry, prefetch);
+        if (previous != null && previous != prefetch) previous.close();
+    }
+
+    /**
+     * Removes the prefetch associated with a queue entry, handing it to the caller.
+     * @param entry queue entry instance.
+     * @return PrefetchedTrack instance, or null if there was none.
+     */
+    public PrefetchedTrack removePrefetch(Pair<UserAssociation, Track> entry) {
+        return prefetches.remove(entry);
+    }
+
+    /**
+     * Closes and removes prefetches whose entries are no longer in the queue.
+     */
+    public void prunePrefetches() {
+        List<Pair<UserAssociation, Track>> entries;
+        synchronized (prefetches) {
+            entries = new ArrayList<>(prefetches.keySet());
+        }
+
+        for (Pair<UserAssociation, Track> entry : entries) {
+            if (queue.stream().noneMatch(queued -> queued == entry)) {
+                PrefetchedTrack prefetch = prefetches.remove(entry);
+                if (prefetch != null) prefetch.close();
+            }
+        }
+    }
+
+    /**
+     * Registers a play that is being resolved or opened for this channel, so it can be cancelled if the channel is
+     * stopped before the play starts.
+     * @param user user the play belongs to.
+     * @param cancellation token of the play.
+     */
+    public void addPending(UserAssociation user, CancellationToken cancellation) {
+        pending.put(cancellation, user);
+    }
+
+    /**
+     * Unregisters a pending play, once it has started or failed.
+     * @param cancellation token of the play.
+     */
+    public void removePending(CancellationToken cancellation) {
+        pending.remove(cancellation);
+    }
+
+    /**
+     * Cancels pending plays on this channel.
+     * @param filter filter selecting the users whose plays are cancelled.
+     * @return number of plays cancelled.
+     */
+    public int cancelPending(Predicate<UserAssociation> filter) {
+        int cancelled = 0;
+
+        for (Map.Entry<CancellationToken, UserAssociation> entry : pending.entrySet()) {
+            if (filter.test(entry.getValue()) && pending.remove(entry.getKey(), entry.getValue()) &&
+                    entry.getKey().cancel())
+                cancelled++;
+        }
+
+        return cancelled;
+    }
+
+    /**
+     * Gets the serialized executor used to apply playback transitions on this channel.
+     * @return ChannelExecutor instance.
+     */
+    public ChannelExecutor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Marks this state as recently used, postponing its eviction.
+     */
+    public void touch() {
+        this.lastActive = System.currentTimeMillis();
+    }
+
+    /**
+     * Gets the last time this state was used.
+     * @return last active time, in milliseconds since the epoch.
+     */
+    public long getLastActive() {
+        return lastActive;
+    }
+
+    /**
+     * Finds if this state holds nothing worth keeping: no play, no playlist, an empty queue, no pending plays and
+     * no pending transitions.
+     * @return true if the state is idle, false otherwise.
+     */
+    public boolean isIdle() {
+        return play.get() == null && playlist.get() == null && queue.isEmpty() && pending.isEmpty() &&
+                !executor.isBusy();
+    }
+}
@@ -0,0 +1,198 @@
+package io.manebot.plugin.music.channel;
+
+import io.manebot.platform.Platform;
+import io.manebot.plugin.audio.channel.AudioChannel;
+import io.manebot.plugin.music.playlist.Playlist;
+import io.manebot.user.User;
+import io.manebot.user.UserAssociation;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Concurrent registry of per-channel music state.  Running playlists are additionally indexed by their owning user
+ * and by the platform of their channel, and states belonging to idle channels can be evicted.
+ */
+public class ChannelStateRegistry {
+    private final Executor executor;
+    private final Map<AudioChannel, ChannelState> states = new ConcurrentHashMap<>();
+    private final Map<User, Set<Playlist>> playlistsByUser = new ConcurrentHashMap<>();
+    private final Map<Platform, Set<Playlist>> playlistsByPlatform = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a new registry.
+     * @param executor shared executor backing the per-channel ChannelExecutors.
+     */
+    public ChannelStateRegistry(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Gets the state of a channel, if one exists.
+     * @param channel channel to get the state of.
+     * @return ChannelState instance, or null if there is no state for the channel.
+     */
+    public ChannelState get(AudioChannel channel) {
+        if (channel == null) return null;
+        return states.get(channel);
+    }
+
+    /**
+     * Gets the state of a channel, creating it if needed.
+     * @param channel channel to get the state of.
+     * @return ChannelState instance.
+     */
+    public ChannelState getOrCreate(AudioChannel channel) {
+        ChannelState state = states.computeIfAbsent(
+                Objects.requireNonNull(channel),
+                key -> new ChannelState(key, executor)
+        );
+        state.touch();
+        return state;
+    }
+
+    /**
+     * Gets all channel states currently held by this registry.
+     * @return immutable collection of channel states.
+     */
+    public Collection<ChannelState> getStates() {
+        return Collections.unmodifiableCollection(states.values());
+    }
+
+    /**
+     * Gets all playlists currently registered to a channel.
+     * @return immutable snapshot of registered playlists.
+     */
+    public Collection<Playlist> getPlaylists() {
+        return Collections.unmodifiableList(states.values().stream()
+                .map(ChannelState::getPlaylist)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList()));
+    }
+
+    /**
+     * Gets all registered playlists owned by the specified user.
+     * @param user user to find playlists for.
+     * @return Stream of playlists.
+     */
+    public Stream<Playlist> getPlaylists(User user) {
+        Set<Playlist> playlists = user == null ? null : playlistsByUser.get(user);
+        if (playlists == null) return Stream.empty();
+        return new ArrayList<>(playlists).stream();
+    }
+
+    /**
+     * Gets all registered playlists running on channels of the specified platform.
+     * @param platform platform to find playlists for.
+     * @return Stream of playlists.
+     */
+    public Stream<Playlist> getPlaylists(Platform platform) {
+        Set<Playlist> playlists = platform == null ? null : playlistsByPlatform.get(platform);
+        if (playlists == null) return Stream.empty();
+        return new ArrayList<>(playlists).stream();
+    }
+
+    /**
+     * Registers a playlist to a channel, if no other playlist is registered to it.
+     * @param channel channel to register the playlist to.
+     * @param playlist playlist to register.
+     * @return true if the playlist was registered, false if another playlist is already registered.
+     */
+    public boolean setPlaylist(AudioChannel channel, Playlist playlist) {
+        ChannelState state = getOrCreate(channel);
+        if (!state.compareAndSetPlaylist(null, Objects.requireNonNull(playlist)))
+            return false;
+
+        index(playlistsByUser, getUser(playlist.getUser()), playlist);
+        index(playlistsByPlatform, channel.getPlatform(), playlist);
+        return true;
+    }
+
+    /**
+     * Unregisters a playlist from a channel, if it is still registered to it.
+     * @param channel channel to unregister the playlist from.
+     * @param playlist playlist to unregister.
+     * @return true if the playlist was unregistered, false otherwise.
+     */
+    public boolean removePlaylist(AudioChannel channel, Playlist playlist) {
+        ChannelState state = get(channel);
+        if (state == null || !state.compareAndSetPlaylist(playlist, null))
+            return false;
+
+        unindex(playlistsByUser, getUser(playlist.getUser()), playlist);
+        unindex(playlistsByPlatform, channel.getPlatform(), playlist);
+        return true;
+    }
+
+    /**
+     * Moves a registered playlist between users in the user index.
+     * @param playlist playlist being transferred.
+     * @param from previous owner.
+     * @param to new owner.
+     */
+    public void transferPlaylist(Playlist playlist, UserAssociation from, UserAssociation to) {
+        ChannelState state = get(playlist.getChannel());
+        if (state == null || state.getPlaylist() != playlist)
+            return;
+
+        unindex(playlistsByUser, getUser(from), playlist);
+        index(playlistsByUser, getUser(to), playlist);
+    }
+
+    /**
+     * Evicts the states of channels that have been idle for at least the specified time.
+     * @param idleMillis minimum idle time, in milliseconds.
+     * @return number of evicted states.
+     */
+    public int evictIdle(long idleMillis) {
+        long oldest = System.currentTimeMillis() - idleMillis;
+        int evicted = 0;
+
+        for (AudioChannel channel : new ArrayList<>(states.keySet())) {
+            boolean[] removed = new boolean[1];
+            states.computeIfPresent(channel, (key, state) -> {
+                if (state.isIdle() && state.getLastActive() <= oldest) {
+                    removed[0] = true;
+                    return null;
+                } else return state;
+            });
+
+            if (removed[0]) evicted++;
+        }
+
+        return evicted;
+    }
+
+    /**
+     * Removes all channel states and indexes.
+     */
+    public void clear() {
+        states.clear();
+        playlistsByUser.clear();
+        playlistsByPlatform.clear();
+    }
+
+    private static User getUser(UserAssociation association) {
+        return association == null ? null : association.getUser();
+    }
+
+    private static <K> void index(Map<K, Set<Playlist>> index, K key, Playlist playlist) {
+        if (key == null) return;
+        index.compute(key, (ignored, playlists) -> {
+            if (playlists == null) playlists = ConcurrentHashMap.newKeySet();
+            playlists.add(playlist);
+            return playlists;
+        });
+    }
+
+    private static <K> void unindex(Map<K, Set<Playlist>> index, K key, Playlist playlist) {
+        if (key == null) return;
+        index.computeIfPresent(key, (ignored, playlists) -> {
+            playlists.remove(playlist);
+            return playlists.isEmpty() ? null : playlists;
+        });
+    }
+}
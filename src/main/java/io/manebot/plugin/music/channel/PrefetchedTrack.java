@@ -0,0 +1,167 @@
+package io.manebot.plugin.music.channel;
+
+import io.manebot.plugin.audio.mixer.input.AudioProvider;
+import io.manebot.plugin.music.database.model.Community;
+import io.manebot.plugin.music.database.model.Track;
+import io.manebot.plugin.music.source.CancellationToken;
+import io.manebot.plugin.music.source.TrackSource;
+
+/**
+ * Holds a track that is about to play (queued, or next in a playlist) along with its resolved result and a provider
+ * opened ahead of time, so playback can begin as soon as the track is needed.
+ *
+ * Hand it to <b>Play.Builder.setPrefetch</b> to play it; close it to discard it.  Closing it also cancels any
+ * lookup or fetch still running for it.
+ */
+public class PrefetchedTrack implements AutoCloseable {
+    private final Community community;
+    private final Track track;
+    private final boolean canDownload;
+    private final CancellationToken cancellation = new CancellationToken();
+
+    private volatile TrackSource.Result result;
+    private State state = State.PENDING;
+    private AudioProvider provider;
+
+    public PrefetchedTrack(Community community, Track track, TrackSource.Result result, boolean canDownload) {
+        this.community = community;
+        this.track = track;
+        this.result = result;
+        this.canDownload = canDownload;
+    }
+
+    /**
+     * Gets the community the track was queued from.
+     * @return Community instance.
+     */
+    public Community getCommunity() {
+        return community;
+    }
+
+    /**
+     * Gets the track being prefetched.
+     * @return Track instance.
+     */
+    public Track getTrack() {
+        return track;
+    }
+
+    /**
+     * Gets the resolved result of the track.
+     * @return TrackSource.Result instance, or null if the track hasn't been resolved yet.
+     */
+    public TrackSource.Result getResult() {
+        return result;
+    }
+
+    /**
+     * Gets if the track may be streamed from its remote source when it isn't cached.
+     * @return true if downloading is allowed, false otherwise.
+     */
+    public boolean canDownload() {
+        return canDownload;
+    }
+
+    /**
+     * Gets the token cancelled when this prefetch is closed.  Work done to open the prefetch should observe it.
+     * @return CancellationToken instance.
+     */
+    public CancellationToken getCancellation() {
+        return cancellation;
+    }
+
+    /**
+     * Marks the prefetch as scheduled.
+     * @return true if the prefetch was pending and should now be scheduled, false otherwise.
+     */
+    public synchronized boolean schedule() {
+        if (state != State.PENDING) return false;
+        state = State.SCHEDULED;
+        return true;
+    }
+
+    /**
+     * Marks the prefetch as opening its provider.
+     * @return true if the prefetch should go ahead, false if it was taken or closed while it was waiting to run.
+     */
+    public synchronized boolean begin() {
+        if (state != State.SCHEDULED) return false;
+        state = State.OPENING;
+        return true;
+    }
+
+    /**
+     * Completes the prefetch.  If the prefetch was taken or closed in the meantime, the provider is closed instead.
+     * @param result resolved result, or null if the track couldn't be resolved.
+     * @param provider opened provider, or null if none could be opened.
+     */
+    public void complete(TrackSource.Result result, AudioProvider provider) {
+        synchronized (this) {
+            if (result != null) this.result = result;
+
+            if (state == State.OPENING) {
+                this.provider = provider;
+                this.state = provider != null ? State.READY : State.CLOSED;
+                notifyAll();
+                return;
+            }
+        }
+
+        closeQuietly(provider);
+    }
+
+    /**
+     * Takes the prefetched provider, waiting for it if it is currently being opened.  A prefetch that hasn't started
+     * yet is abandoned.  After this call the prefetch is closed.
+     * @return opened provider, which the caller now owns, or null if none is available.
+     */
+    public synchronized AudioProvider take() {
+        while (state == State.OPENING) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        AudioProvider provider = state == State.READY ? this.provider : null;
+        this.provider = null;
+        this.state = State.CLOSED;
+
+        return provider;
+    }
+
+    @Override
+    public void close() {
+        AudioProvider provider;
+
+        synchronized (this) {
+            provider = this.provider;
+            this.provider = null;
+            this.state = State.CLOSED;
+            notifyAll();
+        }
+
+        cancellation.cancel();
+        closeQuietly(provider);
+    }
+
+    private static void closeQuietly(AudioProvider provider) {
+        if (provider == null) return;
+
+        try {
+            provider.close();
+        } catch (Exception e) {
+            // ignore
+        }
+    }
+
+    private enum State {
+        PENDING,
+        SCHEDULED,
+        OPENING,
+        READY,
+        CLOSED
+    }
+}
@@ -4,12 +4,16 @@ import io.manebot.Bot;
 import io.manebot.command.executor.routed.RoutedCommandExecutor;
 import io.manebot.plugin.music.Music;
 import io.manebot.plugin.music.command.music.MusicCommunityCommand;
+import io.manebot.plugin.music.command.music.MusicFetcherCommand;
 import io.manebot.plugin.music.command.music.MusicRepositoryCommand;
+import io.manebot.plugin.music.command.music.MusicSchedulerCommand;
 import io.manebot.plugin.music.database.model.MusicManager;
 
 public class MusicCommand extends RoutedCommandExecutor {
     public MusicCommand(Music music, MusicManager manager, Bot bot) {
         route("community", new MusicCommunityCommand(music, manager, bot));
         route("repository", new MusicRepositoryCommand(manager));
+        route("scheduler", new MusicSchedulerCommand(music));
+        route("fetcher", new MusicFetcherCommand(music));
     }
 }
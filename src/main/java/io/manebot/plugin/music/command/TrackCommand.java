@@ -20,6 +20,7 @@ public class TrackCommand extends RoutedCommandExecutor {
         route("delete", new TrackDeleteCommand(music, database));
         route("history", new TrackHistoryCommand(music, database));
         route("loop", new TrackLoopCommand(music, database));
+        route("import", new TrackImportCommand(music, database));
     }
 
     @Override
@@ -0,0 +1,60 @@
+package io.manebot.plugin.music.command.music;
+
+import io.manebot.command.CommandSender;
+import io.manebot.command.exception.CommandExecutionException;
+import io.manebot.command.executor.chained.AnnotatedCommandExecutor;
+import io.manebot.command.executor.chained.argument.CommandArgumentLabel;
+
+import io.manebot.plugin.music.Music;
+import io.manebot.plugin.music.source.BufferPool;
+import io.manebot.plugin.music.source.RangedFetcher;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+public class MusicFetcherCommand extends AnnotatedCommandExecutor {
+    private static final int MAX_HOSTS = 10;
+
+    private final Music music;
+
+    public MusicFetcherCommand(Music music) {
+        this.music = music;
+    }
+
+    @Command(description = "Gets download fetcher information", permission = "music.fetcher.info")
+    public void info(CommandSender sender,
+                     @CommandArgumentLabel.Argument(label = "info") String info) throws CommandExecutionException {
+        RangedFetcher.Statistics statistics = music.getRangedFetcher().getStatistics();
+        sender.sendDetails(builder -> builder
+                .name("Fetcher").key("HTTP")
+                .item("Requests", statistics.getRequests())
+                .item("Retries", statistics.getRetries())
+                .item("Re-resolves", statistics.getResolves())
+                .item("Failures", statistics.getFailures())
+                .item("Hedges", statistics.getHedges())
+                .item("Hedges won", statistics.getHedgesWon())
+        );
+
+        BufferPool bufferPool = music.getRangedFetcher().getBufferPool();
+        sender.sendDetails(builder -> builder
+                .name("Buffers").key(bufferPool.getBufferSize() / 1024 + " KiB")
+                .item("Idle", bufferPool.getIdle())
+                .item("Acquired", bufferPool.getAcquired())
+                .item("Allocated", bufferPool.getAllocated())
+        );
+
+        // Most recently used hosts first
+        List<Map.Entry<String, RangedFetcher.HostStatistics>> hosts =
+                new ArrayList<>(music.getRangedFetcher().getHostStatistics().entrySet());
+        Collections.reverse(hosts);
+
+        for (Map.Entry<String, RangedFetcher.HostStatistics> host : hosts.subList(0, Math.min(hosts.size(), MAX_HOSTS)))
+            sender.sendDetails(builder -> builder
+                    .name("Host").key(host.getKey())
+                    .item("Throughput", String.format("%.0f KiB/s", host.getValue().getThroughput() / 1024D))
+                    .item("Latency", String.format("%.0fms", host.getValue().getLatencyMillis()))
+            );
+    }
+}
@@ -0,0 +1,33 @@
+package io.manebot.plugin.music.command.music;
+
+import io.manebot.command.CommandSender;
+import io.manebot.command.exception.CommandExecutionException;
+import io.manebot.command.executor.chained.AnnotatedCommandExecutor;
+import io.manebot.command.executor.chained.argument.CommandArgumentLabel;
+
+import io.manebot.plugin.music.Music;
+import io.manebot.plugin.music.scheduler.JobScheduler;
+
+public class MusicSchedulerCommand extends AnnotatedCommandExecutor {
+    private final Music music;
+
+    public MusicSchedulerCommand(Music music) {
+        this.music = music;
+    }
+
+    @Command(description = "Gets job scheduler information", permission = "music.scheduler.info")
+    public void info(CommandSender sender,
+                     @CommandArgumentLabel.Argument(label = "info") String info) throws CommandExecutionException {
+        for (JobScheduler.Pool pool : JobScheduler.Pool.values()) {
+            JobScheduler.Statistics statistics = music.getScheduler().getStatistics(pool);
+            sender.sendDetails(builder -> builder
+                    .name("Pool").key(pool.name())
+                    .item("Workers", statistics.getRunning() + "/" + statistics.getWorkers())
+                    .item("Queued", statistics.getQueueDepth())
+                    .item("Completed", statistics.getCompleted())
+                    .item("Average wait", statistics.getAverageWaitMillis() + "ms")
+                    .item("Oldest wait", statistics.getOldestWaitMillis() + "ms")
+            );
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package io.manebot.plugin.music.command.track;
+
+import io.manebot.command.CommandSender;
+import io.manebot.command.exception.CommandArgumentException;
+import io.manebot.command.exception.CommandExecutionException;
+import io.manebot.command.executor.chained.AnnotatedCommandExecutor;
+import io.manebot.command.executor.chained.argument.CommandArgumentURL;
+import io.manebot.database.Database;
+import io.manebot.plugin.music.Music;
+import io.manebot.plugin.music.TrackImporter;
+import io.manebot.plugin.music.database.model.Community;
+import io.manebot.security.Grant;
+
+import java.net.URL;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TrackImportCommand extends AnnotatedCommandExecutor {
+    private static final long PROGRESS_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    private final Music music;
+    private final Database database;
+
+    public TrackImportCommand(Music music, Database database) {
+        this.music = music;
+        this.database = database;
+    }
+
+    @Command(description = "Imports every track in a playlist or channel", permission = "music.track.import",
+            defaultGrant = Grant.DENY)
+    public void importTracks(CommandSender sender, @CommandArgumentURL.Argument URL url)
+            throws CommandExecutionException {
+        Community community = music.getCommunity(sender);
+        if (community == null)
+            throw new CommandArgumentException("There is no music community associated with this conversation.");
+
+        sender.sendMessage("(Importing tracks from " + url.toExternalForm() + "...)");
+
+        // Large playlists take a while; report now and then rather than after every batch
+        AtomicLong lastReport = new AtomicLong(System.currentTimeMillis());
+
+        music.getTrackImporter().importTracks(community, sender.getUser(), url, progress -> {
+            long now = System.currentTimeMillis();
+            long last = lastReport.get();
+
+            if (now - last >= PROGRESS_INTERVAL_MILLIS && lastReport.compareAndSet(last, now))
+                sender.sendMessage("(Imported " + progress.getCompleted() + " of " + progress.getTotal() +
+                        " tracks...)");
+        }).whenComplete((progress, throwable) -> reply(sender, progress, throwable));
+    }
+
+    private static void reply(CommandSender sender, TrackImporter.Progress progress, Throwable throwable) {
+        if (throwable instanceof CompletionException && throwable.getCause() != null)
+            throwable = throwable.getCause();
+
+        if (throwable instanceof CancellationException)
+            sender.sendMessage("(Import was stopped)");
+        else if (throwable != null)
+            sender.sendMessage("(Couldn't import tracks: " + throwable.getMessage() + ")");
+        else
+            sender.sendMessage("(Imported " + progress.getImported() + " tracks; " +
+                    progress.getSkipped() + " already existed, " +
+                    progress.getFailed() + " couldn't be found)");
+    }
+}
@@ -18,12 +18,13 @@ import io.manebot.plugin.music.playlist.Playlist;
 import io.manebot.tuple.Pair;
 import io.manebot.user.UserAssociation;
 
-import java.io.IOException;
 import java.net.URL;
 import java.sql.SQLException;
 import java.util.*;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -40,24 +41,14 @@ public class TrackQueueCommand extends AnnotatedCommandExecutor {
     public void queue(CommandSender sender,
                      @CommandArgumentURL.Argument() URL url)
             throws CommandExecutionException {
-        Play play;
-
-        try {
-            play = music.play(
-                    sender.getPlatformUser().getAssociation(),
-                    sender.getConversation(),
-                    builder -> builder
-                            .setTrack(trackSelector -> trackSelector.find(url))
-                            .setBehavior(Play.Behavior.QUEUED)
-            );
-        } catch (IOException e) {
-            throw new CommandExecutionException(e);
-        }
-
-        if (play.wasQueued())
-            sender.sendMessage("(Queued \"" + play.getTrack().getName() + "\")");
-        else
-            sender.sendMessage("(Playing \"" + play.getTrack().getName() + "\")");
+        // Finding the track can take a while; reply once it is playing or queued
+        music.playAsync(
+                sender.getPlatformUser().getAssociation(),
+                sender.getConversation(),
+                builder -> builder
+                        .setTrack(trackSelector -> trackSelector.find(url))
+                        .setBehavior(Play.Behavior.QUEUED)
+        ).whenComplete((play, throwable) -> reply(sender, play, throwable));
     }
 
     @Command(description = "Plays or queues a track by a query", permission = "music.track.play")
@@ -75,21 +66,24 @@ public class TrackQueueCommand extends AnnotatedCommandExecutor {
             throw new CommandExecutionException(e);
         }
 
-        Play play;
+        music.playAsync(
+                sender.getPlatformUser().getAssociation(),
+                sender.getConversation(),
+                builder -> builder
+                        .setTrack(trackSelector -> trackSelector.find(searchResult))
+                        .setBehavior(Play.Behavior.QUEUED)
+        ).whenComplete((play, throwable) -> reply(sender, play, throwable));
+    }
 
-        try {
-            play = music.play(
-                    sender.getPlatformUser().getAssociation(),
-                    sender.getConversation(),
-                    builder -> builder
-                            .setTrack(trackSelector -> trackSelector.find(searchResult))
-                            .setBehavior(Play.Behavior.QUEUED)
-            );
-        } catch (IOException e) {
-            throw new CommandExecutionException(e);
-        }
+    private static void reply(CommandSender sender, Play play, Throwable throwable) {
+        if (throwable instanceof CompletionException && throwable.getCause() != null)
+            throwable = throwable.getCause();
 
-        if (play.wasQueued())
+        if (throwable instanceof CancellationException)
+            sender.sendMessage("(Track was stopped before it started)");
+        else if (throwable != null)
+            sender.sendMessage("(Couldn't play track: " + throwable.getMessage() + ")");
+        else if (play.wasQueued())
             sender.sendMessage("(Queued \"" + play.getTrack().getName() + "\")");
         else
             sender.sendMessage("(Playing \"" + play.getTrack().getName() + "\")");
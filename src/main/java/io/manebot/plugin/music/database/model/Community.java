@@ -4,13 +4,17 @@ import io.manebot.database.Database;
 import io.manebot.database.model.Platform;
 import io.manebot.database.model.TimedRow;
 import io.manebot.database.model.User;
+import io.manebot.plugin.music.util.UrlCanonicalizer;
 
 import javax.persistence.*;
+import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.sql.SQLException;
-import java.util.Collection;
-import java.util.Set;
+import java.util.*;
 import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -67,19 +71,35 @@ public class Community extends TimedRow {
     }
 
     /**
-     * Finds a track, allowing for a slash to be contained within the URL.
+     * Finds a track, allowing for a slash to be contained within the URL.  Any URL the track is known by (see
+     * <b>TrackAlias</b>) finds it, as does any other link to the same content.
      * @param urlString URL string to find.
      * @return Track, if one is available.
      */
     public Track findTrack(String urlString) {
-        Set<String> urlStrings = Stream.of(urlString)
-                .flatMap(x -> Stream.of(x, trimTrailingSlashes(x), appendTrailingSlash(x)))
-                .collect(Collectors.toSet());
-        if (urlStrings.size() <= 0) {
-            return null;
+        UUID aliasUuid = getAliasUUID(urlString);
+
+        Track track = aliasUuid != null ? getAliasedTrack(aliasUuid) : null;
+        if (track == null) {
+            Set<String> urlStrings = Stream.of(urlString)
+                    .flatMap(x -> Stream.of(x, trimTrailingSlashes(x), appendTrailingSlash(x)))
+                    .collect(Collectors.toSet());
+            if (urlStrings.size() <= 0) {
+                return null;
+            }
+
+            track = getFirstTrack(urlStrings);
+
+            // Tracks from before aliases existed get theirs the first time they're found
+            if (track != null && aliasUuid != null) {
+                try {
+                    addAliases(track, Collections.singleton(new URL(urlString)));
+                } catch (MalformedURLException | RuntimeException e) {
+                    Logger.getGlobal().log(Level.FINE, "Problem adding alias " + urlString, e);
+                }
+            }
         }
 
-        Track track = getFirstTrack(urlStrings);
         if (track != null && track.isDeleted()) {
             throw new IllegalArgumentException("Track was deleted.");
         }
@@ -87,6 +107,61 @@ public class Community extends TimedRow {
         return track;
     }
 
+    /**
+     * Finds the track known by a canonical key.
+     * @param uuid UUID of the canonical key.
+     * @return Track, if one is available.
+     */
+    public Track getAliasedTrack(UUID uuid) {
+        return database.execute(s -> {
+            return s.createQuery(
+                    "SELECT a.track FROM " + TrackAlias.class.getName() + " a " +
+                            "INNER JOIN a.community c " +
+                            "WHERE c.communityId = :communityId AND a.uuid = :uuid",
+                    Track.class
+            ).setParameter("communityId", communityId).setParameter("uuid", uuid)
+                    .setMaxResults(1)
+                    .getResultStream()
+                    .findFirst()
+                    .orElse(null);
+        });
+    }
+
+    /**
+     * Records URLs a track is known by, so it can be found by them (or by any other link to the same content).  URLs
+     * already known, by this track or another, are left alone.
+     * @param track track to add aliases to.
+     * @param urls URLs the track is known by.
+     */
+    public void addAliases(Track track, Collection<URL> urls) {
+        Map<UUID, String> keys = getAliasKeys(urls);
+        if (keys.size() <= 0) {
+            return;
+        }
+
+        try {
+            database.executeTransaction(s -> {
+                persistAliases(s, track, keys);
+            });
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void persistAliases(EntityManager s, Track track, Map<UUID, String> keys) {
+        Set<UUID> existing = new HashSet<>(s.createQuery(
+                "SELECT a.uuid FROM " + TrackAlias.class.getName() + " a " +
+                        "INNER JOIN a.community c " +
+                        "WHERE c.communityId = :communityId AND a.uuid IN :uuids",
+                UUID.class
+        ).setParameter("communityId", communityId).setParameter("uuids", keys.keySet()).getResultList());
+
+        for (Map.Entry<UUID, String> key : keys.entrySet()) {
+            if (existing.contains(key.getKey())) continue;
+            s.persist(new TrackAlias(database, this, track, key.getKey(), key.getValue()));
+        }
+    }
+
     public Track getFirstTrack(Set<String> urlStrings) {
         return database.execute(s -> {
             return s.createQuery(
@@ -122,6 +197,7 @@ public class Community extends TimedRow {
                     );
 
                     s.persist(newTrack);
+                    persistAliases(s, newTrack, getAliasKeys(Collections.singleton(builder.getUrl())));
 
                     for (String tagName : builder.getTags()) {
                         Tag tag = s.createQuery(
@@ -149,6 +225,132 @@ public class Community extends TimedRow {
         }
     }
 
+    /**
+     * Finds which of the provided URLs already have a track in this community, deleted or not.  Like <b>findTrack</b>,
+     * a URL matches with or without a trailing slash.
+     * @param urlStrings URL strings to look for.
+     * @return the URL strings provided that have a track.
+     */
+    public Set<String> getExistingUrls(Collection<String> urlStrings) {
+        Set<String> variants = urlStrings.stream()
+                .flatMap(x -> Stream.of(x, trimTrailingSlashes(x), appendTrailingSlash(x)))
+                .collect(Collectors.toSet());
+        if (variants.size() <= 0) {
+            return Collections.emptySet();
+        }
+
+        Set<String> existing = database.execute(s -> {
+            return s.createQuery(
+                    "SELECT x.url FROM " + Track.class.getName() + " x " +
+                            "INNER JOIN x.community c " +
+                            "WHERE c.communityId = :communityId AND x.url IN :urls",
+                    String.class
+            ).setParameter("communityId", communityId).setParameter("urls", variants)
+                    .getResultStream()
+                    .map(Community::trimTrailingSlashes)
+                    .collect(Collectors.toSet());
+        });
+
+        // ...and any that are links to content a track is already known by
+        Map<String, UUID> aliasUuids = new HashMap<>();
+        for (String urlString : urlStrings) {
+            UUID uuid = getAliasUUID(urlString);
+            if (uuid != null) aliasUuids.put(urlString, uuid);
+        }
+
+        Set<UUID> aliased = aliasUuids.size() <= 0 ? Collections.emptySet() : database.execute(s -> {
+            return new HashSet<>(s.createQuery(
+                    "SELECT a.uuid FROM " + TrackAlias.class.getName() + " a " +
+                            "INNER JOIN a.community c " +
+                            "WHERE c.communityId = :communityId AND a.uuid IN :uuids",
+                    UUID.class
+            ).setParameter("communityId", communityId).setParameter("uuids", new HashSet<>(aliasUuids.values()))
+                    .getResultList());
+        });
+
+        return urlStrings.stream()
+                .filter(x -> existing.contains(trimTrailingSlashes(x)) || aliased.contains(aliasUuids.get(x)))
+                .collect(Collectors.toSet());
+    }
+
+    /**
+     * Creates many tracks in a single transaction, skipping any whose URL already has a track in this community.
+     * Tags are looked up (or created) once for the whole batch.
+     * @param builders builders describing the tracks to create.
+     * @return tracks created.
+     */
+    public List<Track> createTracks(Collection<Track.Builder> builders) {
+        Map<String, Track.Builder> pending = new LinkedHashMap<>();
+        for (Track.Builder builder : builders)
+            pending.putIfAbsent(builder.getUrl().toExternalForm(), builder);
+
+        if (pending.size() <= 0) {
+            return Collections.emptyList();
+        }
+
+        Set<String> existing = getExistingUrls(pending.keySet());
+
+        try {
+            return database.executeTransaction(s -> {
+                Set<String> tagNames = pending.values().stream()
+                        .flatMap(builder -> builder.getTags().stream())
+                        .collect(Collectors.toSet());
+
+                Map<String, Tag> tags = new HashMap<>();
+                if (tagNames.size() > 0) {
+                    s.createQuery(
+                            "SELECT x FROM " + Tag.class.getName() + " x " +
+                            "WHERE x.name IN :names",
+                            Tag.class
+                    ).setParameter("names", tagNames).getResultStream()
+                            .forEach(tag -> tags.put(tag.getName(), tag));
+                }
+
+                List<Track> created = new ArrayList<>();
+                Set<UUID> aliased = new HashSet<>();
+
+                for (Map.Entry<String, Track.Builder> entry : pending.entrySet()) {
+                    if (existing.contains(entry.getKey())) continue;
+
+                    // Two links to the same content in one batch make one track
+                    Map<UUID, String> aliasKeys = getAliasKeys(Collections.singleton(entry.getValue().getUrl()));
+                    if (!aliased.addAll(aliasKeys.keySet())) continue;
+
+                    Track.Builder builder = entry.getValue();
+                    Track newTrack = new Track(
+                            database,
+                            builder.getUrl(),
+                            this,
+                            builder.getLength(),
+                            builder.getName(),
+                            builder.getUser()
+                    );
+
+                    s.persist(newTrack);
+                    persistAliases(s, newTrack, aliasKeys);
+
+                    for (String tagName : builder.getTags()) {
+                        Tag tag = tags.get(tagName);
+
+                        if (tag == null) {
+                            tag = new Tag(database, tagName, builder.getUser());
+                            s.persist(tag);
+                            tags.put(tagName, tag);
+                        }
+
+                        s.persist(new TrackTag(database, newTrack, tag, builder.getUser()));
+                    }
+
+                    created.add(newTrack);
+                }
+
+                return created;
+            });
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     public Collection<CommunityAssociation> getAssociations() {
         return database.execute(s -> {
             return s.createQuery(
@@ -231,6 +433,27 @@ public class Community extends TimedRow {
         }
     }
 
+    private static Map<UUID, String> getAliasKeys(Collection<URL> urls) {
+        Map<UUID, String> keys = new LinkedHashMap<>();
+        for (URL url : urls) {
+            String key = UrlCanonicalizer.getKey(url);
+            keys.putIfAbsent(toAliasUUID(key), key);
+        }
+        return keys;
+    }
+
+    private static UUID getAliasUUID(String urlString) {
+        try {
+            return toAliasUUID(UrlCanonicalizer.getKey(new URL(urlString)));
+        } catch (MalformedURLException e) {
+            return null;
+        }
+    }
+
+    private static UUID toAliasUUID(String key) {
+        return UUID.nameUUIDFromBytes(key.getBytes(StandardCharsets.UTF_8));
+    }
+
     public static String trimTrailingSlashes(String urlString) {
         while (urlString.endsWith("/") && urlString.length() > 1) {
             urlString = urlString.substring(0, urlString.length() - 1);
@@ -15,6 +15,7 @@ import java.util.Collection;
 import java.util.List;
 import java.util.Objects;
 import java.util.Set;
+import java.util.UUID;
 import java.util.stream.Collectors;
 
 public final class MusicManager {
@@ -191,4 +192,72 @@ public final class MusicManager {
             throw new RuntimeException(e);
         }
     }
+
+    public TrackMetadata getTrackMetadata(String source, UUID uuid) {
+        return database.execute(s -> {
+            return s.createQuery(
+                    "SELECT x FROM " + TrackMetadata.class.getName() + " x " +
+                    "WHERE x.source = :source AND x.uuid = :uuid", TrackMetadata.class)
+                    .setParameter("source", source)
+                    .setParameter("uuid", uuid)
+                    .getResultStream()
+                    .findFirst()
+                    .orElse(null);
+        });
+    }
+
+    public TrackMetadata saveTrackMetadata(String source, UUID uuid, String url, String payload, long expires) {
+        try {
+            return database.executeTransaction(s -> {
+                TrackMetadata metadata = s.createQuery(
+                        "SELECT x FROM " + TrackMetadata.class.getName() + " x " +
+                        "WHERE x.source = :source AND x.uuid = :uuid", TrackMetadata.class)
+                        .setParameter("source", source)
+                        .setParameter("uuid", uuid)
+                        .getResultStream()
+                        .findFirst()
+                        .orElse(null);
+
+                if (metadata == null) {
+                    metadata = new TrackMetadata(database, source, uuid, url, payload, expires);
+                    s.persist(metadata);
+                } else {
+                    metadata.update(payload, expires);
+                }
+
+                return metadata;
+            });
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public int deleteTrackMetadata(String source, UUID uuid) {
+        try {
+            return database.executeTransaction(s -> {
+                return s.createQuery(
+                        "DELETE FROM " + TrackMetadata.class.getName() + " x " +
+                        "WHERE x.source = :source AND x.uuid = :uuid")
+                        .setParameter("source", source)
+                        .setParameter("uuid", uuid)
+                        .executeUpdate();
+            });
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public int deleteExpiredTrackMetadata(long now) {
+        try {
+            return database.executeTransaction(s -> {
+                return s.createQuery(
+                        "DELETE FROM " + TrackMetadata.class.getName() + " x " +
+                        "WHERE x.expires <= :now")
+                        .setParameter("now", now)
+                        .executeUpdate();
+            });
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
 }
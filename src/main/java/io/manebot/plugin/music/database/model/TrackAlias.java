@@ -0,0 +1,82 @@
+package io.manebot.plugin.music.database.model;
+
+import io.manebot.database.Database;
+import io.manebot.database.model.TimedRow;
+
+import javax.persistence.*;
+import java.util.UUID;
+
+/**
+ * A URL a track has been found by, keyed by its canonical form (see <b>UrlCanonicalizer</b>), so the track can be
+ * found again by any link to the same content without asking a track source.
+ */
+@Entity
+@Table(
+        indexes = {
+                @Index(columnList = "communityId,uuid", unique = true),
+                @Index(columnList = "trackId")
+        },
+        uniqueConstraints = {@UniqueConstraint(columnNames ={"communityId","uuid"})}
+)
+public class TrackAlias extends TimedRow {
+    @Transient
+    private final Database database;
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @Column()
+    private int aliasId;
+
+    @ManyToOne(optional = false)
+    @JoinColumn(name = "communityId")
+    private Community community;
+
+    @ManyToOne(optional = false)
+    @JoinColumn(name = "trackId")
+    private Track track;
+
+    /**
+     * UUID of the canonical key
+     */
+    @Column(columnDefinition = "BINARY(16)", nullable = false)
+    private UUID uuid;
+
+    /**
+     * Canonical key, kept for reference
+     */
+    @Column(length = 1024, nullable = false)
+    private String url;
+
+    public TrackAlias(Database database) {
+        this.database = database;
+    }
+
+    public TrackAlias(Database database, Community community, Track track, UUID uuid, String url) {
+        this(database);
+
+        this.community = community;
+        this.track = track;
+        this.uuid = uuid;
+        this.url = url;
+    }
+
+    public int getAliasId() {
+        return aliasId;
+    }
+
+    public Community getCommunity() {
+        return community;
+    }
+
+    public Track getTrack() {
+        return track;
+    }
+
+    public UUID getUuid() {
+        return uuid;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+}
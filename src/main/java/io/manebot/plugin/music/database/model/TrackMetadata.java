@@ -0,0 +1,98 @@
+package io.manebot.plugin.music.database.model;
+
+import io.manebot.database.Database;
+import io.manebot.database.model.TimedRow;
+
+import javax.persistence.*;
+import java.util.UUID;
+
+/**
+ * Metadata resolved by a track source for a URL, kept so the URL doesn't have to be resolved again until the media
+ * locations in it expire.
+ */
+@Entity
+@Table(
+        indexes = {
+                @Index(columnList = "source,uuid", unique = true),
+                @Index(columnList = "expires")
+        },
+        uniqueConstraints = {@UniqueConstraint(columnNames ={"source","uuid"})}
+)
+public class TrackMetadata extends TimedRow {
+    @Transient
+    private final Database database;
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @Column()
+    private int metadataId;
+
+    /**
+     * Name of the track source that resolved the URL
+     */
+    @Column(length = 64, nullable = false)
+    private String source;
+
+    @Column(columnDefinition = "BINARY(16)", nullable = false)
+    private UUID uuid;
+
+    @Column(length = 1024, nullable = false)
+    private String url;
+
+    /**
+     * Source-specific metadata, as JSON
+     */
+    @Lob
+    @Column(nullable = false)
+    private String payload;
+
+    /**
+     * Time the metadata expires, in milliseconds since the epoch
+     */
+    @Column(nullable = false)
+    private long expires;
+
+    public TrackMetadata(Database database) {
+        this.database = database;
+    }
+
+    public TrackMetadata(Database database, String source, UUID uuid, String url, String payload, long expires) {
+        this(database);
+
+        this.source = source;
+        this.uuid = uuid;
+        this.url = url;
+        this.payload = payload;
+        this.expires = expires;
+    }
+
+    public int getMetadataId() {
+        return metadataId;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public UUID getUuid() {
+        return uuid;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public String getPayload() {
+        return payload;
+    }
+
+    public long getExpires() {
+        return expires;
+    }
+
+    void update(String payload, long expires) {
+        this.payload = payload;
+        this.expires = expires;
+        setUpdated(System.currentTimeMillis());
+    }
+}
@@ -5,12 +5,15 @@ import io.manebot.plugin.audio.channel.AudioChannel;
 import io.manebot.plugin.audio.player.AudioPlayer;
 import io.manebot.plugin.music.Music;
 import io.manebot.plugin.music.Play;
+import io.manebot.plugin.music.channel.PrefetchedTrack;
 import io.manebot.plugin.music.database.model.Community;
 import io.manebot.plugin.music.database.model.Track;
 
 import io.manebot.user.UserAssociation;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class DefaultPlaylist implements Playlist {
     private final Music music;
@@ -23,11 +26,16 @@ public class DefaultPlaylist implements Playlist {
     /**
      * A Set of active players on this playlist
      */
-    private final Set<AudioPlayer> players = new HashSet<>();
+    private final Set<AudioPlayer> players = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean running = new AtomicBoolean(false);
 
-    private UserAssociation userAssociation;
-    private Track track;
-    private boolean running = false;
+    private volatile UserAssociation userAssociation;
+    private volatile Track track;
+
+    /**
+     * The next track in the queue, being opened ahead of the current track's fade-out
+     */
+    private volatile PrefetchedTrack preroll;
 
     public DefaultPlaylist(Music music,
                            UserAssociation userAssociation,
@@ -77,18 +85,17 @@ public class DefaultPlaylist implements Playlist {
 
     @Override
     public boolean isRunning() {
-        return running;
+        return running.get();
     }
 
     @Override
     public boolean setRunning(boolean running) {
-        if (this.running != running) {
-            this.running = running;
-
+        if (this.running.compareAndSet(!running, running)) {
             if (running) {
                 listeners.forEach(listener -> listener.onStarted(this));
                 next();
             } else {
+                discardPreroll();
                 getPlayers().forEach(AudioPlayer::kill);
                 listeners.forEach(listener -> listener.onStopped(this));
             }
@@ -122,33 +129,73 @@ public class DefaultPlaylist implements Playlist {
             throw new NoSuchElementException();
         }
 
+        PrefetchedTrack preroll = this.preroll;
+        this.preroll = null;
+
         try {
             Track oldTrack = this.track;
             this.track = Objects.requireNonNull(queue.next());
 
+            // The queue may have changed since the pre-roll was started
+            if (preroll != null && !preroll.getTrack().equals(this.track)) {
+                preroll.close();
+                preroll = null;
+            }
+
+            PrefetchedTrack prefetch = preroll;
             Play play = music.play(getUser(), getConversation(), builder -> {
                 builder.setBehavior(Play.Behavior.PASSIVE); // important to not step on a fade-out
                 builder.setFadeOut((track, nextTrack) -> {
-                    if (nextTrack == null) { // See setFadeOut documentation
-                        next();
+                    // Runs on the channel's executor; see setFadeOut documentation
+                    if (nextTrack != null) {
+                        // A queued track is taking over; the pre-roll would go stale by the time we get it back
+                        discardPreroll();
+                    } else if (isRunning()) {
+                        if (hasNext()) next();
+                        else setRunning(false);
                     }
                 });
-                builder.setTrack(selector -> selector.find(track));
+
+                if (prefetch != null)
+                    builder.setPrefetch(prefetch);
+                else
+                    builder.setTrack(selector -> selector.find(track));
             });
 
+            // The play owns the pre-roll now, and closing it would stop the track that just started
+            preroll = null;
+
             players.add(play.getPlayer());
             play.getPlayer().getFuture().thenAccept(players::remove);
 
+            // Get the following track ready before this one fades out
+            Track upcoming = queue.hasNext() ? queue.peek() : null;
+            if (upcoming != null && isRunning()) {
+                this.preroll = music.preroll(play, getCommunity(), upcoming);
+                if (!isRunning()) discardPreroll(); // stopped meanwhile
+            }
+
             if (oldTrack != this.track)
                 listeners.forEach(listener -> listener.onTrackChanged(this, track));
 
             return play.getTrack();
         } catch (Exception e) {
+            // Only the pre-roll no play took over is ours to close
+            if (preroll != null) preroll.close();
+
             setRunning(false);
             throw new RuntimeException("Problem playing playlist track", e);
         }
     }
 
+    private void discardPreroll() {
+        PrefetchedTrack preroll = this.preroll;
+        this.preroll = null;
+
+        if (preroll != null)
+            preroll.close();
+    }
+
     @Override
     public boolean hasNext() {
         return queue.hasNext();
@@ -0,0 +1,319 @@
+package io.manebot.plugin.music.scheduler;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs background jobs (downloads, transcodes, warmups) on bounded worker pools: one for I/O-bound work, one for
+ * CPU-bound work, and one for transcodes fed by a playing track, which run at playback speed and mostly wait on it.
+ *
+ * Queued jobs are taken highest priority first.  Waiting jobs age: every <b>agingMillis</b> spent in the queue
+ * promotes a job by one priority class, so background work is delayed behind playback but never starved by it.
+ */
+public class JobScheduler implements AutoCloseable {
+    private final Map<Pool, Lane> lanes = new EnumMap<>(Pool.class);
+    private final long agingMillis;
+
+    /**
+     * Creates a new scheduler.
+     * @param ioWorkers maximum number of concurrently running I/O jobs.
+     * @param cpuWorkers maximum number of concurrently running CPU jobs.
+     * @param teeWorkers maximum number of concurrently running transcodes fed by a playing track.
+     * @param agingMillis time a job must wait to be promoted by one priority class, in milliseconds.
+     */
+    public JobScheduler(int ioWorkers, int cpuWorkers, int teeWorkers, long agingMillis) {
+        if (agingMillis <= 0) throw new IllegalArgumentException("agingMillis");
+
+        this.agingMillis = agingMillis;
+
+        lanes.put(Pool.IO, new Lane(Pool.IO, ioWorkers));
+        lanes.put(Pool.CPU, new Lane(Pool.CPU, cpuWorkers));
+        lanes.put(Pool.TEE, new Lane(Pool.TEE, teeWorkers));
+    }
+
+    /**
+     * Submits a job to the scheduler.
+     * @param pool pool to run the job on.
+     * @param priority priority class of the job.
+     * @param callable job to run.
+     * @param <T> result type.
+     * @return future completed with the result of the job.  Cancelling it before the job starts removes the job.
+     * @throws RejectedExecutionException if the scheduler has been closed.
+     */
+    public <T> CompletableFuture<T> submit(Pool pool, Priority priority, Callable<T> callable)
+            throws RejectedExecutionException {
+        Job<T> job = new Job<>(Objects.requireNonNull(priority), Objects.requireNonNull(callable));
+        lanes.get(pool).enqueue(job);
+        return job.future;
+    }
+
+    /**
+     * Gets a snapshot of the statistics of a pool.
+     * @param pool pool to get statistics for.
+     * @return Statistics instance.
+     */
+    public Statistics getStatistics(Pool pool) {
+        return lanes.get(pool).getStatistics();
+    }
+
+    @Override
+    public void close() {
+        lanes.values().forEach(Lane::close);
+    }
+
+    private class Lane {
+        private final Pool pool;
+        private final int workers;
+        private final ExecutorService executor;
+        private final List<Job<?>> queue = new LinkedList<>();
+
+        private final AtomicLong completed = new AtomicLong();
+        private final AtomicLong started = new AtomicLong();
+        private final AtomicLong totalWaitMillis = new AtomicLong();
+
+        private int running = 0;
+        private long sequence = 0;
+        private boolean closed = false;
+
+        private Lane(Pool pool, int workers) {
+            if (workers <= 0) throw new IllegalArgumentException("workers");
+
+            this.pool = pool;
+            this.workers = workers;
+            // The lane bounds how many run at once; idle threads are let go, since the tee lane is wide
+            this.executor = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+                    .setDaemon(true)
+                    .setPriority(Thread.MIN_PRIORITY)
+                    .setNameFormat("music-" + pool.name().toLowerCase() + "-%d")
+                    .build());
+        }
+
+        private synchronized void enqueue(Job<?> job) {
+            if (closed) throw new RejectedExecutionException(pool.name() + " pool is closed");
+
+            job.sequence = sequence++;
+            queue.add(job);
+
+            if (running < workers) {
+                running++;
+                executor.execute(this::work);
+            }
+        }
+
+        private synchronized Job<?> take() {
+            long now = System.currentTimeMillis();
+            Job<?> best = null;
+            long bestScore = Long.MAX_VALUE;
+
+            Iterator<Job<?>> iterator = queue.iterator();
+            while (iterator.hasNext()) {
+                Job<?> job = iterator.next();
+
+                // Cancelled while waiting
+                if (job.future.isDone()) {
+                    iterator.remove();
+                    continue;
+                }
+
+                // Lower is better; waiting lowers the score by one priority class per aging interval
+                long score = job.priority.ordinal() * agingMillis - (now - job.queued);
+                if (best == null || score < bestScore || (score == bestScore && job.sequence < best.sequence)) {
+                    best = job;
+                    bestScore = score;
+                }
+            }
+
+            if (best == null) {
+                running--;
+                return null;
+            }
+
+            queue.remove(best);
+            return best;
+        }
+
+        private void work() {
+            Job<?> job;
+            while ((job = take()) != null) {
+                long waited = System.currentTimeMillis() - job.queued;
+                totalWaitMillis.addAndGet(waited);
+                started.incrementAndGet();
+
+                try {
+                    job.run();
+                } catch (Throwable e) {
+                    Logger.getGlobal().log(Level.WARNING, "Problem running " + pool + " job", e);
+                } finally {
+                    completed.incrementAndGet();
+                }
+            }
+        }
+
+        private synchronized Statistics getStatistics() {
+            long now = System.currentTimeMillis();
+            long oldestWait = queue.stream().mapToLong(job -> now - job.queued).max().orElse(0L);
+            long startedCount = started.get();
+
+            return new Statistics(
+                    queue.size(),
+                    running,
+                    workers,
+                    completed.get(),
+                    startedCount > 0 ? totalWaitMillis.get() / startedCount : 0L,
+                    oldestWait
+            );
+        }
+
+        private void close() {
+            List<Job<?>> cancelled;
+
+            synchronized (this) {
+                closed = true;
+                cancelled = new ArrayList<>(queue);
+                queue.clear();
+            }
+
+            cancelled.forEach(job -> job.future.cancel(false));
+            executor.shutdownNow();
+        }
+    }
+
+    private static class Job<T> {
+        private final Priority priority;
+        private final Callable<T> callable;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+        private final long queued = System.currentTimeMillis();
+        private long sequence;
+
+        private Job(Priority priority, Callable<T> callable) {
+            this.priority = priority;
+            this.callable = callable;
+        }
+
+        private void run() {
+            if (future.isDone()) return;
+
+            try {
+                future.complete(callable.call());
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Worker pools a job can run on.
+     */
+    public enum Pool {
+        /**
+         * Jobs mostly waiting on the network or storage, such as resolving or fetching a track.
+         */
+        IO,
+
+        /**
+         * Jobs mostly decoding, resampling and encoding audio.
+         */
+        CPU,
+
+        /**
+         * Transcodes fed by a track as it plays.  They take as long as the track does, mostly waiting on playback, so
+         * they get a lane of their own instead of holding CPU workers.
+         */
+        TEE
+    }
+
+    /**
+     * Priority classes of jobs, most urgent first.
+     */
+    public enum Priority {
+        /**
+         * Work for a track that is playing right now.
+         */
+        PLAYING,
+
+        /**
+         * Work for a track that is queued to play next.
+         */
+        QUEUED,
+
+        /**
+         * Speculative background work, such as warming caches.
+         */
+        WARMUP
+    }
+
+    /**
+     * Snapshot of the state of a worker pool.
+     */
+    public static class Statistics {
+        private final int queueDepth;
+        private final int running;
+        private final int workers;
+        private final long completed;
+        private final long averageWaitMillis;
+        private final long oldestWaitMillis;
+
+        private Statistics(int queueDepth, int running, int workers, long completed,
+                           long averageWaitMillis, long oldestWaitMillis) {
+            this.queueDepth = queueDepth;
+            this.running = running;
+            this.workers = workers;
+            this.completed = completed;
+            this.averageWaitMillis = averageWaitMillis;
+            this.oldestWaitMillis = oldestWaitMillis;
+        }
+
+        /**
+         * Gets the number of jobs waiting to run.
+         * @return queue depth.
+         */
+        public int getQueueDepth() {
+            return queueDepth;
+        }
+
+        /**
+         * Gets the number of active workers.
+         * @return active worker count.
+         */
+        public int getRunning() {
+            return running;
+        }
+
+        /**
+         * Gets the maximum number of workers.
+         * @return worker limit.
+         */
+        public int getWorkers() {
+            return workers;
+        }
+
+        /**
+         * Gets the number of jobs that have finished running.
+         * @return completed job count.
+         */
+        public long getCompleted() {
+            return completed;
+        }
+
+        /**
+         * Gets the average time jobs have waited in the queue before starting.
+         * @return average wait time, in milliseconds.
+         */
+        public long getAverageWaitMillis() {
+            return averageWaitMillis;
+        }
+
+        /**
+         * Gets how long the longest-waiting queued job has been waiting.
+         * @return oldest wait time, in milliseconds.
+         */
+        public long getOldestWaitMillis() {
+            return oldestWaitMillis;
+        }
+    }
+}
@@ -8,6 +8,8 @@ import io.manebot.plugin.music.config.*;
 import java.io.*;
 
 import java.net.*;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
 import java.util.Collections;
 
 import java.util.Map;
@@ -62,6 +64,18 @@ public interface AudioProtocol {
         return openProvider(inputStream, null, bufferSize);
     }
     
+    /**
+     * Opens an audio provider from the specified channel.  The demuxer may seek the channel, so containers that keep
+     * their index at the end (such as MP4) don't have to be read through to the end before they can play.
+     * @param channel seekable channel of encoded samples to read from.
+     * @param format format name of the channel (typically, the file extension of the container format).  Can be null.
+     * @param bufferSize buffer size to use, in bytes.
+     * @return AudioProvider instance.
+     */
+    default AudioProvider openProvider(SeekableByteChannel channel, String format, int bufferSize) throws IOException {
+        return openProvider(Channels.newInputStream(channel), format, bufferSize);
+    }
+
     /**
      * Opens an audio provider from the specified input stream, guessing the format and buffer size as necessary.
      * @param inputStream input stream of encoded samples to read from.
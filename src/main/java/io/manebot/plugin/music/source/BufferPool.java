@@ -0,0 +1,102 @@
+package io.manebot.plugin.music.source;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of fixed-size buffers, so streams reading large ranges don't each allocate buffers the size of the range.
+ *
+ * Up to <b>maxBuffers</b> released buffers are kept for reuse.  A buffer acquired while the pool is empty is newly
+ * allocated, and one released while the pool is full is left to the garbage collector, so the pool never refuses or
+ * blocks; it only bounds what it holds on to.
+ */
+public class BufferPool {
+    private final int bufferSize;
+    private final int maxBuffers;
+    private final Deque<ByteBuffer> buffers = new ArrayDeque<>();
+
+    private final AtomicLong acquired = new AtomicLong();
+    private final AtomicLong allocated = new AtomicLong();
+
+    /**
+     * Creates a new buffer pool.
+     * @param bufferSize size of each buffer.
+     * @param maxBuffers maximum number of idle buffers kept for reuse.
+     */
+    public BufferPool(int bufferSize, int maxBuffers) {
+        if (bufferSize <= 0) throw new IllegalArgumentException("bufferSize");
+        if (maxBuffers < 0) throw new IllegalArgumentException("maxBuffers");
+
+        this.bufferSize = bufferSize;
+        this.maxBuffers = maxBuffers;
+    }
+
+    /**
+     * Gets the size of each buffer in this pool.
+     * @return buffer size in bytes.
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Acquires a buffer.  Buffers are array-backed, so they can be filled straight from an InputStream.
+     * @return cleared buffer of {@link #getBufferSize()} bytes.
+     */
+    public ByteBuffer acquire() {
+        acquired.incrementAndGet();
+
+        ByteBuffer buffer;
+        synchronized (buffers) {
+            buffer = buffers.pollFirst();
+        }
+
+        if (buffer == null) {
+            allocated.incrementAndGet();
+            buffer = ByteBuffer.allocate(bufferSize);
+        }
+
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool.  The buffer must not be used again by whoever released it.
+     * @param buffer buffer acquired from this pool.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() != bufferSize) return;
+
+        synchronized (buffers) {
+            if (buffers.size() < maxBuffers) buffers.addFirst(buffer);
+        }
+    }
+
+    /**
+     * Gets the number of idle buffers in the pool.
+     * @return buffer count.
+     */
+    public int getIdle() {
+        synchronized (buffers) {
+            return buffers.size();
+        }
+    }
+
+    /**
+     * Gets the number of buffers acquired from the pool.
+     * @return acquisition count.
+     */
+    public long getAcquired() {
+        return acquired.get();
+    }
+
+    /**
+     * Gets the number of buffers the pool has had to allocate, because it had none idle.
+     * @return allocation count.
+     */
+    public long getAllocated() {
+        return allocated.get();
+    }
+}
@@ -0,0 +1,93 @@
+package io.manebot.plugin.music.source;
+
+import io.manebot.plugin.audio.mixer.input.AudioProvider;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Wraps an AudioProvider reading from a remote source, so cancelling the play closes the source (aborting whoever is
+ * blocked reading it).  The cancellation listener is unregistered when the provider is closed, so a token that
+ * outlives the provider doesn't keep its source reachable.
+ */
+final class CancellableAudioProvider implements AudioProvider {
+    private final AudioProvider provider;
+    private final Closeable source;
+    private final CancellationToken.Registration registration;
+
+    private CancellableAudioProvider(AudioProvider provider, Closeable source,
+                                     CancellationToken.Registration registration) {
+        this.provider = provider;
+        this.source = source;
+        this.registration = registration;
+    }
+
+    /**
+     * Opens a provider on a source, closing the source when the play is cancelled.
+     * @param cancellation token cancelled when the play is no longer wanted.
+     * @param source source the provider reads from.
+     * @param opener opener of the provider.
+     * @return AudioProvider instance.
+     * @throws IOException if the provider couldn't be opened; the source is closed.
+     */
+    static AudioProvider open(CancellationToken cancellation, Closeable source, Opener opener) throws IOException {
+        CancellationToken.Registration registration = cancellation.onCancel(() -> closeQuietly(source));
+
+        try {
+            return new CancellableAudioProvider(opener.open(), source, registration);
+        } catch (IOException | RuntimeException e) {
+            registration.close();
+            closeQuietly(source);
+            throw e;
+        }
+    }
+
+    @Override
+    public int getChannels() {
+        return provider.getChannels();
+    }
+
+    @Override
+    public int getSampleRate() {
+        return provider.getSampleRate();
+    }
+
+    @Override
+    public AudioFormat getFormat() {
+        return provider.getFormat();
+    }
+
+    @Override
+    public int available() {
+        return provider.available();
+    }
+
+    @Override
+    public int read(float[] buffer, int offset, int len) throws IOException {
+        return provider.read(buffer, offset, len);
+    }
+
+    @Override
+    public void close() throws Exception {
+        registration.close();
+
+        try {
+            provider.close();
+        } finally {
+            closeQuietly(source);
+        }
+    }
+
+    private static void closeQuietly(Closeable source) {
+        try {
+            source.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    interface Opener {
+        AudioProvider open() throws IOException;
+    }
+}
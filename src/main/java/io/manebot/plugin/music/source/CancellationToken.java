@@ -0,0 +1,108 @@
+package io.manebot.plugin.music.source;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Signals that the work done on behalf of a play (resolving, fetching, caching) is no longer wanted.
+ *
+ * Long-running work either polls <b>isCancelled</b> or registers a listener with <b>onCancel</b> to release what it
+ * is blocked on, such as a child process or a socket.  Listeners run once, on the thread that cancels the token.
+ */
+public class CancellationToken {
+    /**
+     * A token that is never cancelled.
+     */
+    public static final CancellationToken NONE = new CancellationToken() {
+        @Override
+        public boolean cancel() {
+            return false;
+        }
+
+        @Override
+        public Registration onCancel(Runnable listener) {
+            return () -> {};
+        }
+    };
+
+    private final List<Runnable> listeners = new ArrayList<>();
+    private volatile boolean cancelled = false;
+
+    /**
+     * Finds if this token has been cancelled.
+     * @return true if cancelled, false otherwise.
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Cancels this token, running its listeners.
+     * @return true if the token was cancelled by this call, false if it already was.
+     */
+    public boolean cancel() {
+        List<Runnable> listeners;
+
+        synchronized (this) {
+            if (cancelled) return false;
+            cancelled = true;
+
+            listeners = new ArrayList<>(this.listeners);
+            this.listeners.clear();
+        }
+
+        listeners.forEach(CancellationToken::run);
+        return true;
+    }
+
+    /**
+     * Registers a listener to run when this token is cancelled.  If it already is, the listener runs immediately.
+     * @param listener listener to run.
+     * @return Registration to close once the listener is no longer needed.
+     */
+    public Registration onCancel(Runnable listener) {
+        synchronized (this) {
+            if (!cancelled) {
+                listeners.add(listener);
+                return () -> {
+                    synchronized (CancellationToken.this) {
+                        listeners.remove(listener);
+                    }
+                };
+            }
+        }
+
+        run(listener);
+        return () -> {};
+    }
+
+    /**
+     * Throws if this token has been cancelled.
+     * @throws CancellationException if the token has been cancelled.
+     */
+    public void throwIfCancelled() throws CancellationException {
+        if (cancelled) throw new CancellationException("cancelled");
+    }
+
+    private static void run(Runnable listener) {
+        try {
+            listener.run();
+        } catch (Throwable e) {
+            Logger.getGlobal().log(Level.WARNING, "Problem running cancellation listener", e);
+        }
+    }
+
+    /**
+     * Registration of a cancellation listener.
+     */
+    public interface Registration extends AutoCloseable {
+        /**
+         * Unregisters the listener.
+         */
+        @Override
+        void close();
+    }
+}
@@ -0,0 +1,116 @@
+package io.manebot.plugin.music.source;
+
+import io.manebot.plugin.music.config.AudioDownloadFormat;
+import io.manebot.plugin.music.config.AudioFormat;
+
+import java.util.Locale;
+
+/**
+ * Prefers audio-only formats that play without resampling, in a codec the cache can take as-is.
+ *
+ * Sample rate weighs the most: a format already at the mixer's rate skips the resampler for the whole track.  Codec
+ * comes next, as Opus is both the best quality per bit and the usual cache codec, so cached copies can be remuxed
+ * rather than re-encoded.  Bitrate only decides between otherwise equal formats, and stops counting past
+ * <b>BITRATE_CEILING</b>.
+ */
+public class DefaultFormatPolicy implements FormatPolicy {
+    private static final double BITRATE_CEILING = 256D;
+
+    private static final double AUDIO_ONLY = 40D;
+    private static final double HAS_VIDEO = -30D;
+    private static final double OPUS = 30D;
+    private static final double VORBIS = 15D;
+    private static final double AAC = 10D;
+    private static final double SAMPLE_RATE_MATCH = 40D;
+    private static final double SAMPLE_RATE_MISMATCH = -20D;
+    private static final double CHANNELS_MATCH = 5D;
+    private static final double CHANNELS_MISMATCH = -5D;
+    private static final double CACHE_CODEC_MATCH = 25D;
+    private static final double BITRATE = 30D;
+    private static final double UNKNOWN_BITRATE = -10D;
+
+    @Override
+    public void score(YoutubeDLTrackSource.FormatOption option, Context context, Score score) {
+        String codec = getCodec(option.getAudioCodec());
+
+        if ("none".equals(codec)) {
+            score.exclude("no audio");
+            return;
+        }
+
+        // YouTube throttles its DASH audio formats
+        if ("youtube".equalsIgnoreCase(context.getExtractor()) && "DASH audio".equals(option.getNote())) {
+            score.exclude("throttled DASH audio");
+            return;
+        }
+
+        String videoCodec = option.getVideoCodec();
+        if ("none".equalsIgnoreCase(videoCodec))
+            score.add(AUDIO_ONLY, "audio only");
+        else if (videoCodec != null || option.getVideoBitrate() > 0)
+            score.add(HAS_VIDEO, "carries video");
+
+        switch (codec == null ? "" : codec) {
+            case "opus":
+                score.add(OPUS, "opus");
+                break;
+            case "vorbis":
+                score.add(VORBIS, "vorbis");
+                break;
+            case "aac":
+                score.add(AAC, "aac");
+                break;
+            default:
+                break;
+        }
+
+        AudioFormat playbackFormat = context.getPlaybackFormat();
+        if (playbackFormat != null) {
+            // Opus always decodes at 48kHz, whatever the source said
+            int sampleRate = "opus".equals(codec) ? 48000 : option.getSampleRate();
+
+            if (sampleRate == playbackFormat.getSampleRate())
+                score.add(SAMPLE_RATE_MATCH, sampleRate + "Hz needs no resampling");
+            else if (sampleRate > 0)
+                score.add(SAMPLE_RATE_MISMATCH, "resampled " + sampleRate + "Hz to " +
+                        playbackFormat.getSampleRate() + "Hz");
+
+            if (option.getChannels() == playbackFormat.getChannels())
+                score.add(CHANNELS_MATCH, option.getChannels() + "ch");
+            else if (option.getChannels() > 0)
+                score.add(CHANNELS_MISMATCH, "remixed " + option.getChannels() + "ch to " +
+                        playbackFormat.getChannels() + "ch");
+        }
+
+        AudioDownloadFormat downloadFormat = context.getDownloadFormat();
+        if (codec != null && downloadFormat != null && codec.equals(getCodec(downloadFormat.getAudioCodec())))
+            score.add(CACHE_CODEC_MATCH, "same codec as the cache");
+
+        if (option.getAudioBitrate() > 0)
+            score.add(BITRATE * Math.min(option.getAudioBitrate(), BITRATE_CEILING) / BITRATE_CEILING,
+                    String.format("%.0fkbps", option.getAudioBitrate()));
+        else
+            score.add(UNKNOWN_BITRATE, "unknown bitrate");
+    }
+
+    /**
+     * Normalizes a codec name, as youtube-dl reports it (such as "mp4a.40.2") or as FFmpeg names its encoder (such as
+     * "libopus").
+     * @param codec codec name.
+     * @return normalized codec name, or null if unknown.
+     */
+    private static String getCodec(String codec) {
+        if (codec == null) return null;
+
+        codec = codec.trim().toLowerCase(Locale.ROOT);
+        if (codec.isEmpty()) return null;
+
+        if (codec.startsWith("lib")) codec = codec.substring(3);
+        if (codec.startsWith("mp4a") || codec.startsWith("aac") || codec.equals("fdk_aac")) return "aac";
+        if (codec.startsWith("opus")) return "opus";
+        if (codec.startsWith("vorbis")) return "vorbis";
+        if (codec.startsWith("mp3")) return "mp3";
+
+        return codec;
+    }
+}
@@ -15,6 +15,7 @@ import org.bytedeco.javacpp.avformat;
 import java.io.*;
 
 import java.net.*;
+import java.nio.channels.SeekableByteChannel;
 import java.util.*;
 
 public class FFmpegAudioProtocol implements AudioProtocol {
@@ -79,6 +80,16 @@ public class FFmpegAudioProtocol implements AudioProtocol {
         }
     }
     
+    @Override
+    public AudioProvider openProvider(SeekableByteChannel channel, String format, int bufferSize) throws IOException {
+        try {
+            // the channel is handed to FFmpeg's custom IO, so its seek callback can reposition the channel
+            return openProvider(FFmpegIO.openChannel(channel, FFmpegIO.DEFAULT_BUFFER_SIZE), format);
+        } catch (FFmpegException e) {
+            throw new IOException(e);
+        }
+    }
+
     @Override
     public AudioProvider openProvider(InputStream inputStream) throws IOException {
         return openProvider(inputStream, FFmpegIO.DEFAULT_BUFFER_SIZE);
@@ -0,0 +1,207 @@
+package io.manebot.plugin.music.source;
+
+import io.manebot.plugin.music.TrackDownloadException;
+
+import java.net.URL;
+import java.net.http.HttpTimeoutException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers recent lookup failures so retrying them doesn't cost a youtube-dl run each time.
+ *
+ * A URL that failed is refused for a while, the wait doubling with every further failure.  Failures that aren't
+ * specific to the URL (timeouts, extraction errors, rate limits) also count against the site the URL is on; after
+ * <b>breakerThreshold</b> of them in a row the site's circuit opens, and every lookup on it is refused until the
+ * circuit's own backoff passes.  One lookup is then let through to probe the site: success closes the circuit, and
+ * failure opens it again for twice as long.
+ */
+public class FailureCache {
+    // youtube-dl errors that only concern the URL looked up, not the health of the site
+    private static final List<String> URL_ERRORS = Arrays.asList(
+            "video unavailable",
+            "not available",
+            "private video",
+            "has been removed",
+            "copyright",
+            "does not exist",
+            "http error 404",
+            "age-restricted",
+            "confirm your age",
+            "members-only",
+            "unsupported url",
+            "not a valid url",
+            "live event will begin",
+            "premieres in",
+            "geo restricted",
+            "geo-restricted"
+    );
+
+    private final int capacity;
+    private final long backoffMillis;
+    private final long maxBackoffMillis;
+    private final int breakerThreshold;
+    private final long breakerOpenMillis;
+
+    private final Map<String, Failure> urls;
+    private final Map<String, Circuit> circuits = new HashMap<>();
+
+    /**
+     * Creates a new failure cache.
+     * @param capacity maximum number of failed URLs remembered.
+     * @param backoffMillis time a URL is refused after its first failure.
+     * @param maxBackoffMillis longest time a URL, or a site, is refused.
+     * @param breakerThreshold failures in a row that open a site's circuit.
+     * @param breakerOpenMillis time a site's circuit first stays open.
+     */
+    public FailureCache(int capacity, long backoffMillis, long maxBackoffMillis,
+                        int breakerThreshold, long breakerOpenMillis) {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity");
+        if (breakerThreshold <= 0) throw new IllegalArgumentException("breakerThreshold");
+
+        this.capacity = capacity;
+        this.backoffMillis = backoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        this.breakerThreshold = breakerThreshold;
+        this.breakerOpenMillis = breakerOpenMillis;
+        this.urls = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Failure> eldest) {
+                return size() > FailureCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * Checks that a URL may be looked up.
+     * @param url URL about to be looked up.
+     * @throws TrackDownloadException if the URL, or its site, failed recently enough to be refused.
+     */
+    public synchronized void check(URL url) throws TrackDownloadException {
+        long now = System.currentTimeMillis();
+
+        Failure failure = urls.get(url.toExternalForm());
+        if (failure != null && now < failure.until) {
+            throw new TrackDownloadException("Couldn't find this track a moment ago (" + failure.message +
+                    "); try again in " + describe(failure.until - now));
+        }
+
+        String site = getSite(url);
+        Circuit circuit = circuits.get(site);
+        if (circuit != null && circuit.trips > 0) {
+            if (now < circuit.until) {
+                throw new TrackDownloadException(site + " lookups are failing (" + circuit.message +
+                        "); try again in " + describe(circuit.until - now));
+            }
+
+            // Let this lookup probe the site; everyone else keeps waiting until it reports back (or should have)
+            circuit.until = now + getBackoff(breakerOpenMillis, circuit.trips);
+        }
+    }
+
+    /**
+     * Records a successful lookup.
+     * @param url URL looked up.
+     */
+    public synchronized void success(URL url) {
+        urls.remove(url.toExternalForm());
+        circuits.remove(getSite(url));
+    }
+
+    /**
+     * Records a failed lookup.
+     * @param url URL looked up.
+     * @param e reason the lookup failed.
+     */
+    public synchronized void failure(URL url, TrackDownloadException e) {
+        long now = System.currentTimeMillis();
+        String message = getMessage(e);
+
+        Failure failure = urls.computeIfAbsent(url.toExternalForm(), key -> new Failure());
+        failure.count++;
+        failure.until = now + getBackoff(backoffMillis, failure.count);
+        failure.message = message;
+
+        String site = getSite(url);
+
+        // youtube-dl got far enough to tell us about the URL, so the site itself is working
+        if (isUrlError(e)) {
+            circuits.remove(site);
+            return;
+        }
+
+        Circuit circuit = circuits.computeIfAbsent(site, key -> new Circuit());
+        circuit.failures++;
+        circuit.message = message;
+
+        // A probe that fails opens the circuit again right away
+        if (circuit.trips > 0 || circuit.failures >= breakerThreshold) {
+            circuit.trips++;
+            circuit.until = now + getBackoff(breakerOpenMillis, circuit.trips);
+        }
+    }
+
+    private long getBackoff(long base, int count) {
+        long backoff = base << Math.min(count - 1, 20);
+        return Math.min(backoff, maxBackoffMillis);
+    }
+
+    private static boolean isUrlError(TrackDownloadException e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof HttpTimeoutException) return false;
+
+            String message = cause.getMessage();
+            if (message == null) continue;
+
+            String lowercase = message.toLowerCase(Locale.ROOT);
+            if (URL_ERRORS.stream().anyMatch(lowercase::contains)) return true;
+        }
+
+        return false;
+    }
+
+    private static String getMessage(Throwable e) {
+        String message = e.getMessage();
+        if (message == null && e.getCause() != null) message = e.getCause().getMessage();
+        if (message == null) return e.getClass().getSimpleName();
+
+        message = message.trim();
+        return message.length() > 200 ? message.substring(0, 200) + "..." : message;
+    }
+
+    /**
+     * Finds the site a URL is on, which is what circuits are kept for.
+     * @param url URL.
+     * @return site name, such as "youtube.com".
+     */
+    static String getSite(URL url) {
+        String host = url.getHost().toLowerCase(Locale.ROOT);
+
+        for (String prefix : Arrays.asList("www.", "m.", "music."))
+            if (host.startsWith(prefix) && host.indexOf('.', prefix.length()) > 0)
+                return host.substring(prefix.length());
+
+        return host;
+    }
+
+    private static String describe(long millis) {
+        long seconds = Math.max(1L, TimeUnit.MILLISECONDS.toSeconds(millis + 999L));
+        if (seconds < 120L) return seconds + (seconds == 1L ? " second" : " seconds");
+
+        long minutes = (seconds + 59L) / 60L;
+        return minutes + " minutes";
+    }
+
+    private static class Failure {
+        private int count;
+        private long until;
+        private String message;
+    }
+
+    private static class Circuit {
+        private int failures;
+        private int trips;
+        private long until;
+        private String message;
+    }
+}
@@ -0,0 +1,110 @@
+package io.manebot.plugin.music.source;
+
+import io.manebot.plugin.music.config.AudioDownloadFormat;
+import io.manebot.plugin.music.config.AudioFormat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Scores the formats a track is offered in, so the one that is cheapest to play and cache at good quality is fetched.
+ *
+ * Each format is scored on its own; the highest score wins, with ties going to the higher audio bitrate, then the
+ * smaller file.  A policy records a reason for every adjustment it makes, and the reasons are logged alongside the
+ * winner.
+ */
+public interface FormatPolicy {
+
+    /**
+     * Scores a format.
+     * @param option format to score.
+     * @param context what the format will be played and cached as.
+     * @param score score to adjust.
+     */
+    void score(YoutubeDLTrackSource.FormatOption option, Context context, Score score);
+
+    /**
+     * What the selected format will be played and cached as.
+     */
+    final class Context {
+        private final String extractor;
+        private final AudioFormat playbackFormat;
+        private final AudioDownloadFormat downloadFormat;
+
+        public Context(String extractor, AudioFormat playbackFormat, AudioDownloadFormat downloadFormat) {
+            this.extractor = extractor;
+            this.playbackFormat = playbackFormat;
+            this.downloadFormat = downloadFormat;
+        }
+
+        /**
+         * Gets the name of the youtube-dl extractor that offered the formats.
+         * @return extractor name (such as "youtube").
+         */
+        public String getExtractor() {
+            return extractor;
+        }
+
+        /**
+         * Gets the format audio is mixed in.  Formats in any other format are resampled as they play.
+         * @return AudioFormat instance.
+         */
+        public AudioFormat getPlaybackFormat() {
+            return playbackFormat;
+        }
+
+        /**
+         * Gets the format of the repository tracks are cached to.
+         * @return AudioDownloadFormat instance, or null if tracks aren't cached.
+         */
+        public AudioDownloadFormat getDownloadFormat() {
+            return downloadFormat;
+        }
+    }
+
+    /**
+     * The score of a single format, and how it was arrived at.
+     */
+    final class Score {
+        private final List<String> reasons = new ArrayList<>();
+        private double total = 0D;
+        private boolean excluded = false;
+
+        /**
+         * Adjusts the score.
+         * @param points points to add; negative to take away.
+         * @param reason why.
+         */
+        public void add(double points, String reason) {
+            total += points;
+            reasons.add(String.format("%+.0f %s", points, reason));
+        }
+
+        /**
+         * Rules the format out entirely.
+         * @param reason why.
+         */
+        public void exclude(String reason) {
+            excluded = true;
+            reasons.add("excluded: " + reason);
+        }
+
+        public double getTotal() {
+            return total;
+        }
+
+        public boolean isExcluded() {
+            return excluded;
+        }
+
+        public List<String> getReasons() {
+            return Collections.unmodifiableList(reasons);
+        }
+
+        @Override
+        public String toString() {
+            return (excluded ? "excluded" : String.format("%.1f", total)) + " (" + String.join(", ", reasons) + ")";
+        }
+    }
+}
@@ -0,0 +1,526 @@
+package io.manebot.plugin.music.source;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reads an HLS stream as one continuous stream of its segments, for a demuxer to read as if it were a file.
+ *
+ * FFmpeg's own HLS client fetches one segment at a time, each on a new connection, so a single slow segment stalls
+ * playback.  This stream refreshes the playlist itself, and fetches up to <b>segmentsAhead</b> of the next segments at
+ * once on the fetcher's pooled connections, retrying segments that fail.  A segment that still can't be fetched is
+ * skipped, so a live stream carries on with a short gap instead of ending, unless several are lost in a row.
+ *
+ * Live streams start a few segments from the end of the playlist, as players are expected to; streams with an end
+ * start from the beginning.  Encrypted streams and byte-range segments aren't supported.
+ */
+public class HlsInputStream extends InputStream {
+    private static final int EOF = -1;
+
+    // Segments from the end of a live playlist to start at
+    private static final int LIVE_EDGE_SEGMENTS = 3;
+    // Segments lost in a row before the stream gives up
+    private static final int MAX_SKIPPED = 3;
+    private static final long DEFAULT_TARGET_DURATION_MILLIS = 10_000L;
+
+    private final URL url;
+    private final Map<String, String> requestProperties;
+    private final RangedFetcher fetcher;
+    private final BufferPool pool;
+    private final int segmentsAhead;
+
+    // Segments not yet read, oldest first
+    private final Deque<Segment> segments = new ConcurrentLinkedDeque<>();
+    private final Deque<ByteBuffer> current = new ArrayDeque<>();
+    // Segment taken off the deque that the reader is waiting on, for close() to cancel
+    private volatile Segment reading;
+
+    // Variant the master playlist led to, refreshed directly from then on
+    private volatile URL variant;
+    private volatile Future<Playlist> refresh;
+    private long refreshAt = System.nanoTime();
+    private long nextSequence = -1L;
+    private URL map;
+    private boolean ended;
+    private int skipped;
+    private volatile boolean closed;
+
+    /**
+     * Creates a new HLS stream.
+     * @param url URL of the playlist.  A master playlist is followed to its first variant.
+     * @param requestProperties request headers to send.
+     * @param fetcher fetcher to fetch the playlist and segments on.
+     * @param segmentsAhead number of segments to fetch at once.
+     */
+    public HlsInputStream(URL url, Map<String, String> requestProperties, RangedFetcher fetcher, int segmentsAhead) {
+        if (segmentsAhead <= 0) throw new IllegalArgumentException("segmentsAhead");
+
+        this.url = url;
+        this.requestProperties = requestProperties;
+        this.fetcher = Objects.requireNonNull(fetcher);
+        this.pool = fetcher.getBufferPool();
+        this.segmentsAhead = segmentsAhead;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        return read(single, 0, 1) == EOF ? EOF : single[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (closed) throw new IOException("Stream closed");
+        if (len <= 0) return 0;
+
+        while (true) {
+            ByteBuffer buffer;
+            while ((buffer = current.peekFirst()) != null && !buffer.hasRemaining())
+                pool.release(current.pollFirst());
+
+            if (buffer != null) {
+                int read = Math.min(len, buffer.remaining());
+                buffer.get(b, off, read);
+                return read;
+            }
+
+            if (!advance()) return EOF;
+        }
+    }
+
+    @Override
+    public int available() {
+        return current.stream().mapToInt(ByteBuffer::remaining).sum();
+    }
+
+    /**
+     * Moves on to the next segment, waiting for it to arrive.
+     * @return true if there is a segment to read, false if the stream has ended.
+     */
+    private boolean advance() throws IOException {
+        while (true) {
+            if (closed) throw new IOException("Stream closed");
+
+            refresh(false);
+            prefetch();
+
+            Segment segment = segments.pollFirst();
+            if (segment == null) {
+                if (ended) return false;
+
+                // Caught up with the live edge; wait for the playlist to grow
+                refresh(true);
+                continue;
+            }
+
+            reading = segment;
+
+            try {
+                if (closed) segment.cancel();
+
+                current.addAll(segment.get());
+                skipped = 0;
+                return true;
+            } catch (InterruptedIOException ex) {
+                throw ex;
+            } catch (IOException ex) {
+                if (closed) throw new IOException("Stream closed", ex);
+
+                if (++skipped > MAX_SKIPPED) {
+                    fetcher.recordFailure();
+                    throw new IOException("Lost " + skipped + " segments in a row from " + url.getHost(), ex);
+                }
+
+                Logger.getGlobal().log(Level.FINE, "Skipping HLS segment " + segment.url, ex);
+            } finally {
+                reading = null;
+            }
+        }
+    }
+
+    /**
+     * Applies a finished playlist refresh, and starts the next one when it is due.
+     * @param wait true to wait for the refresh, or until the next one is due.
+     */
+    private void refresh(boolean wait) throws IOException {
+        Future<Playlist> refresh = this.refresh;
+
+        if (refresh == null && !ended) {
+            long delay = refreshAt - System.nanoTime();
+            if (delay > 0L && wait) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for " + url.getHost());
+                }
+
+                delay = 0L;
+            }
+
+            if (delay <= 0L) {
+                URL playlistUrl = variant != null ? variant : url;
+                refresh = fetcher.getExecutor().submit(() -> retrying(() -> loadPlaylist(playlistUrl)));
+                this.refresh = refresh;
+            }
+        }
+
+        if (refresh == null || (!wait && !refresh.isDone())) return;
+
+        Playlist playlist;
+        try {
+            playlist = refresh.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for " + url.getHost());
+        } catch (CancellationException e) {
+            throw new IOException("Stream closed");
+        } catch (ExecutionException e) {
+            this.refresh = null;
+
+            // Segments already listed keep playing while the playlist is unavailable
+            if (!segments.isEmpty()) {
+                Logger.getGlobal().log(Level.FINE, "Problem refreshing HLS playlist " + url, e.getCause());
+                refreshAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DEFAULT_TARGET_DURATION_MILLIS / 2L);
+                return;
+            }
+
+            fetcher.recordFailure();
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } finally {
+            if (this.refresh == refresh && refresh.isDone()) this.refresh = null;
+        }
+
+        apply(playlist);
+    }
+
+    /**
+     * Queues the segments a playlist lists that haven't been queued yet.
+     */
+    private void apply(Playlist playlist) {
+        List<Playlist.Entry> entries = playlist.entries;
+
+        // A playlist far behind where this stream got to was restarted, so start over on it
+        long last = playlist.mediaSequence + entries.size() - 1L;
+        if (nextSequence < 0L || last + entries.size() < nextSequence) {
+            int first = playlist.ended ? 0 : Math.max(0, entries.size() - LIVE_EDGE_SEGMENTS);
+            nextSequence = playlist.mediaSequence + first;
+        }
+
+        boolean changed = false;
+        for (int i = 0; i < entries.size(); i++) {
+            long sequence = playlist.mediaSequence + i;
+            if (sequence < nextSequence) continue;
+
+            Playlist.Entry entry = entries.get(i);
+
+            // Fragmented MP4 segments need their initialization section ahead of them, once
+            if (entry.map != null && !entry.map.equals(map))
+                segments.addLast(new Segment(entry.map));
+            map = entry.map;
+
+            segments.addLast(new Segment(entry.url));
+            nextSequence = sequence + 1L;
+            changed = true;
+        }
+
+        ended = playlist.ended;
+
+        // A playlist that hasn't changed is checked again sooner, as the spec asks
+        long interval = changed ? playlist.targetDurationMillis : playlist.targetDurationMillis / 2L;
+        refreshAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(interval);
+    }
+
+    /**
+     * Starts fetching the next few segments.
+     */
+    private void prefetch() {
+        int started = 0;
+        for (Segment segment : segments) {
+            if (started++ >= segmentsAhead) break;
+            segment.start();
+        }
+    }
+
+    private Playlist loadPlaylist(URL url) throws IOException {
+        HttpResponse<InputStream> response = fetcher.send(url, requestProperties, -1L, -1L);
+
+        String text;
+        try (InputStream body = response.body()) {
+            if (response.statusCode() != 200)
+                throw new RangedInputStream.HttpStatusException(url, response.statusCode());
+
+            text = new String(body.readAllBytes(), StandardCharsets.UTF_8);
+        }
+
+        // Relative URIs are relative to wherever the playlist was redirected to
+        URL base = response.uri().toURL();
+        Playlist playlist = Playlist.parse(base, text);
+
+        if (playlist.variant != null) {
+            if (url != this.url) throw new IOException("HLS master playlist " + url + " leads to another one");
+
+            variant = playlist.variant;
+            return loadPlaylist(playlist.variant);
+        }
+
+        return playlist;
+    }
+
+    private List<ByteBuffer> loadSegment(URL url) throws IOException {
+        HttpResponse<InputStream> response = fetcher.send(url, requestProperties, -1L, -1L);
+
+        List<ByteBuffer> buffers = new ArrayList<>();
+        try (InputStream body = response.body()) {
+            if (response.statusCode() != 200)
+                throw new RangedInputStream.HttpStatusException(url, response.statusCode());
+
+            while (true) {
+                ByteBuffer buffer = pool.acquire();
+                buffers.add(buffer);
+
+                while (buffer.hasRemaining()) {
+                    int read = body.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                    if (read < 0) break;
+                    buffer.position(buffer.position() + read);
+                }
+
+                buffer.flip();
+                if (buffer.limit() < buffer.capacity()) return buffers;
+            }
+        } catch (IOException | RuntimeException ex) {
+            buffers.forEach(pool::release);
+            throw ex;
+        }
+    }
+
+    /**
+     * Makes a request, retrying it on the fetcher's retry policy while the failure looks temporary.
+     */
+    private <T> T retrying(Request<T> request) throws IOException {
+        RetryPolicy retryPolicy = fetcher.getRetryPolicy();
+
+        for (int failures = 0;;) {
+            try {
+                return request.send();
+            } catch (InterruptedIOException ex) {
+                throw ex;
+            } catch (IOException ex) {
+                boolean retryable = !(ex instanceof RangedInputStream.HttpStatusException) ||
+                        ((RangedInputStream.HttpStatusException) ex).isTransient();
+
+                if (closed || !retryable || ++failures >= retryPolicy.getMaxAttempts())
+                    throw ex;
+
+                fetcher.recordRetry();
+
+                try {
+                    Thread.sleep(retryPolicy.getDelay(failures));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted retrying " + ex.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes this stream.  This may be called from any thread; segments being fetched are abandoned.
+     */
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+
+        Future<Playlist> refresh = this.refresh;
+        if (refresh != null) refresh.cancel(true);
+
+        Segment segment;
+        while ((segment = segments.pollFirst()) != null)
+            segment.cancel();
+
+        segment = reading;
+        if (segment != null) segment.cancel();
+    }
+
+    private interface Request<T> {
+        T send() throws IOException;
+    }
+
+    /**
+     * A segment, and its fetch once started.
+     */
+    private final class Segment {
+        private final URL url;
+        private volatile Future<List<ByteBuffer>> task;
+        // Whether the reader took the buffers, or cancel() is returning them to the pool
+        private boolean taken;
+        private boolean cancelled;
+
+        private Segment(URL url) {
+            this.url = url;
+        }
+
+        private synchronized void start() {
+            if (task == null && !closed)
+                task = fetcher.getExecutor().submit(() -> retrying(() -> loadSegment(url)));
+        }
+
+        private List<ByteBuffer> get() throws IOException {
+            start();
+
+            Future<List<ByteBuffer>> task = this.task;
+            if (task == null) throw new IOException("Stream closed");
+
+            List<ByteBuffer> buffers;
+            try {
+                buffers = task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for " + url.getHost());
+            } catch (CancellationException e) {
+                throw new IOException("Stream closed");
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof IOException ?
+                        (IOException) e.getCause() : new IOException(e.getCause());
+            }
+
+            synchronized (this) {
+                if (cancelled) throw new IOException("Stream closed");
+                taken = true;
+            }
+
+            return buffers;
+        }
+
+        /**
+         * Abandons the fetch, returning its buffers to the pool if it had already finished and the reader hasn't
+         * taken them.
+         */
+        private synchronized void cancel() {
+            if (taken || cancelled) return;
+            cancelled = true;
+
+            Future<List<ByteBuffer>> task = this.task;
+            if (task == null || task.cancel(true)) return;
+
+            try {
+                task.get().forEach(pool::release);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException | CancellationException e) {
+                // nothing to return
+            }
+        }
+    }
+
+    /**
+     * The parts of a playlist this stream needs.
+     */
+    private static final class Playlist {
+        private final List<Entry> entries = new ArrayList<>();
+        private long mediaSequence;
+        private long targetDurationMillis = DEFAULT_TARGET_DURATION_MILLIS;
+        private boolean ended;
+        private URL variant;
+
+        private static Playlist parse(URL base, String text) throws IOException {
+            Playlist playlist = new Playlist();
+
+            String[] lines = text.split("\r?\n");
+            if (lines.length == 0 || !lines[0].replace("\uFEFF", "").trim().startsWith("#EXTM3U"))
+                throw new IOException(base + " is not an HLS playlist");
+
+            boolean streamInf = false;
+            URL map = null;
+
+            for (String line : lines) {
+                line = line.trim();
+                if (line.isEmpty()) continue;
+
+                if (line.startsWith("#EXT-X-TARGETDURATION:")) {
+                    playlist.targetDurationMillis = (long) (Double.parseDouble(value(line)) * 1000D);
+                } else if (line.startsWith("#EXT-X-MEDIA-SEQUENCE:")) {
+                    playlist.mediaSequence = Long.parseLong(value(line));
+                } else if (line.equals("#EXT-X-ENDLIST")) {
+                    playlist.ended = true;
+                } else if (line.startsWith("#EXT-X-KEY:")) {
+                    if (!"NONE".equals(attribute(line, "METHOD")))
+                        throw new IOException("Encrypted HLS streams aren't supported: " + base);
+                } else if (line.startsWith("#EXT-X-BYTERANGE:")) {
+                    throw new IOException("Byte-range HLS segments aren't supported: " + base);
+                } else if (line.startsWith("#EXT-X-MAP:")) {
+                    if (attribute(line, "BYTERANGE") != null)
+                        throw new IOException("Byte-range HLS segments aren't supported: " + base);
+
+                    map = new URL(base, attribute(line, "URI"));
+                } else if (line.startsWith("#EXT-X-STREAM-INF:")) {
+                    streamInf = true;
+                } else if (!line.startsWith("#")) {
+                    if (streamInf) {
+                        // The first variant listed is the one youtube-dl describes, or the one the site prefers
+                        if (playlist.variant == null) playlist.variant = new URL(base, line);
+                        streamInf = false;
+                    } else {
+                        playlist.entries.add(new Entry(new URL(base, line), map));
+                    }
+                }
+            }
+
+            return playlist;
+        }
+
+        private static String value(String line) {
+            return line.substring(line.indexOf(':') + 1).trim();
+        }
+
+        private static String attribute(String line, String name) {
+            String attributes = value(line);
+            int index = 0;
+
+            while (index < attributes.length()) {
+                int equals = attributes.indexOf('=', index);
+                if (equals < 0) break;
+
+                String key = attributes.substring(index, equals).trim();
+                String value;
+                int end;
+
+                if (equals + 1 < attributes.length() && attributes.charAt(equals + 1) == '"') {
+                    int close = attributes.indexOf('"', equals + 2);
+                    if (close < 0) close = attributes.length();
+                    value = attributes.substring(equals + 2, close);
+                    end = attributes.indexOf(',', close);
+                } else {
+                    end = attributes.indexOf(',', equals);
+                    value = attributes.substring(equals + 1, end < 0 ? attributes.length() : end).trim();
+                }
+
+                if (key.equals(name)) return value;
+                if (end < 0) break;
+                index = end + 1;
+            }
+
+            return null;
+        }
+
+        private static final class Entry {
+            private final URL url;
+            private final URL map;
+
+            private Entry(URL url, URL map) {
+                this.url = url;
+                this.map = map;
+            }
+        }
+    }
+}
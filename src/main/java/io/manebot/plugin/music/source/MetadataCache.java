@@ -0,0 +1,163 @@
+package io.manebot.plugin.music.source;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import io.manebot.plugin.music.database.model.MusicManager;
+import io.manebot.plugin.music.database.model.TrackMetadata;
+import io.manebot.plugin.music.repository.Repository;
+
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Two-tier cache of metadata resolved by a track source: a bounded in-memory LRU in front of the music database.
+ *
+ * Entries carry an expiry time, usually that of the media URLs inside them.  Expired entries are never returned;
+ * callers resolve the URL again and put the fresh metadata back.
+ */
+public class MetadataCache {
+    private final MusicManager musicManager;
+    private final String source;
+    private final Map<UUID, Entry> entries;
+
+    /**
+     * Creates a new metadata cache.
+     * @param musicManager manager persisting the second tier, or null to keep entries in memory only.
+     * @param source name of the track source the cache belongs to.
+     * @param capacity maximum number of entries held in memory.
+     */
+    public MetadataCache(MusicManager musicManager, String source, int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity");
+
+        this.musicManager = musicManager;
+        this.source = source;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<UUID, MetadataCache.Entry> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Gets the metadata cached for a URL.
+     * @param url URL to look up.
+     * @return Entry instance, or null if nothing unexpired is cached for the URL.
+     */
+    public Entry get(URL url) {
+        UUID uuid = Repository.toUUID(url);
+        long now = System.currentTimeMillis();
+
+        synchronized (entries) {
+            Entry entry = entries.get(uuid);
+            if (entry != null) {
+                if (entry.getExpires() > now) return entry;
+                entries.remove(uuid);
+            }
+        }
+
+        if (musicManager == null) return null;
+
+        TrackMetadata metadata;
+        try {
+            metadata = musicManager.getTrackMetadata(source, uuid);
+        } catch (RuntimeException e) {
+            Logger.getGlobal().log(Level.WARNING, "Problem reading cached metadata for " + url, e);
+            return null;
+        }
+
+        if (metadata == null || metadata.getExpires() <= now) return null;
+
+        Entry entry;
+        try {
+            entry = new Entry(new JsonParser().parse(metadata.getPayload()).getAsJsonObject(), metadata.getExpires());
+        } catch (RuntimeException e) {
+            Logger.getGlobal().log(Level.FINE, "Discarding unreadable cached metadata for " + url, e);
+            return null;
+        }
+
+        synchronized (entries) {
+            entries.put(uuid, entry);
+        }
+
+        return entry;
+    }
+
+    /**
+     * Caches the metadata resolved for a URL.
+     * @param url URL the metadata was resolved for.
+     * @param payload metadata to cache.
+     * @param expires time the metadata expires, in milliseconds since the epoch.
+     */
+    public void put(URL url, JsonObject payload, long expires) {
+        if (expires <= System.currentTimeMillis()) return;
+
+        UUID uuid = Repository.toUUID(url);
+
+        synchronized (entries) {
+            entries.put(uuid, new Entry(payload, expires));
+        }
+
+        if (musicManager == null) return;
+
+        try {
+            musicManager.saveTrackMetadata(source, uuid, url.toExternalForm(), payload.toString(), expires);
+        } catch (RuntimeException e) {
+            // The memory tier still has it
+            Logger.getGlobal().log(Level.WARNING, "Problem saving cached metadata for " + url, e);
+        }
+    }
+
+    /**
+     * Drops the metadata cached for a URL, such as when a media URL in it turned out to be dead before its expiry.
+     * @param url URL to drop.
+     */
+    public void invalidate(URL url) {
+        UUID uuid = Repository.toUUID(url);
+
+        synchronized (entries) {
+            entries.remove(uuid);
+        }
+
+        if (musicManager == null) return;
+
+        try {
+            musicManager.deleteTrackMetadata(source, uuid);
+        } catch (RuntimeException e) {
+            Logger.getGlobal().log(Level.WARNING, "Problem deleting cached metadata for " + url, e);
+        }
+    }
+
+    /**
+     * Metadata cached for a URL.
+     */
+    public static class Entry {
+        private final JsonObject payload;
+        private final long expires;
+
+        private Entry(JsonObject payload, long expires) {
+            this.payload = payload;
+            this.expires = expires;
+        }
+
+        /**
+         * Gets the cached metadata.  Callers must not modify it.
+         * @return JsonObject instance.
+         */
+        public JsonObject getPayload() {
+            return payload;
+        }
+
+        /**
+         * Gets the time the metadata expires.
+         * @return expiry time, in milliseconds since the epoch.
+         */
+        public long getExpires() {
+            return expires;
+        }
+    }
+}
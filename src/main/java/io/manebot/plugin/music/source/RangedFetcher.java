@@ -0,0 +1,412 @@
+package io.manebot.plugin.music.source;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fetches ranges for {@link RangedInputStream}s.
+ *
+ * Every stream on a fetcher shares one HTTP client, so ranges reuse pooled keep-alive connections to each host (and
+ * HTTP/2, where the host offers it) instead of opening a new connection per range.
+ *
+ * Servers commonly throttle each connection rather than each client, so a stream reading one range at a time is held
+ * to one throttled connection.  With read-ahead, a stream fetches up to <b>readAhead</b> of its upcoming ranges at
+ * once while the reader works through the current one.  Each range fetched ahead is held in memory until the reader
+ * gets to it, so a stream holds at most <b>readAhead</b> ranges.
+ *
+ * Ranges are sized to what each host can deliver.  The fetcher keeps a moving average of the throughput and latency
+ * of every range it sees a host serve, and sizes later ranges from that host to take about <b>rangeMillis</b> each, or
+ * long enough to make the latency of requesting them negligible, within <b>minChunkSize</b> and <b>maxChunkSize</b>.
+ *
+ * However big the ranges get, streams read them through fixed-size buffers borrowed from the fetcher's buffer pool,
+ * and ranges fetched ahead are held in those same buffers.
+ */
+public class RangedFetcher implements AutoCloseable {
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(10L);
+    // Time allowed for the response headers; the body takes as long as it takes
+    private static final Duration RESPONSE_TIMEOUT = Duration.ofSeconds(30L);
+
+    // Weight of each new measurement in a host's moving averages
+    private static final double SMOOTHING = 0.3D;
+    // Ranges should take at least this many times the latency of requesting them
+    private static final int LATENCY_FACTOR = 8;
+    private static final int MAX_HOSTS = 256;
+
+    // Headers the client manages itself, and refuses to be given
+    private static final Set<String> RESTRICTED_HEADERS = new HashSet<>(Arrays.asList(
+            "connection", "content-length", "expect", "host", "upgrade"
+    ));
+
+    private final int readAhead;
+    private final RetryPolicy retryPolicy;
+    private final int minChunkSize;
+    private final int maxChunkSize;
+    private final long rangeMillis;
+    private final BufferPool bufferPool;
+    private final ExecutorService executor;
+    private final HttpClient client;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong resolves = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong hedges = new AtomicLong();
+    private final AtomicLong hedgesWon = new AtomicLong();
+
+    private final Map<String, Host> hosts = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Host> eldest) {
+            return size() > MAX_HOSTS;
+        }
+    };
+
+    public RangedFetcher(int readAhead) {
+        this(readAhead, RetryPolicy.DEFAULT);
+    }
+
+    public RangedFetcher(int readAhead, RetryPolicy retryPolicy) {
+        this(readAhead, retryPolicy, 256 * 1024, 16 * 1024 * 1024, 2000L);
+    }
+
+    public RangedFetcher(int readAhead, RetryPolicy retryPolicy, int minChunkSize, int maxChunkSize,
+                         long rangeMillis) {
+        this(readAhead, retryPolicy, minChunkSize, maxChunkSize, rangeMillis, new BufferPool(64 * 1024, 1024));
+    }
+
+    /**
+     * Creates a new fetcher.
+     * @param readAhead number of ranges each stream fetches ahead of its reader, or 0 to fetch one range at a time.
+     * @param retryPolicy policy for retrying requests that fail, resuming from the byte the stream got to.
+     * @param minChunkSize smallest range to request.
+     * @param maxChunkSize largest range to request.
+     * @param rangeMillis time each range should take to arrive.
+     * @param bufferPool pool of buffers streams read through.
+     */
+    public RangedFetcher(int readAhead, RetryPolicy retryPolicy, int minChunkSize, int maxChunkSize,
+                         long rangeMillis, BufferPool bufferPool) {
+        if (readAhead < 0) throw new IllegalArgumentException("readAhead");
+        if (minChunkSize <= 0 || maxChunkSize < minChunkSize) throw new IllegalArgumentException("chunkSize");
+        if (rangeMillis <= 0L) throw new IllegalArgumentException("rangeMillis");
+
+        this.readAhead = readAhead;
+        this.retryPolicy = Objects.requireNonNull(retryPolicy);
+        this.minChunkSize = minChunkSize;
+        this.maxChunkSize = maxChunkSize;
+        this.rangeMillis = rangeMillis;
+        this.bufferPool = Objects.requireNonNull(bufferPool);
+        this.executor = Executors.newCachedThreadPool(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("music-fetch-%d").build()
+        );
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .connectTimeout(CONNECT_TIMEOUT)
+                .executor(executor)
+                .build();
+    }
+
+    /**
+     * Gets the number of ranges each stream fetches ahead of its reader.
+     * @return range count.
+     */
+    public int getReadAhead() {
+        return readAhead;
+    }
+
+    /**
+     * Gets the policy for retrying requests that fail.
+     * @return retry policy.
+     */
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * Gets the pool of buffers streams read through.
+     * @return BufferPool instance.
+     */
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Gets a snapshot of the statistics of this fetcher.
+     * @return Statistics instance.
+     */
+    public Statistics getStatistics() {
+        return new Statistics(requests.get(), retries.get(), resolves.get(), failures.get(),
+                hedges.get(), hedgesWon.get());
+    }
+
+    /**
+     * Gets the throughput measured from a host.
+     * @param host host name.
+     * @return moving average of the throughput of each connection to the host in bytes per second, or empty if
+     *         nothing has been fetched from it yet.
+     */
+    public OptionalDouble getThroughput(String host) {
+        synchronized (hosts) {
+            Host measured = hosts.get(host);
+            return measured != null ? OptionalDouble.of(measured.throughput) : OptionalDouble.empty();
+        }
+    }
+
+    /**
+     * Gets the throughput and latency measured from each host fetched from recently.
+     * @return measurements by host name, most recently used last.
+     */
+    public Map<String, HostStatistics> getHostStatistics() {
+        Map<String, HostStatistics> statistics = new LinkedHashMap<>();
+
+        synchronized (hosts) {
+            hosts.forEach((name, host) -> statistics.put(name, new HostStatistics(host.throughput, host.latencyMillis)));
+        }
+
+        return statistics;
+    }
+
+    /**
+     * Finds how big a range to request from a host next.
+     * @param host host name.
+     * @param initial range size to use if nothing has been measured from the host.
+     * @param limit largest range the host allows, or 0 if it doesn't say.
+     * @return range size in bytes.
+     */
+    int getChunkSize(String host, int initial, int limit) {
+        long size = initial;
+
+        synchronized (hosts) {
+            Host measured = hosts.get(host);
+            if (measured != null) {
+                double seconds = Math.max(rangeMillis, measured.latencyMillis * LATENCY_FACTOR) / 1000D;
+                size = (long) (measured.throughput * seconds);
+            }
+        }
+
+        size = Math.max(minChunkSize, Math.min(maxChunkSize, size));
+        if (limit > 0) size = Math.min(size, limit);
+
+        return (int) size;
+    }
+
+    /**
+     * Records a range a host served.
+     * @param host host name.
+     * @param bytes size of the range.
+     * @param latencyNanos time until the response started.
+     * @param elapsedNanos time until the whole range had arrived.
+     */
+    void recordRange(String host, long bytes, long latencyNanos, long elapsedNanos) {
+        if (bytes <= 0L || elapsedNanos <= 0L) return;
+
+        double throughput = bytes / (elapsedNanos / 1_000_000_000D);
+        double latencyMillis = latencyNanos / 1_000_000D;
+
+        synchronized (hosts) {
+            Host measured = hosts.get(host);
+            if (measured == null) {
+                hosts.put(host, new Host(throughput, latencyMillis));
+            } else {
+                measured.throughput += (throughput - measured.throughput) * SMOOTHING;
+                measured.latencyMillis += (latencyMillis - measured.latencyMillis) * SMOOTHING;
+            }
+        }
+    }
+
+    void recordRetry() {
+        retries.incrementAndGet();
+    }
+
+    void recordResolve() {
+        resolves.incrementAndGet();
+    }
+
+    void recordFailure() {
+        failures.incrementAndGet();
+    }
+
+    void recordHedge() {
+        hedges.incrementAndGet();
+    }
+
+    void recordHedgeWon() {
+        hedgesWon.incrementAndGet();
+    }
+
+    ExecutorService getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Requests part of a URL on the shared client.
+     * @param url URL to request.
+     * @param requestProperties request headers to send.
+     * @param start first byte to request, or -1 to request the whole content.
+     * @param end last byte to request, inclusive.
+     * @return response, whose body is read as it arrives.
+     * @throws IOException if the request couldn't be sent, or no response came back in time.
+     */
+    HttpResponse<InputStream> send(URL url, Map<String, String> requestProperties, long start, long end)
+            throws IOException {
+        HttpRequest.Builder builder;
+        try {
+            builder = HttpRequest.newBuilder(url.toURI());
+        } catch (URISyntaxException e) {
+            throw new IOException("Invalid URL: " + url, e);
+        }
+
+        builder.GET().timeout(RESPONSE_TIMEOUT);
+
+        requestProperties.forEach((name, value) -> {
+            if (RESTRICTED_HEADERS.contains(name.toLowerCase(Locale.ROOT))) return;
+
+            try {
+                builder.header(name, value);
+            } catch (IllegalArgumentException e) {
+                // skip it; the client sets this one itself
+            }
+        });
+
+        if (start >= 0L)
+            builder.header("Range", "bytes=" + start + "-" + end);
+
+        requests.incrementAndGet();
+
+        try {
+            return client.send(builder.build(), HttpResponse.BodyHandlers.ofInputStream());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for " + url.getHost());
+        }
+    }
+
+    /**
+     * Stops fetching.  Streams reading through this fetcher fail their next request.
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private static class Host {
+        private double throughput;
+        private double latencyMillis;
+
+        private Host(double throughput, double latencyMillis) {
+            this.throughput = throughput;
+            this.latencyMillis = latencyMillis;
+        }
+    }
+
+    /**
+     * Snapshot of what a fetcher has measured from a host.
+     */
+    public static class HostStatistics {
+        private final double throughput;
+        private final double latencyMillis;
+
+        private HostStatistics(double throughput, double latencyMillis) {
+            this.throughput = throughput;
+            this.latencyMillis = latencyMillis;
+        }
+
+        /**
+         * Gets the moving average of the throughput of each connection to the host.
+         * @return throughput in bytes per second.
+         */
+        public double getThroughput() {
+            return throughput;
+        }
+
+        /**
+         * Gets the moving average of the time the host takes to start responding.
+         * @return latency in milliseconds.
+         */
+        public double getLatencyMillis() {
+            return latencyMillis;
+        }
+    }
+
+    /**
+     * Snapshot of the statistics of a fetcher.
+     */
+    public static class Statistics {
+        private final long requests;
+        private final long retries;
+        private final long resolves;
+        private final long failures;
+        private final long hedges;
+        private final long hedgesWon;
+
+        private Statistics(long requests, long retries, long resolves, long failures, long hedges, long hedgesWon) {
+            this.requests = requests;
+            this.retries = retries;
+            this.resolves = resolves;
+            this.failures = failures;
+            this.hedges = hedges;
+            this.hedgesWon = hedgesWon;
+        }
+
+        /**
+         * Gets the number of requests sent.
+         * @return request count.
+         */
+        public long getRequests() {
+            return requests;
+        }
+
+        /**
+         * Gets the number of times a stream retried after a failed request or a broken connection.
+         * @return retry count.
+         */
+        public long getRetries() {
+            return retries;
+        }
+
+        /**
+         * Gets the number of times a stream looked its content up again after its URL expired.
+         * @return resolve count.
+         */
+        public long getResolves() {
+            return resolves;
+        }
+
+        /**
+         * Gets the number of streams that gave up.
+         * @return failure count.
+         */
+        public long getFailures() {
+            return failures;
+        }
+
+        /**
+         * Gets the number of times a format was slow to respond, and the next-best format was opened alongside it.
+         * @return hedge count.
+         */
+        public long getHedges() {
+            return hedges;
+        }
+
+        /**
+         * Gets the number of tracks played from a format other than the one selected for them, because it responded
+         * first.
+         * @return count of hedges won.
+         */
+        public long getHedgesWon() {
+            return hedgesWon;
+        }
+    }
+}
@@ -7,9 +7,13 @@ package io.manebot.plugin.music.source;
 
 import java.io.*;
 import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.net.URLConnection;
-import java.util.Map;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
 import java.util.logging.*;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -17,130 +21,448 @@ import java.util.regex.Pattern;
 public class RangedInputStream extends InputStream {
     private static final int EOF = -1;
     private static final Pattern rangePattern = Pattern.compile("(\\w+)\\s(\\d+)-(\\d+)\\/([\\d*]+)");
-    private final URL url;
-    private final Map<String, String> requestProperties;
+    // Each stream gets this many fresh URLs; a source that keeps handing out dead ones isn't going to recover
+    private static final int MAX_RESOLVES = 3;
+    // Read buffer for streams without a fetcher (and so without a buffer pool); ranges can be far bigger than this
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private volatile URL url;
+    private volatile Map<String, String> requestProperties;
     private final int bufferSize;
+    private final int chunkLimit;
+    private final Resolver resolver;
+    private final RangedFetcher fetcher;
+    private final RetryPolicy retryPolicy;
+    private int resolves;
+    // Attempts that have failed since the stream last made progress
+    private int failures;
     private Long contentLength;
     private Boolean supportsRangeRequests;
     
     private long chunkPosition;
-    private BufferedInputStream current;
+    private volatile InputStream current;
+    private volatile Exchange exchange;
+    private volatile boolean closed;
     private long chunkLength;
     
     private long contentPosition;
     
+    // Timing of the range being read straight off the network, for the fetcher to size later ranges with
+    private boolean measuring;
+    private long chunkLatencyNanos;
+    private long chunkElapsedNanos;
+    
+    // Ranges fetched ahead of the reader, in order; the first starts wherever the reader's current range ends
+    private final Deque<Prefetch> prefetches = new ConcurrentLinkedDeque<>();
+    private long prefetchPosition;
+    // Range taken off the deque that the reader is waiting on, for close() to abort
+    private volatile Prefetch awaiting;
+    
     public RangedInputStream(URL url, Map<String, String> requestProperties, int bufferSize) {
+	this(url, requestProperties, bufferSize, null, null, 0, 0L);
+    }
+    
+    /**
+     * Creates a ranged stream.
+     *
+     * A stream with a resolver survives its URL expiring: when the server refuses the URL partway through (HTTP 403,
+     * 404 or 410, as signed media URLs do once they expire), a fresh URL is obtained from <b>resolver</b> and the
+     * stream carries on from the same byte, provided the content is still the same length.
+     *
+     * A stream with a fetcher fetches its upcoming ranges ahead of the reader, still handing them to the reader
+     * strictly in order, and sizes its ranges to the throughput the fetcher has measured from the host.
+     * @param url URL to read.
+     * @param requestProperties request headers to send.
+     * @param bufferSize size of each ranged request, until the fetcher has measured the host.
+     * @param resolver resolver obtaining a fresh URL for the same content, or null to fail when the URL expires.
+     * @param fetcher fetcher to fetch ranges on, or null to fetch one <b>bufferSize</b> range at a time.
+     * @param chunkLimit largest range the server allows, or 0 if it doesn't say.
+     * @param position byte to start reading from.  Anything but 0 needs a server that supports ranges.
+     */
+    public RangedInputStream(URL url, Map<String, String> requestProperties, int bufferSize, Resolver resolver,
+			     RangedFetcher fetcher, int chunkLimit, long position) {
 	this.url = url;
 	this.requestProperties = requestProperties;
 	this.bufferSize = bufferSize;
+	this.chunkLimit = chunkLimit;
+	this.resolver = resolver;
+	this.fetcher = fetcher;
+	this.retryPolicy = fetcher != null ? fetcher.getRetryPolicy() : RetryPolicy.DEFAULT;
+	this.contentPosition = position;
     }
     
-    private URLConnection openBasicConnection() throws IOException {
-	URLConnection connection = this.url.openConnection();
-	this.requestProperties.forEach(connection::setRequestProperty);
-	return connection;
-    }
-    
-    private BufferedInputStream createBufferedStream(InputStream inputStream, int chunkSize) {
-        return new BufferedInputStream(inputStream, chunkSize);
-    }
-    
-    private BufferedInputStream next(int chunkSize) throws IOException {
-	URLConnection connection = this.openBasicConnection();
-	if (connection instanceof HttpURLConnection) {
-	    HttpURLConnection httpURLConnection = (HttpURLConnection)connection;
-	    httpURLConnection.setRequestMethod("GET");
-	    if (this.supportsRangeRequests != null && this.supportsRangeRequests) {
-		httpURLConnection.setRequestProperty(
-				"Range",
-				"bytes=" + this.contentPosition + "-" + (Math.min(this.contentPosition + (long) chunkSize, this.contentLength) - 1)
-		);
-	    }
-	    
-	    if (httpURLConnection.getResponseCode() / 100 == 2) {
-		switch(httpURLConnection.getResponseCode()) {
-		    case 200:
-			this.contentLength = httpURLConnection.getContentLengthLong();
-			
-			if (this.contentLength == 0L)
-			    throw new EOFException();
-			else if (this.contentLength < 0L)
-			    throw new IOException("Invalid content length: " + this.contentLength);
-			
-			if (this.supportsRangeRequests == null && httpURLConnection.getHeaderField("accept-ranges") != null) {
-			    this.supportsRangeRequests = httpURLConnection.getHeaderField("accept-ranges").equalsIgnoreCase("bytes");
-			    if (this.supportsRangeRequests) {
-				httpURLConnection.disconnect();
-				return next(chunkSize);
-			    }
-			}
-			
-			if (this.contentPosition != 0L) {
-			    throw new IOException("Unexpected content start at position 0 when content position is " + this.contentPosition);
-			}
-		 
-			BufferedInputStream wholeBis = createBufferedStream(connection.getInputStream(), chunkSize);
-			this.chunkLength = this.contentLength;
-			this.chunkPosition = 0L;
-			return wholeBis;
-		    case 204:
-			throw new EOFException("HTTP 204 No Content");
-		    case 206:
-			Matcher matcher = rangePattern.matcher(httpURLConnection.getHeaderField("content-range"));
-			if (!matcher.find()) {
-			    throw new IOException("Unexpected Content-Range: \"" + httpURLConnection.getHeaderField("content-range") + "\"");
-			}
-			
-			String type = matcher.group(1);
-			if (!type.equalsIgnoreCase("bytes")) {
-			    throw new IOException("Unexpected content range response type: " + type);
-			}
-			
-			long start = Long.parseLong(matcher.group(2));
-			if (start != this.contentPosition) {
-			    throw new IOException("Expected ranged start at position " + this.contentPosition +
-					    ", but server sent range starting at position " + start);
-			}
-			
-			long end = Long.parseLong(matcher.group(3));
-			long length = (end - start) + 1;
-			if (length < 0L)
-			    throw new IOException("Invalid length: " + length);
-			else if (length == 0)
-			    throw new EOFException();
-			
-			if (length != httpURLConnection.getContentLengthLong()) {
-			    throw new EOFException("Mismatched range request response size and content length: " +
-					    length + " != " + httpURLConnection.getContentLengthLong());
-			}
-			
-			String totalSizeString = matcher.group(4);
-			
-			try {
-			    this.contentLength = Long.parseLong(totalSizeString);
-			} catch (NumberFormatException ex) {
-			    if (contentLength == null)
-			        throw new IOException("Problem reading content length", ex);
-			}
-		 
-			if (contentPosition + length > this.contentLength)
-			    throw new IOException("Unexpected content length: " + (contentPosition + length) + " > " + this.contentLength);
-			
-			BufferedInputStream rangeBis = createBufferedStream(connection.getInputStream(), (int) length);
-			this.chunkLength = length;
-			this.chunkPosition = 0L;
-			return rangeBis;
-		}
+    private InputStream createBufferedStream(InputStream inputStream) {
+        if (this.fetcher != null)
+            return new PooledInputStream(inputStream, this.fetcher.getBufferPool());
+        
+        return new BufferedInputStream(inputStream, READ_BUFFER_SIZE);
+    }
+    
+    private int getChunkSize() {
+	if (this.fetcher == null)
+	    return this.chunkLimit > 0 ? Math.min(this.bufferSize, this.chunkLimit) : this.bufferSize;
+	
+	return this.fetcher.getChunkSize(this.url.getHost(), this.bufferSize, this.chunkLimit);
+    }
+    
+    private InputStream advance() throws IOException {
+	Prefetch prefetch = this.prefetches.pollFirst();
+	if (prefetch != null && prefetch.start > this.contentPosition) {
+	    // Not there yet; it stays next in line
+	    this.prefetches.addFirst(prefetch);
+	    if (this.closed)
+		this.cancelPrefetches();
+	} else if (prefetch != null && prefetch.start < this.contentPosition) {
+	    prefetch.cancel();
+	    this.cancelPrefetches();
+	} else if (prefetch != null) {
+	    List<ByteBuffer> range;
+	    
+	    this.awaiting = prefetch;
+	    try {
+		if (this.closed)
+		    prefetch.abort();
+		
+		range = prefetch.await();
+	    } finally {
+		this.awaiting = null;
 	    }
 	    
-	    throw new IOException(this.url.toExternalForm() + " returned HTTP " + httpURLConnection.getResponseCode()
-			    + " " + httpURLConnection.getResponseMessage());
-	} else {
-	    BufferedInputStream bis = createBufferedStream(connection.getInputStream(), (int) chunkSize);
+	    if (range != null) {
+		this.measuring = false;
+		this.chunkLength = prefetch.length;
+		this.chunkPosition = 0L;
+		this.prefetch();
+		return new SegmentedInputStream(range, this.fetcher.getBufferPool());
+	    }
+	    
+	    // Fetch it ourselves instead, which re-resolves the URL if that's what it takes
+	    this.cancelPrefetches();
+	}
+	
+	// Stop short of whatever is already being fetched ahead
+	prefetch = this.prefetches.peekFirst();
+	int chunkSize = this.getChunkSize();
+	if (prefetch != null)
+	    chunkSize = (int) Math.min(chunkSize, prefetch.start - this.contentPosition);
+	
+	InputStream next = this.next(chunkSize);
+	if (prefetch == null && this.chunkLength > 0L)
+	    this.prefetchPosition = this.contentPosition + this.chunkLength;
+	
+	this.prefetch();
+	return next;
+    }
+    
+    private void prefetch() {
+	if (this.fetcher == null || this.closed)
+	    return;
+	
+	if (this.supportsRangeRequests != Boolean.TRUE || this.contentLength == null)
+	    return;
+	
+	URL url = this.url;
+	Map<String, String> requestProperties = this.requestProperties;
+	int chunkSize = this.getChunkSize();
+	
+	while (this.prefetches.size() < this.fetcher.getReadAhead() && this.prefetchPosition < this.contentLength) {
+	    long start = this.prefetchPosition;
+	    int length = (int) Math.min(chunkSize, this.contentLength - start);
+	    
+	    Prefetch prefetch = new Prefetch(this.fetcher, url, requestProperties, start, length);
+	    try {
+		this.fetcher.getExecutor().execute(prefetch.task);
+	    } catch (RejectedExecutionException e) {
+		return;
+	    }
+	    
+	    this.prefetches.addLast(prefetch);
+	    this.prefetchPosition = start + length;
+	}
+    }
+    
+    private void cancelPrefetches() {
+	Prefetch prefetch;
+	while ((prefetch = this.prefetches.pollFirst()) != null)
+	    prefetch.cancel();
+    }
+    
+    private InputStream next(int chunkSize) throws IOException {
+	if (this.closed)
+	    throw new IOException("Stream closed");
+	
+	this.measuring = false;
+	
+	if (!isHttp(this.url)) {
+	    URLConnection connection = this.url.openConnection();
+	    this.requestProperties.forEach(connection::setRequestProperty);
+	    
+	    InputStream bis = createBufferedStream(connection.getInputStream());
 	    this.chunkLength = -1L;
 	    this.chunkPosition = 0L;
 	    return bis;
 	}
+	
+	// Ask for a range straight away; a server that doesn't do ranges sends the whole content instead
+	long end = this.contentPosition + (long) chunkSize;
+	if (this.contentLength != null)
+	    end = Math.min(end, this.contentLength);
+	
+	long requested = System.nanoTime();
+	Exchange exchange = this.supportsRangeRequests != Boolean.FALSE ?
+		open(this.fetcher, this.url, this.requestProperties, this.contentPosition, end - 1) :
+		open(this.fetcher, this.url, this.requestProperties, -1L, -1L);
+	this.exchange = exchange;
+	
+	int responseCode = exchange.getStatus();
+	long latency = System.nanoTime() - requested;
+	
+	switch (responseCode) {
+	    case 200:
+		this.supportsRangeRequests = false;
+		this.contentLength = exchange.getContentLength();
+		
+		if (this.contentLength <= 0L)
+		    exchange.abort();
+		
+		if (this.contentLength == 0L)
+		    throw new EOFException();
+		else if (this.contentLength < 0L)
+		    throw new IOException("Invalid content length: " + this.contentLength);
+		
+		if (this.contentPosition != 0L) {
+		    exchange.abort();
+		    throw new IOException("Unexpected content start at position 0 when content position is " + this.contentPosition);
+		}
+		
+		InputStream wholeBis = createBufferedStream(exchange.getBody());
+		this.chunkLength = this.contentLength;
+		this.chunkPosition = 0L;
+		return wholeBis;
+	    case 204:
+		exchange.abort();
+		throw new EOFException("HTTP 204 No Content");
+	    case 206:
+		this.supportsRangeRequests = true;
+		
+		String contentRange = exchange.getHeader("content-range");
+		Matcher matcher = rangePattern.matcher(contentRange != null ? contentRange : "");
+		if (!matcher.find()) {
+		    exchange.abort();
+		    throw new IOException("Unexpected Content-Range: \"" + contentRange + "\"");
+		}
+		
+		String type = matcher.group(1);
+		if (!type.equalsIgnoreCase("bytes")) {
+		    exchange.abort();
+		    throw new IOException("Unexpected content range response type: " + type);
+		}
+		
+		long start = Long.parseLong(matcher.group(2));
+		if (start != this.contentPosition) {
+		    exchange.abort();
+		    throw new IOException("Expected ranged start at position " + this.contentPosition +
+			    ", but server sent range starting at position " + start);
+		}
+		
+		long length = (Long.parseLong(matcher.group(3)) - start) + 1;
+		if (length <= 0L)
+		    exchange.abort();
+		
+		if (length < 0L)
+		    throw new IOException("Invalid length: " + length);
+		else if (length == 0)
+		    throw new EOFException();
+		
+		if (exchange.getContentLength() >= 0L && length != exchange.getContentLength()) {
+		    exchange.abort();
+		    throw new EOFException("Mismatched range request response size and content length: " +
+			    length + " != " + exchange.getContentLength());
+		}
+		
+		String totalSizeString = matcher.group(4);
+		
+		try {
+		    long totalSize = Long.parseLong(totalSizeString);
+		    
+		    // A fresh URL has to point at the same bytes we've been reading
+		    if (this.contentLength != null && this.resolves > 0 && totalSize != this.contentLength) {
+			exchange.abort();
+			throw new IOException("Content length changed from " + this.contentLength + " to " + totalSize +
+				" after re-resolving " + this.url.getHost());
+		    }
+		    
+		    this.contentLength = totalSize;
+		} catch (NumberFormatException ex) {
+		    if (contentLength == null) {
+			exchange.abort();
+			throw new IOException("Problem reading content length", ex);
+		    }
+		}
+		
+		if (this.contentLength != null && contentPosition + length > this.contentLength) {
+		    exchange.abort();
+		    throw new IOException("Unexpected content length: " + (contentPosition + length) + " > " + this.contentLength);
+		}
+		
+		InputStream rangeBis = createBufferedStream(exchange.getBody());
+		this.chunkLength = length;
+		this.chunkPosition = 0L;
+		this.measuring = this.fetcher != null;
+		this.chunkLatencyNanos = this.chunkElapsedNanos = latency;
+		return rangeBis;
+	    case 416:
+		// Asked for a range that starts at or past the end
+		exchange.abort();
+		throw new EOFException("HTTP 416 Range Not Satisfiable");
+	}
+	
+	exchange.abort();
+	
+	// Picking up where we left off needs ranges, unless we hadn't read anything yet
+	boolean resumable = this.contentPosition == 0L || this.supportsRangeRequests == Boolean.TRUE;
+	if (isExpired(responseCode) && this.resolver != null && resumable && this.resolves < MAX_RESOLVES) {
+	    resolve(responseCode);
+	    return next(chunkSize);
+	}
+	
+	throw new HttpStatusException(this.url, responseCode);
+    }
+    
+    private static boolean isHttp(URL url) {
+	return url.getProtocol().equalsIgnoreCase("http") || url.getProtocol().equalsIgnoreCase("https");
+    }
+    
+    /**
+     * Requests part of a URL, on the fetcher's pooled client if there is a fetcher.
+     * @param start first byte to request, or -1 to request the whole content.
+     * @param end last byte to request, inclusive.
+     */
+    private static Exchange open(RangedFetcher fetcher, URL url, Map<String, String> requestProperties,
+				 long start, long end) throws IOException {
+	if (fetcher != null)
+	    return new ClientExchange(fetcher.send(url, requestProperties, start, end));
+	
+	HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+	requestProperties.forEach(connection::setRequestProperty);
+	connection.setRequestMethod("GET");
+	if (start >= 0L)
+	    connection.setRequestProperty("Range", "bytes=" + start + "-" + end);
+	
+	return new ConnectionExchange(connection);
+    }
+    
+    /**
+     * Deals with a failed attempt to read, waiting out the retry policy's backoff if another attempt may be made.
+     * @param ex reason the attempt failed.
+     * @throws IOException <b>ex</b>, if no more attempts may be made.
+     */
+    private void retry(IOException ex) throws IOException {
+	if (this.closed)
+	    throw new IOException("Stream closed", ex);
+	
+	// Interruption is someone asking us to stop, not a network problem
+	if (ex instanceof InterruptedIOException && !(ex instanceof SocketTimeoutException))
+	    throw ex;
+	
+	// Picking up where we left off needs ranges, unless we hadn't read anything yet
+	boolean resumable = this.contentPosition == 0L || this.supportsRangeRequests == Boolean.TRUE;
+	boolean retryable = !(ex instanceof HttpStatusException) || ((HttpStatusException) ex).isTransient();
+	
+	if (!resumable || !retryable || ++this.failures >= this.retryPolicy.getMaxAttempts()) {
+	    if (this.fetcher != null)
+		this.fetcher.recordFailure();
+	    
+	    throw ex;
+	}
+	
+	if (this.fetcher != null)
+	    this.fetcher.recordRetry();
+	
+	long delay = this.retryPolicy.getDelay(this.failures);
+	Logger.getGlobal().log(Level.FINE, "Problem reading " + this.url.getHost() + " at byte " + this.contentPosition +
+		"; retrying in " + delay + "ms (attempt " + (this.failures + 1) + ")", ex);
+	
+	try {
+	    Thread.sleep(delay);
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new InterruptedIOException("Interrupted waiting to retry " + this.url.getHost());
+	}
+	
+	if (this.closed)
+	    throw new IOException("Stream closed", ex);
+    }
+    
+    /**
+     * Closes the current range.  Only the reader may call this, as it returns the range's buffers to the pool.
+     */
+    private void closeCurrent() {
+	InputStream current = this.current;
+	this.current = null;
+	
+	if (current != null) {
+	    try {
+		current.close();
+	    } catch (IOException ignored) {
+		
+	    }
+	    
+	    if (current instanceof PooledStream)
+		((PooledStream) current).recycle();
+	}
+    }
+    
+    private static boolean isExpired(int responseCode) {
+	return responseCode == 403 || responseCode == 404 || responseCode == 410;
+    }
+    
+    private void resolve(int responseCode) throws IOException {
+	this.resolves++;
+	
+	if (this.fetcher != null)
+	    this.fetcher.recordResolve();
+	
+	Logger.getGlobal().log(Level.FINE, this.url.getHost() + " returned HTTP " + responseCode + " at byte " +
+			this.contentPosition + "; re-resolving (attempt " + this.resolves + ")");
+	
+	// Anything fetched ahead was fetched from the dead URL
+	this.cancelPrefetches();
+	
+	Endpoint endpoint = this.resolver.resolve();
+	if (this.closed)
+	    throw new IOException("Stream closed");
+	
+	this.url = endpoint.getUrl();
+	this.requestProperties = endpoint.getRequestProperties();
+    }
+    
+    /**
+     * Finds the length of the content, making the first request if it hasn't been made yet.
+     * @return content length, or -1 if the server doesn't say.
+     */
+    long length() throws IOException {
+	if (this.closed)
+	    throw new IOException("Stream closed");
+	
+	while (this.contentLength == null && this.current == null) {
+	    try {
+		this.current = this.advance();
+	    } catch (EOFException ex) {
+		return this.contentPosition;
+	    } catch (IOException ex) {
+		retry(ex);
+	    }
+	}
+	
+	return this.contentLength != null ? this.contentLength : -1L;
+    }
+    
+    /**
+     * Finds if the server honors range requests.
+     * @return true if it does, false if it doesn't, or null if no request has been made yet.
+     */
+    Boolean supportsRangeRequests() {
+	return this.supportsRangeRequests;
     }
     
     @Override
@@ -155,6 +477,9 @@ public class RangedInputStream extends InputStream {
     
     @Override
     public int read(byte[] buffer, int offs, int len) throws IOException {
+	if (this.closed)
+	    throw new IOException("Stream closed");
+	
 	if (this.contentLength != null && this.contentPosition >= this.contentLength) {
 	    return -1;
 	}
@@ -166,44 +491,483 @@ public class RangedInputStream extends InputStream {
 	    
 	    if (this.current == null) {
 		try {
-		    this.current = this.next(this.bufferSize);
-		} catch (EOFException var2) {
-		    return -1;
+		    this.current = this.advance();
+		} catch (EOFException ex) {
+		    // The end is only the end if we got all of it
+		    if (this.contentLength == null || this.contentPosition >= this.contentLength)
+			return position > 0 ? position : -1;
+		    
+		    retry(truncated(ex));
+		    continue;
+		} catch (IOException ex) {
+		    retry(ex);
+		    continue;
 		}
 	    }
 	    
 	    int read = len - position;
 	    if (this.chunkLength > 0)
-	        read = Math.min(read, (int) (this.chunkLength - this.chunkPosition));
+		read = Math.min(read, (int) (this.chunkLength - this.chunkPosition));
 	    
+	    long reading = System.nanoTime();
 	    try {
 		read = this.current.read(buffer, position + offs, read);
 	    } catch (EOFException ex) {
-	        read = EOF;
+		read = EOF;
 	    } catch (IOException ex) {
-		if (supportsRangeRequests != Boolean.TRUE)
-		    throw ex;
-		else
-		    read = EOF;
+		this.closeCurrent();
+		retry(ex);
+		continue;
 	    }
 	    
 	    if (read > 0) {
 		position += read;
 		this.contentPosition += read;
 		this.chunkPosition += read;
+		this.failures = 0;
+		
+		// Only time spent waiting on the network counts, not time spent waiting on our reader
+		this.chunkElapsedNanos += System.nanoTime() - reading;
+		if (this.measuring && this.chunkPosition >= this.chunkLength) {
+		    this.measuring = false;
+		    this.fetcher.recordRange(this.url.getHost(), this.chunkLength,
+			    this.chunkLatencyNanos, this.chunkElapsedNanos);
+		}
 	    }
 	    
-	    if (read == EOF || (this.chunkLength >= 0L && this.chunkPosition >= this.chunkLength)) {
-	        try {
-		    this.current.close();
-		} catch (IOException ignored) {
-	 
-		}
-	 
-		this.current = null;
+	    if (read == EOF && this.chunkLength >= 0L && this.chunkPosition < this.chunkLength) {
+		// The server hung up partway through the range; pick it up again from here
+		this.closeCurrent();
+		retry(truncated(null));
+	    } else if (read == EOF || (this.chunkLength >= 0L && this.chunkPosition >= this.chunkLength)) {
+		this.closeCurrent();
 	    }
 	}
 	
 	return position;
     }
+    
+    /**
+     * Closes this stream.  This may be called from any thread; a read blocked on the network is aborted.
+     */
+    @Override
+    public void close() throws IOException {
+	this.closed = true;
+	
+	this.cancelPrefetches();
+	
+	Prefetch awaiting = this.awaiting;
+	if (awaiting != null)
+	    awaiting.abort();
+	
+	InputStream current = this.current;
+	if (current != null)
+	    current.close();
+	
+	Exchange exchange = this.exchange;
+	if (exchange != null)
+	    exchange.abort();
+    }
+    
+    private EOFException truncated(EOFException cause) {
+	EOFException ex = new EOFException("Content from " + this.url.getHost() + " ended at byte " +
+		this.contentPosition + " of " + (this.contentLength != null ? this.contentLength : "?"));
+	if (cause != null)
+	    ex.initCause(cause);
+	
+	return ex;
+    }
+    
+    /**
+     * An HTTP response refusing the request.
+     */
+    static final class HttpStatusException extends IOException {
+	private final int status;
+	
+	HttpStatusException(URL url, int status) {
+	    super(url.toExternalForm() + " returned HTTP " + status);
+	    this.status = status;
+	}
+	
+	/**
+	 * Finds if the same request might succeed later.
+	 * @return true if the server is struggling, rather than refusing this request for good.
+	 */
+	boolean isTransient() {
+	    return status >= 500 || status == 408 || status == 429;
+	}
+    }
+    
+    /**
+     * A request and its response, over whichever transport made it.
+     */
+    private interface Exchange {
+	int getStatus() throws IOException;
+	
+	String getHeader(String name);
+	
+	/**
+	 * Gets the length of the response body.
+	 * @return length, or -1 if the response doesn't say.
+	 */
+	long getContentLength();
+	
+	InputStream getBody() throws IOException;
+	
+	/**
+	 * Abandons the response.  This may be called from any thread; a read blocked on the body is aborted.
+	 */
+	void abort();
+    }
+    
+    private static final class ConnectionExchange implements Exchange {
+	private final HttpURLConnection connection;
+	
+	private ConnectionExchange(HttpURLConnection connection) {
+	    this.connection = connection;
+	}
+	
+	@Override
+	public int getStatus() throws IOException {
+	    return connection.getResponseCode();
+	}
+	
+	@Override
+	public String getHeader(String name) {
+	    return connection.getHeaderField(name);
+	}
+	
+	@Override
+	public long getContentLength() {
+	    return connection.getContentLengthLong();
+	}
+	
+	@Override
+	public InputStream getBody() throws IOException {
+	    return connection.getInputStream();
+	}
+	
+	@Override
+	public void abort() {
+	    connection.disconnect();
+	}
+    }
+    
+    private static final class ClientExchange implements Exchange {
+	private final HttpResponse<InputStream> response;
+	
+	private ClientExchange(HttpResponse<InputStream> response) {
+	    this.response = response;
+	}
+	
+	@Override
+	public int getStatus() {
+	    return response.statusCode();
+	}
+	
+	@Override
+	public String getHeader(String name) {
+	    return response.headers().firstValue(name).orElse(null);
+	}
+	
+	@Override
+	public long getContentLength() {
+	    return response.headers().firstValueAsLong("content-length").orElse(-1L);
+	}
+	
+	@Override
+	public InputStream getBody() {
+	    return response.body();
+	}
+	
+	@Override
+	public void abort() {
+	    try {
+		response.body().close();
+	    } catch (IOException e) {
+		// ignore
+	    }
+	}
+    }
+    
+    /**
+     * A range fetched ahead of the reader.
+     */
+    private static final class Prefetch {
+	private final long start;
+	private final int length;
+	private final FutureTask<List<ByteBuffer>> task;
+	private final BufferPool pool;
+	private volatile Exchange exchange;
+	
+	private Prefetch(RangedFetcher fetcher, URL url, Map<String, String> requestProperties, long start, int length) {
+	    this.start = start;
+	    this.length = length;
+	    this.pool = fetcher.getBufferPool();
+	    this.task = new FutureTask<>(() -> fetch(fetcher, url, requestProperties));
+	}
+	
+	private List<ByteBuffer> fetch(RangedFetcher fetcher, URL url, Map<String, String> requestProperties)
+		throws IOException {
+	    long requested = System.nanoTime();
+	    Exchange exchange = open(fetcher, url, requestProperties, this.start, this.start + this.length - 1);
+	    this.exchange = exchange;
+	    if (this.task.isCancelled()) {
+		exchange.abort();
+		throw new InterruptedIOException();
+	    }
+	    
+	    if (exchange.getStatus() != 206) {
+		exchange.abort();
+		throw new IOException(url.getHost() + " returned HTTP " + exchange.getStatus() +
+			" for a range fetched ahead");
+	    }
+	    
+	    long latency = System.nanoTime() - requested;
+	    
+	    String contentRange = exchange.getHeader("content-range");
+	    Matcher matcher = rangePattern.matcher(contentRange != null ? contentRange : "");
+	    if (!matcher.find() || Long.parseLong(matcher.group(2)) != this.start ||
+		    Long.parseLong(matcher.group(3)) != this.start + this.length - 1) {
+		exchange.abort();
+		throw new IOException("Unexpected Content-Range: \"" + contentRange + "\"");
+	    }
+	    
+	    BufferPool pool = fetcher.getBufferPool();
+	    List<ByteBuffer> range = new ArrayList<>();
+	    boolean complete = false;
+	    
+	    // The range is held in pooled buffers until the reader gets to it, rather than in one array its size
+	    try (InputStream inputStream = exchange.getBody()) {
+		int remaining = this.length;
+		while (remaining > 0) {
+		    ByteBuffer buffer = pool.acquire();
+		    range.add(buffer);
+		    
+		    int wanted = Math.min(buffer.capacity(), remaining);
+		    int filled = inputStream.readNBytes(buffer.array(), buffer.arrayOffset(), wanted);
+		    buffer.limit(filled);
+		    remaining -= filled;
+		    
+		    if (filled < wanted)
+			throw new EOFException("Range ended after " + (this.length - remaining) + " of " +
+				this.length + " bytes");
+		}
+		
+		// Nobody is coming for it
+		if (this.task.isCancelled())
+		    throw new InterruptedIOException();
+		
+		complete = true;
+	    } finally {
+		if (!complete)
+		    range.forEach(pool::release);
+	    }
+	    
+	    fetcher.recordRange(url.getHost(), this.length, latency, System.nanoTime() - requested);
+	    return range;
+	}
+	
+	/**
+	 * Waits for this range to arrive.
+	 * @return range, or null if it couldn't be fetched.
+	 */
+	private List<ByteBuffer> await() throws IOException {
+	    try {
+		return this.task.get();
+	    } catch (InterruptedException e) {
+		this.cancel();
+		throw new InterruptedIOException();
+	    } catch (ExecutionException | CancellationException e) {
+		Logger.getGlobal().log(Level.FINE, "Problem fetching range at byte " + this.start + " ahead", e);
+		return null;
+	    }
+	}
+	
+	/**
+	 * Cancels this range.  It must already be out of the reader's hands, as its buffers go back to the pool.
+	 */
+	private void cancel() {
+	    if (this.task.isDone() && !this.task.isCancelled()) {
+		try {
+		    this.task.get().forEach(this.pool::release);
+		} catch (InterruptedException | ExecutionException e) {
+		    // nothing was pooled
+		}
+		
+		return;
+	    }
+	    
+	    this.abort();
+	}
+	
+	/**
+	 * Stops this range being fetched, waking whoever is waiting on it.  A range that has already arrived is left
+	 * alone, as its reader may have it.
+	 */
+	private void abort() {
+	    this.task.cancel(true);
+	    
+	    Exchange exchange = this.exchange;
+	    if (exchange != null)
+		exchange.abort();
+	}
+    }
+    
+    /**
+     * A stream holding buffers from a pool.
+     */
+    private interface PooledStream {
+	/**
+	 * Returns the stream's buffers to the pool.  Only the stream's reader may call this, once it has stopped
+	 * reading; closing the stream from any other thread leaves its buffers to the garbage collector instead.
+	 */
+	void recycle();
+    }
+    
+    /**
+     * A buffered stream whose buffer is borrowed from a pool.
+     */
+    private static final class PooledInputStream extends InputStream implements PooledStream {
+	private final InputStream inputStream;
+	private final BufferPool pool;
+	private ByteBuffer buffer;
+	
+	private PooledInputStream(InputStream inputStream, BufferPool pool) {
+	    this.inputStream = inputStream;
+	    this.pool = pool;
+	}
+	
+	@Override
+	public int read() throws IOException {
+	    byte[] single = new byte[1];
+	    return read(single, 0, 1) == EOF ? EOF : single[0] & 0xFF;
+	}
+	
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+	    if (len <= 0)
+		return 0;
+	    
+	    if (this.buffer == null || !this.buffer.hasRemaining()) {
+		// Big reads go straight through, like BufferedInputStream
+		if (len >= this.pool.getBufferSize())
+		    return this.inputStream.read(b, off, len);
+		
+		if (this.buffer == null)
+		    this.buffer = this.pool.acquire();
+		
+		this.buffer.clear();
+		int filled = this.inputStream.read(this.buffer.array(), this.buffer.arrayOffset(), this.buffer.capacity());
+		this.buffer.limit(Math.max(filled, 0));
+		
+		if (filled <= 0)
+		    return filled < 0 ? EOF : 0;
+	    }
+	    
+	    int read = Math.min(len, this.buffer.remaining());
+	    this.buffer.get(b, off, read);
+	    return read;
+	}
+	
+	@Override
+	public int available() throws IOException {
+	    return (this.buffer != null ? this.buffer.remaining() : 0) + this.inputStream.available();
+	}
+	
+	@Override
+	public void close() throws IOException {
+	    this.inputStream.close();
+	}
+	
+	@Override
+	public void recycle() {
+	    ByteBuffer buffer = this.buffer;
+	    this.buffer = null;
+	    this.pool.release(buffer);
+	}
+    }
+    
+    /**
+     * A range fetched ahead, read out of the pooled buffers it arrived in.  Each buffer goes back to the pool as soon
+     * as it has been read.
+     */
+    private static final class SegmentedInputStream extends InputStream implements PooledStream {
+	private final Deque<ByteBuffer> buffers;
+	private final BufferPool pool;
+	
+	private SegmentedInputStream(List<ByteBuffer> buffers, BufferPool pool) {
+	    this.buffers = new ArrayDeque<>(buffers);
+	    this.pool = pool;
+	}
+	
+	@Override
+	public int read() throws IOException {
+	    byte[] single = new byte[1];
+	    return read(single, 0, 1) == EOF ? EOF : single[0] & 0xFF;
+	}
+	
+	@Override
+	public int read(byte[] b, int off, int len) {
+	    if (len <= 0)
+		return 0;
+	    
+	    ByteBuffer buffer;
+	    while ((buffer = this.buffers.peekFirst()) != null && !buffer.hasRemaining())
+		this.pool.release(this.buffers.pollFirst());
+	    
+	    if (buffer == null)
+		return EOF;
+	    
+	    int read = Math.min(len, buffer.remaining());
+	    buffer.get(b, off, read);
+	    return read;
+	}
+	
+	@Override
+	public int available() {
+	    ByteBuffer buffer = this.buffers.peekFirst();
+	    return buffer != null ? buffer.remaining() : 0;
+	}
+	
+	@Override
+	public void recycle() {
+	    ByteBuffer buffer;
+	    while ((buffer = this.buffers.pollFirst()) != null)
+		this.pool.release(buffer);
+	}
+    }
+    
+    /**
+     * Obtains a fresh URL for the content being read, once the current one has expired.
+     */
+    public interface Resolver {
+	/**
+	 * Resolves the content again.
+	 * @return Endpoint to continue reading from.
+	 * @throws IOException if the content couldn't be resolved.
+	 */
+	Endpoint resolve() throws IOException;
+    }
+    
+    /**
+     * A URL to read content from, along with the request headers it needs.
+     */
+    public static final class Endpoint {
+	private final URL url;
+	private final Map<String, String> requestProperties;
+	
+	public Endpoint(URL url, Map<String, String> requestProperties) {
+	    this.url = url;
+	    this.requestProperties = requestProperties;
+	}
+	
+	public URL getUrl() {
+	    return url;
+	}
+	
+	public Map<String, String> getRequestProperties() {
+	    return requestProperties;
+	}
+    }
 }
@@ -0,0 +1,61 @@
+package io.manebot.plugin.music.source;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * How often, and how patiently, a failed fetch is retried.
+ *
+ * The wait before each retry doubles from <b>baseDelayMillis</b> up to <b>maxDelayMillis</b>, and is jittered down by
+ * up to half so streams that failed together (say, when a host dropped every connection at once) don't all come back
+ * at the same moment.
+ */
+public class RetryPolicy {
+    /**
+     * Never retries.
+     */
+    public static final RetryPolicy NONE = new RetryPolicy(1, 0L, 0L);
+
+    /**
+     * Retries a few times within several seconds.
+     */
+    public static final RetryPolicy DEFAULT = new RetryPolicy(5, 500L, 8000L);
+
+    private final int maxAttempts;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+
+    /**
+     * Creates a new retry policy.
+     * @param maxAttempts number of attempts made at each point of a stream before giving up, including the first.
+     * @param baseDelayMillis wait before the first retry.
+     * @param maxDelayMillis longest wait before a retry.
+     */
+    public RetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis) {
+        if (maxAttempts <= 0) throw new IllegalArgumentException("maxAttempts");
+        if (baseDelayMillis < 0L || maxDelayMillis < baseDelayMillis) throw new IllegalArgumentException("delay");
+
+        this.maxAttempts = maxAttempts;
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * Gets the number of attempts made at each point of a stream before giving up.
+     * @return attempt count, including the first.
+     */
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * Gets how long to wait before retrying.
+     * @param failures number of attempts that have failed so far.
+     * @return wait in milliseconds.
+     */
+    public long getDelay(int failures) {
+        long delay = Math.min(baseDelayMillis << Math.min(Math.max(failures - 1, 0), 20), maxDelayMillis);
+        if (delay <= 1L) return delay;
+
+        return delay - ThreadLocalRandom.current().nextLong(delay / 2L + 1L);
+    }
+}
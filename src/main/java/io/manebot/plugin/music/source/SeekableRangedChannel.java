@@ -0,0 +1,268 @@
+package io.manebot.plugin.music.source;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A seekable view of remote content read with range requests, so a demuxer can jump around a file (to an MP4's moov
+ * atom at the end, say) without the whole file being downloaded first.
+ *
+ * Reads are served by one sequential {@link RangedInputStream} at a time.  Seeking a short way forward reads through
+ * the gap; seeking anywhere else opens a new stream at the new position.  The first few blocks read after each
+ * stream is opened are kept in a small LRU cache: that is where containers keep their headers and indexes, and
+ * demuxers keep coming back to them.
+ *
+ * Content on a server that ignores range requests can still be read, but every seek backwards starts over from the
+ * beginning.
+ */
+public class SeekableRangedChannel implements SeekableByteChannel {
+    // Seeking forward less than this reads through the gap instead of opening a new stream
+    private static final long MAX_SKIP = 256L * 1024L;
+    // Blocks cached from the start of each stream
+    private static final int BLOCKS_PER_STREAM = 4;
+
+    private final Opener opener;
+    private final int blockSize;
+    private final Map<Long, byte[]> blocks;
+    private final byte[] scratch;
+
+    private volatile RangedInputStream stream;
+    private long streamStart;
+    private long streamPosition;
+    private Boolean seekable;
+
+    // Block being filled from the stream, to be cached once it is whole
+    private byte[] pending;
+    private long pendingIndex = -1L;
+    private int pendingFill;
+
+    private long position;
+    private long size = -1L;
+    private volatile boolean closed;
+
+    public SeekableRangedChannel(Opener opener) {
+        this(opener, 64 * 1024, 16);
+    }
+
+    /**
+     * Creates a new seekable channel.
+     * @param opener opener of sequential streams into the content.
+     * @param blockSize size of each cached block.
+     * @param maxBlocks maximum number of blocks cached.
+     */
+    public SeekableRangedChannel(Opener opener, int blockSize, int maxBlocks) {
+        if (blockSize <= 0) throw new IllegalArgumentException("blockSize");
+        if (maxBlocks < 0) throw new IllegalArgumentException("maxBlocks");
+
+        this.opener = opener;
+        this.blockSize = blockSize;
+        this.scratch = new byte[blockSize];
+        this.blocks = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+                return size() > maxBlocks;
+            }
+        };
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        if (closed) throw new ClosedChannelException();
+        if (!dst.hasRemaining()) return 0;
+        if (size >= 0L && position >= size) return -1;
+
+        byte[] block = blocks.get(position / blockSize);
+        int offset = (int) (position % blockSize);
+        if (block != null && offset < block.length) {
+            int read = Math.min(dst.remaining(), block.length - offset);
+            dst.put(block, offset, read);
+            position += read;
+            return read;
+        }
+
+        moveTo(position);
+
+        int read = readStream(scratch, 0, Math.min(dst.remaining(), scratch.length));
+        if (read < 0) {
+            if (size < 0L) size = streamPosition;
+            return -1;
+        }
+
+        dst.put(scratch, 0, read);
+        position += read;
+        return read;
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public synchronized long position() throws IOException {
+        if (closed) throw new ClosedChannelException();
+        return position;
+    }
+
+    @Override
+    public synchronized SeekableByteChannel position(long newPosition) throws IOException {
+        if (closed) throw new ClosedChannelException();
+        if (newPosition < 0L) throw new IllegalArgumentException("newPosition");
+
+        // Nothing is fetched until the next read, which may not need to fetch anything
+        this.position = newPosition;
+        return this;
+    }
+
+    /**
+     * Gets the size of the content, making the first request if it hasn't been made yet.
+     * @return content size, or -1 if the server doesn't say.
+     */
+    @Override
+    public synchronized long size() throws IOException {
+        if (closed) throw new ClosedChannelException();
+        if (size < 0L && stream == null) moveTo(position);
+        return size;
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    /**
+     * Closes this channel.  This may be called from any thread; a read blocked on the network is aborted.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+
+        RangedInputStream stream = this.stream;
+        if (stream != null) stream.close();
+    }
+
+    /**
+     * Gets the stream to the given position, by reading through a short gap or opening a new stream.
+     * @param target position to get to.
+     */
+    private void moveTo(long target) throws IOException {
+        if (stream != null && streamPosition == target) return;
+
+        boolean forward = stream != null && target > streamPosition;
+        if (forward && (target - streamPosition <= MAX_SKIP || seekable == Boolean.FALSE)) {
+            skipTo(target);
+            return;
+        }
+
+        // Start at the top of the block, so the block can be cached whole
+        long start = seekable == Boolean.FALSE ? 0L : (target / blockSize) * blockSize;
+        open(start);
+        skipTo(target);
+    }
+
+    private void open(long start) throws IOException {
+        RangedInputStream previous = this.stream;
+        this.stream = null;
+        if (previous != null) previous.close();
+
+        RangedInputStream stream = opener.open(start);
+        this.stream = stream;
+        this.streamStart = start;
+        this.streamPosition = start;
+        this.pending = null;
+        this.pendingIndex = -1L;
+
+        if (closed) {
+            stream.close();
+            throw new ClosedChannelException();
+        }
+
+        long length = stream.length();
+        if (size < 0L && length >= 0L) size = length;
+        if (seekable == null) seekable = stream.supportsRangeRequests();
+    }
+
+    private void skipTo(long target) throws IOException {
+        while (streamPosition < target) {
+            int read = readStream(scratch, 0, (int) Math.min(scratch.length, target - streamPosition));
+            if (read < 0) return;
+        }
+    }
+
+    private int readStream(byte[] b, int off, int len) throws IOException {
+        int read = stream.read(b, off, len);
+        if (read > 0) {
+            cache(b, off, read, streamPosition);
+            streamPosition += read;
+        }
+
+        return read;
+    }
+
+    /**
+     * Caches what a stream has read, if it is in one of the first few whole blocks the stream has read.
+     * @param at position of <b>b[off]</b> in the content.
+     */
+    private void cache(byte[] b, int off, int len, long at) {
+        long firstIndex = (streamStart + blockSize - 1) / blockSize;
+
+        while (len > 0) {
+            long index = at / blockSize;
+            int offset = (int) (at % blockSize);
+            if (index >= firstIndex + BLOCKS_PER_STREAM) return;
+
+            if (index != pendingIndex) {
+                if (offset != 0 || blocks.containsKey(index)) {
+                    // Only part of this block will come through here, or it's already cached
+                    int skipped = Math.min(len, blockSize - offset);
+                    at += skipped;
+                    off += skipped;
+                    len -= skipped;
+                    continue;
+                }
+
+                pending = new byte[blockSize];
+                pendingIndex = index;
+                pendingFill = 0;
+            }
+
+            int copied = Math.min(len, blockSize - pendingFill);
+            System.arraycopy(b, off, pending, pendingFill, copied);
+            pendingFill += copied;
+            at += copied;
+            off += copied;
+            len -= copied;
+
+            long end = index * blockSize + pendingFill;
+            if (pendingFill == blockSize || (size >= 0L && end >= size)) {
+                byte[] block = pendingFill == blockSize ? pending : Arrays.copyOf(pending, pendingFill);
+                blocks.put(index, block);
+                pending = null;
+                pendingIndex = -1L;
+            }
+        }
+    }
+
+    /**
+     * Opens sequential streams into the content.
+     */
+    public interface Opener {
+        /**
+         * Opens a stream into the content.
+         * @param position byte the stream starts at.
+         * @return stream starting at <b>position</b>.
+         */
+        RangedInputStream open(long position) throws IOException;
+    }
+}
@@ -0,0 +1,259 @@
+package io.manebot.plugin.music.source;
+
+import io.manebot.plugin.audio.mixer.input.AudioProvider;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/**
+ * Wraps a playback AudioProvider and copies every sample it decodes into a bounded buffer, which is read back through
+ * a second provider (the branch).  This lets a track be cached from the same fetch and decode used to play it.
+ *
+ * The playback side never blocks on the branch.  If the branch falls more than <b>capacity</b> samples behind, or
+ * the playback side is closed before the end of the stream, the branch is detached and its reader gets a
+ * DetachedException; it should then fall back to fetching the track separately.
+ *
+ * Samples are copied into a ring buffer, which grows up to <b>capacity</b> as the branch falls behind, so the mixer's
+ * reads don't allocate once it has grown.
+ */
+public class TeeAudioProvider implements AudioProvider {
+    private static final int INITIAL_RING_SIZE = 16 * 1024;
+
+    private final AudioProvider provider;
+    private final int capacity;
+    private final Branch branch = new Branch();
+
+    private final Object lock = new Object();
+    private float[] ring;
+    private int readIndex = 0;
+    private int bufferedSamples = 0;
+    private boolean ended = false;
+    private volatile boolean detached = false;
+    private volatile boolean closed = false;
+    private volatile long position = 0L;
+
+    /**
+     * Creates a new tee.
+     * @param provider provider to read samples from.
+     * @param capacity maximum number of samples held for the branch before it is detached.
+     */
+    public TeeAudioProvider(AudioProvider provider, int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity");
+
+        this.provider = provider;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Gets the branch provider, which yields a copy of every sample read from this provider.
+     * @return branch AudioProvider.
+     */
+    public AudioProvider getBranch() {
+        return branch;
+    }
+
+    /**
+     * Finds if the branch has been detached from this tee.
+     * @return true if the branch will receive no more samples, false otherwise.
+     */
+    public boolean isDetached() {
+        return detached;
+    }
+
+    /**
+     * Finds if the playback side has been closed.
+     * @return true if closed, false otherwise.
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Gets the number of samples read by the playback side so far.
+     * @return sample count, across all channels.
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * Detaches the branch, discarding anything buffered for it.  Reads on this provider then pass straight through.
+     */
+    public void detach() {
+        synchronized (lock) {
+            if (detached || ended) return;
+
+            detached = true;
+            ring = null;
+            bufferedSamples = 0;
+            readIndex = 0;
+            lock.notifyAll();
+        }
+    }
+
+    @Override
+    public int getChannels() {
+        return provider.getChannels();
+    }
+
+    @Override
+    public int getSampleRate() {
+        return provider.getSampleRate();
+    }
+
+    @Override
+    public AudioFormat getFormat() {
+        return provider.getFormat();
+    }
+
+    @Override
+    public int available() {
+        return provider.available();
+    }
+
+    @Override
+    public int read(float[] buffer, int offset, int len) throws IOException {
+        int read;
+
+        try {
+            read = provider.read(buffer, offset, len);
+        } catch (EOFException ex) {
+            end();
+            throw ex;
+        }
+
+        if (read > 0)
+            position += read;
+
+        if (read > 0 && !detached)
+            offer(buffer, offset, read);
+
+        return read;
+    }
+
+    @Override
+    public void close() throws Exception {
+        // Stopped before the end of the stream: the branch can't be completed from this fetch
+        closed = true;
+        detach();
+
+        provider.close();
+    }
+
+    private void offer(float[] samples, int offset, int len) {
+        synchronized (lock) {
+            if (detached || ended) return;
+
+            if (bufferedSamples + len > capacity) {
+                detach();
+                return;
+            }
+
+            grow(bufferedSamples + len);
+
+            int writeIndex = (readIndex + bufferedSamples) % ring.length;
+            int first = Math.min(len, ring.length - writeIndex);
+            System.arraycopy(samples, offset, ring, writeIndex, first);
+            System.arraycopy(samples, offset + first, ring, 0, len - first);
+
+            bufferedSamples += len;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Makes the ring big enough to hold the given number of samples, unwrapping what it holds into the new ring.
+     * @param required samples the ring must hold; never more than the capacity.
+     */
+    private void grow(int required) {
+        if (ring != null && ring.length >= required) return;
+
+        int size = ring == null ? INITIAL_RING_SIZE : ring.length * 2;
+        float[] grown = new float[Math.min(capacity, Math.max(required, size))];
+
+        if (ring != null) {
+            int first = Math.min(bufferedSamples, ring.length - readIndex);
+            System.arraycopy(ring, readIndex, grown, 0, first);
+            System.arraycopy(ring, 0, grown, first, bufferedSamples - first);
+        }
+
+        ring = grown;
+        readIndex = 0;
+    }
+
+    private void end() {
+        synchronized (lock) {
+            ended = true;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Thrown to the reader of a branch when the branch has been detached from its tee.
+     */
+    public static class DetachedException extends IOException {
+        public DetachedException(String message) {
+            super(message);
+        }
+    }
+
+    private class Branch implements AudioProvider {
+        @Override
+        public int getChannels() {
+            return provider.getChannels();
+        }
+
+        @Override
+        public int getSampleRate() {
+            return provider.getSampleRate();
+        }
+
+        @Override
+        public AudioFormat getFormat() {
+            return provider.getFormat();
+        }
+
+        @Override
+        public int available() {
+            synchronized (lock) {
+                return bufferedSamples;
+            }
+        }
+
+        @Override
+        public int read(float[] buffer, int offset, int len) throws IOException {
+            synchronized (lock) {
+                while (!detached && bufferedSamples == 0 && !ended) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("interrupted waiting for tee samples");
+                    }
+                }
+
+                if (detached)
+                    throw new DetachedException("branch detached from playback");
+
+                if (bufferedSamples == 0)
+                    throw new EOFException();
+
+                int copied = Math.min(len, bufferedSamples);
+                int first = Math.min(copied, ring.length - readIndex);
+                System.arraycopy(ring, readIndex, buffer, offset, first);
+                System.arraycopy(ring, 0, buffer, offset + first, copied - first);
+
+                readIndex = (readIndex + copied) % ring.length;
+                bufferedSamples -= copied;
+                return copied;
+            }
+        }
+
+        @Override
+        public void close() {
+            detach();
+        }
+    }
+}
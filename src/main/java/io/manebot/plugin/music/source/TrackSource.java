@@ -13,6 +13,8 @@ import java.net.URL;
 import java.util.*;
 import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 public interface TrackSource {
 
@@ -29,6 +31,24 @@ public interface TrackSource {
      */
     boolean canFind(URL url);
 
+    /**
+     * Gets the URL schemes this track source handles.  Used to route URLs to the track source without asking every
+     * registered source.
+     * @return schemes (such as "http"), or an empty collection if the track source may handle any scheme.
+     */
+    default Collection<String> getSchemes() {
+        return Collections.emptySet();
+    }
+
+    /**
+     * Gets the hosts this track source handles.  A host also matches its subdomains, so "youtube.com" matches
+     * "www.youtube.com".  Used to route URLs to the track source without asking every registered source.
+     * @return hosts, or an empty collection if the track source may handle any host.
+     */
+    default Collection<String> getHosts() {
+        return Collections.emptySet();
+    }
+
     /**
      * Attempts to find a track by the specified URL.
      * @param community community to search from or createAssociation videos to.
@@ -39,6 +59,69 @@ public interface TrackSource {
      */
     Result find(Community community, URL url) throws TrackDownloadException;
 
+    /**
+     * Attempts to find a track by the specified URL, giving up if the lookup is cancelled.  Track sources that run
+     * slow lookups (such as spawning processes) should override this to stop them when the token is cancelled.
+     * @param community community to search from or createAssociation videos to.
+     * @param url URL of track to obtain.
+     * @param cancellation token cancelled when the result is no longer wanted.
+     * @return Result instance if one is suggested, <i>null</i> otherwise.
+     * @throws TrackDownloadException if there is a problem obtaining track metadata.
+     * @throws java.util.concurrent.CancellationException if the lookup was cancelled.
+     */
+    default Result find(Community community, URL url, CancellationToken cancellation) throws TrackDownloadException {
+        cancellation.throwIfCancelled();
+        return find(community, url);
+    }
+
+    /**
+     * Lists the tracks in a collection, such as a playlist or a channel, without looking each of them up.
+     * @param url URL of the collection.
+     * @param cancellation token cancelled when the listing is no longer wanted.
+     * @return tracks in the collection, in order, or <i>null</i> if the URL isn't a collection this source knows.
+     * @throws TrackDownloadException if there is a problem listing the collection.
+     * @throws java.util.concurrent.CancellationException if the listing was cancelled.
+     */
+    default List<Listing> expand(URL url, CancellationToken cancellation) throws TrackDownloadException {
+        return null;
+    }
+
+    /**
+     * A track listed in a collection.  The name and length are filled in when the listing already carries them, in
+     * which case the track can be created without looking it up.
+     */
+    final class Listing {
+        private final URL url;
+        private final String name;
+        private final Double length;
+
+        public Listing(URL url, String name, Double length) {
+            this.url = Objects.requireNonNull(url);
+            this.name = name;
+            this.length = length;
+        }
+
+        public URL getUrl() {
+            return url;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Double getLength() {
+            return length;
+        }
+
+        /**
+         * Finds if the listing describes the track well enough to create it without a lookup.
+         * @return true if the name and length are known, false otherwise.
+         */
+        public boolean isComplete() {
+            return name != null && length != null;
+        }
+    }
+
     /**
      * The Result class handles found and identified tracks.
      */
@@ -48,6 +131,7 @@ public interface TrackSource {
         private final UUID uuid;
         private final ResultPriority priority;
         private final Function<Community, Track> trackFunction;
+        private final Set<URL> aliases = new LinkedHashSet<>();
 
         private Track track;
 
@@ -72,13 +156,56 @@ public interface TrackSource {
         }
 
         public Track getTrack() {
-            return track != null ? track : (track = trackFunction.apply(community));
+            if (track == null) {
+                track = trackFunction.apply(community);
+
+                if (track != null && !aliases.isEmpty()) {
+                    try {
+                        community.addAliases(track, aliases);
+                    } catch (RuntimeException e) {
+                        Logger.getGlobal().log(Level.WARNING, "Problem adding aliases of " + track.getUrlString(), e);
+                    }
+                }
+            }
+
+            return track;
+        }
+
+        /**
+         * Adds a URL the track was found by, so the track is found by it directly next time.  Aliases are recorded
+         * once the track is created or looked up.
+         * @param url URL to add.
+         */
+        public void addAlias(URL url) {
+            aliases.add(url);
+        }
+
+        /**
+         * Fills in a builder with what this result knows about its track, without creating the track.  Used to create
+         * many tracks in one go.
+         * @param builder builder to fill in.
+         */
+        public void build(Track.Builder builder) {
+            builder.setUrl(url);
         }
 
         public AudioProvider openProvider(AudioProtocol protocol) throws IOException {
             return protocol.openProvider(openConnection());
         }
 
+        /**
+         * Opens a provider for this result, which stops fetching (closing its connection) when the token is
+         * cancelled.
+         * @param protocol protocol to open the provider with.
+         * @param cancellation token cancelled when the provider is no longer wanted.
+         * @return AudioProvider instance.
+         * @throws IOException if there is a problem opening the provider.
+         */
+        public AudioProvider openProvider(AudioProtocol protocol, CancellationToken cancellation) throws IOException {
+            cancellation.throwIfCancelled();
+            return openProvider(protocol);
+        }
+
         public Repository.Resource get() throws IOException {
             TrackRepository repository = Objects.requireNonNull(community.getRepository());
             Repository instance = Objects.requireNonNull(repository.getInstance());
@@ -95,8 +222,18 @@ public interface TrackSource {
     }
 
     abstract class DownloadResult extends Result {
+        private final Consumer<Track.Builder> constructor;
+
         DownloadResult(Community community, URL url, ResultPriority priority, Consumer<Track.Builder> constructor) {
             super(community, url, Repository.toUUID(url), priority, selectedCommunity -> selectedCommunity.getOrCreateTrack(url, constructor));
+
+            this.constructor = constructor;
+        }
+
+        @Override
+        public void build(Track.Builder builder) {
+            super.build(builder);
+            constructor.accept(builder);
         }
 
         @Override
@@ -0,0 +1,241 @@
+package io.manebot.plugin.music.source;
+
+import io.manebot.plugin.music.TrackDownloadException;
+import io.manebot.plugin.music.database.model.Community;
+
+import java.net.URL;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Routes track lookups to the track sources able to handle a URL and runs them in parallel.
+ *
+ * Sources are indexed by the schemes and hosts they declare, so a URL only reaches the sources that may handle it.
+ * Eligible sources run concurrently; the first IDEAL result wins immediately, otherwise the best result available
+ * when all sources finish (or the deadline passes) is returned.  Sources still running then are cancelled, so they
+ * let go of what they hold (such as a youtube-dl resolver) instead of finishing a lookup nobody wants.
+ */
+public class TrackSourceDispatcher {
+    private static final Comparator<TrackSource.Result> resultOrder =
+            Comparator.<TrackSource.Result>comparingInt(result -> result.getPriority().getOrdinal()).reversed()
+                    .thenComparingInt(result -> result.isLocal() ? 0 : 1);
+
+    private final Executor executor;
+    private final long deadlineMillis;
+
+    private final List<TrackSource> sources = new ArrayList<>();
+    private volatile Index index = new Index(Collections.emptyList());
+
+    /**
+     * Creates a new dispatcher.
+     * @param executor executor to run lookups on.
+     * @param deadlineMillis maximum time to wait for eligible sources, in milliseconds.
+     */
+    public TrackSourceDispatcher(Executor executor, long deadlineMillis) {
+        this.executor = executor;
+        this.deadlineMillis = deadlineMillis;
+    }
+
+    /**
+     * Registers a track source with this dispatcher.
+     * @param source source to register.
+     */
+    public synchronized void register(TrackSource source) {
+        sources.add(Objects.requireNonNull(source));
+        index = new Index(sources);
+    }
+
+    /**
+     * Finds the track sources eligible to look up a URL, in registration order.
+     * @param url URL to route.
+     * @return eligible track sources.
+     */
+    public List<TrackSource> route(URL url) {
+        List<TrackSource> eligible = new ArrayList<>();
+
+        for (TrackSource source : index.candidates(url)) {
+            try {
+                if (source.canFind(url)) eligible.add(source);
+            } catch (RuntimeException e) {
+                Logger.getGlobal().log(Level.WARNING, "Problem routing " + url + " to " + source.getName(), e);
+            }
+        }
+
+        return eligible;
+    }
+
+    /**
+     * Lists the tracks in a collection on the first eligible track source that recognizes it.
+     * @param url URL of the collection.
+     * @param cancellation token cancelled when the listing is no longer wanted; it is passed on to each source.
+     * @return tracks in the collection, or null if no source recognizes the URL as a collection.
+     * @throws TrackDownloadException if a source recognized the collection but couldn't list it.
+     * @throws CancellationException if the listing was cancelled.
+     */
+    public List<TrackSource.Listing> expand(URL url, CancellationToken cancellation)
+            throws TrackDownloadException, CancellationException {
+        for (TrackSource source : route(url)) {
+            cancellation.throwIfCancelled();
+
+            List<TrackSource.Listing> listings = source.expand(url, cancellation);
+            if (listings != null) return listings;
+        }
+
+        return null;
+    }
+
+    /**
+     * Looks up a URL on every eligible track source.
+     * @param community community to find the track in.
+     * @param url URL to find.
+     * @return best result found.
+     * @throws IllegalArgumentException if no source found the track.
+     */
+    public TrackSource.Result find(Community community, URL url) throws IllegalArgumentException {
+        return find(community, url, CancellationToken.NONE);
+    }
+
+    /**
+     * Looks up a URL on every eligible track source, giving up if the lookup is cancelled.
+     * @param community community to find the track in.
+     * @param url URL to find.
+     * @param cancellation token cancelled when the result is no longer wanted; it is passed on to each source.
+     * @return best result found.
+     * @throws IllegalArgumentException if no source found the track.
+     * @throws CancellationException if the lookup was cancelled.
+     */
+    public TrackSource.Result find(Community community, URL url, CancellationToken cancellation)
+            throws IllegalArgumentException, CancellationException {
+        List<TrackSource> eligible = route(url);
+        List<Throwable> errors = new ArrayList<>();
+        TrackSource.Result best = null;
+
+        if (!eligible.isEmpty()) {
+            // Even a lone source runs on the executor, so the deadline holds for it too
+            BlockingQueue<CompletableFuture<TrackSource.Result>> completed = new LinkedBlockingQueue<>();
+            Map<CompletableFuture<TrackSource.Result>, CancellationToken> futures = new LinkedHashMap<>();
+
+            for (TrackSource source : eligible) {
+                // Each source gets a token of its own, so a source that loses can be stopped on its own
+                CancellationToken child = new CancellationToken();
+
+                CompletableFuture<TrackSource.Result> future = CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return source.find(community, url, child);
+                    } catch (TrackDownloadException e) {
+                        throw new CompletionException(e);
+                    }
+                }, executor);
+
+                future.whenComplete((result, throwable) -> completed.add(future));
+                futures.put(future, child);
+            }
+
+            long deadline = System.currentTimeMillis() + deadlineMillis;
+
+            // Wake the wait below as soon as the lookup is cancelled
+            CompletableFuture<TrackSource.Result> cancelled = new CompletableFuture<>();
+            CancellationToken.Registration registration = cancellation.onCancel(() -> {
+                futures.values().forEach(CancellationToken::cancel);
+                completed.add(cancelled);
+            });
+
+            try {
+                for (int remaining = futures.size(); remaining > 0; remaining--) {
+                    long wait = deadline - System.currentTimeMillis();
+                    CompletableFuture<TrackSource.Result> future =
+                            wait > 0 ? completed.poll(wait, TimeUnit.MILLISECONDS) : null;
+
+                    if (future == cancelled)
+                        break;
+
+                    if (future == null) {
+                        errors.add(new TimeoutException("track sources did not respond within " +
+                                deadlineMillis + "ms"));
+                        break;
+                    }
+
+                    TrackSource.Result result;
+                    try {
+                        result = future.join();
+                    } catch (CompletionException e) {
+                        errors.add(e.getCause() != null ? e.getCause() : e);
+                        continue;
+                    }
+
+                    if (result == null) continue;
+                    if (best == null || resultOrder.compare(result, best) < 0) best = result;
+
+                    // Nothing can beat an ideal result
+                    if (best.getPriority() == TrackSource.ResultPriority.IDEAL) break;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                errors.add(e);
+            } finally {
+                registration.close();
+
+                // Stop every source still looking; the one that found the result has already returned
+                futures.forEach((future, child) -> {
+                    future.cancel(false);
+                    child.cancel();
+                });
+            }
+        }
+
+        cancellation.throwIfCancelled();
+
+        if (best != null)
+            return best;
+
+        IllegalArgumentException exception = new IllegalArgumentException(
+                errors.isEmpty() ? "url" : errors.get(0).getMessage(),
+                new Exception("track not found: " + url.toExternalForm())
+        );
+
+        errors.forEach(exception::addSuppressed);
+        throw exception;
+    }
+
+    private static class Index {
+        private final Map<String, List<TrackSource>> byHost = new HashMap<>();
+        private final List<TrackSource> anyHost = new ArrayList<>();
+
+        private Index(List<TrackSource> sources) {
+            for (TrackSource source : sources) {
+                Collection<String> hosts = source.getHosts();
+                if (hosts == null || hosts.isEmpty())
+                    anyHost.add(source);
+                else
+                    for (String host : hosts)
+                        byHost.computeIfAbsent(host.toLowerCase(), key -> new ArrayList<>()).add(source);
+            }
+        }
+
+        private Collection<TrackSource> candidates(URL url) {
+            // Keep registration order stable across host matches
+            Set<TrackSource> candidates = new LinkedHashSet<>();
+
+            // www.youtube.com matches "www.youtube.com", "youtube.com" and "com"
+            String host = url.getHost() == null ? "" : url.getHost().toLowerCase();
+            while (!host.isEmpty()) {
+                candidates.addAll(byHost.getOrDefault(host, Collections.emptyList()));
+
+                int dot = host.indexOf('.');
+                host = dot < 0 ? "" : host.substring(dot + 1);
+            }
+
+            candidates.addAll(anyHost);
+
+            String scheme = url.getProtocol().toLowerCase();
+            candidates.removeIf(source -> {
+                Collection<String> schemes = source.getSchemes();
+                return schemes != null && !schemes.isEmpty() && schemes.stream().noneMatch(scheme::equalsIgnoreCase);
+            });
+
+            return candidates;
+        }
+    }
+}
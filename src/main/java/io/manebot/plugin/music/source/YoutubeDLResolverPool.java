@@ -0,0 +1,436 @@
+package io.manebot.plugin.music.source;
+
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import io.manebot.plugin.music.TrackDownloadException;
+import io.manebot.virtual.Virtual;
+
+import java.io.*;
+import java.net.URL;
+import java.net.http.HttpTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pool of long-lived Python processes that resolve URLs with the youtube-dl module, so each lookup doesn't pay for
+ * starting the interpreter and importing youtube-dl.
+ *
+ * Workers speak JSON lines over stdin/stdout (see youtube_dl_resolver.py) and handle one request at a time.  Responses
+ * are read as a stream, and the metadata inside them is handed straight to the caller's <b>InfoReader</b>.  Idle
+ * workers are pinged before reuse, and retired after <b>maxRequests</b> lookups.  A worker that times out or is
+ * cancelled mid-request is killed.  If workers can't be started at all, the pool reports itself unavailable for a
+ * while so callers can fall back to running youtube-dl directly.
+ */
+public class YoutubeDLResolverPool implements AutoCloseable {
+    private static final String SHIM_RESOURCE = "youtube_dl_resolver.py";
+    private static final long STARTUP_TIMEOUT_MILLIS = 30_000L;
+    private static final long PING_TIMEOUT_MILLIS = 5_000L;
+    private static final long UNAVAILABLE_BACKOFF_MILLIS = 300_000L;
+    private static final int STDERR_LINES = 8;
+
+    private final String pythonPath;
+    private final int workers;
+    private final int maxRequests;
+    private final long healthCheckMillis;
+
+    private final Deque<Worker> idle = new ArrayDeque<>();
+    private final AtomicLong requestIds = new AtomicLong();
+
+    private Path shim;
+    private volatile long unavailableUntil = 0L;
+    private boolean closed = false;
+
+    /**
+     * Creates a new resolver pool.  Workers are started on demand.
+     * @param pythonPath path to the Python interpreter that can import youtube_dl (or yt_dlp).
+     * @param workers maximum number of workers, which is also the number of lookups that can run at once.
+     * @param maxRequests number of lookups after which a worker is replaced.
+     * @param healthCheckMillis time a worker may sit idle before it is pinged ahead of its next lookup.
+     */
+    public YoutubeDLResolverPool(String pythonPath, int workers, int maxRequests, long healthCheckMillis) {
+        if (workers <= 0) throw new IllegalArgumentException("workers");
+        if (maxRequests <= 0) throw new IllegalArgumentException("maxRequests");
+
+        this.pythonPath = pythonPath;
+        this.workers = workers;
+        this.maxRequests = maxRequests;
+        this.healthCheckMillis = healthCheckMillis;
+    }
+
+    /**
+     * Gets the maximum number of workers in this pool.
+     * @return worker count.
+     */
+    public int getWorkers() {
+        return workers;
+    }
+
+    /**
+     * Finds if the pool is expected to be able to start workers.
+     * @return true if the pool can be used, false if callers should fall back for now.
+     */
+    public boolean isAvailable() {
+        return System.currentTimeMillis() >= unavailableUntil;
+    }
+
+    /**
+     * Resolves a URL on a resident worker.  Callers must not have more than <b>getWorkers()</b> lookups in flight.
+     * @param url URL to resolve.
+     * @param timeoutMillis time to wait for the lookup.
+     * @param cancellation token that kills the worker when cancelled.
+     * @param infoReader reader for the youtube-dl JSON document, called on the worker's output as it arrives.
+     * @param <T> type the document is read into.
+     * @return the document for the URL, as read by <b>infoReader</b>.
+     * @throws TrackDownloadException if youtube-dl couldn't resolve the URL, or the lookup timed out.
+     * @throws UnavailableException if no worker could be used; the lookup should be retried another way.
+     */
+    public <T> T resolve(URL url, long timeoutMillis, CancellationToken cancellation, InfoReader<T> infoReader)
+            throws TrackDownloadException, UnavailableException {
+        cancellation.throwIfCancelled();
+
+        Worker worker = borrow();
+        boolean reusable = false;
+
+        try (CancellationToken.Registration ignored = cancellation.onCancel(worker::kill)) {
+            long id = requestIds.incrementAndGet();
+
+            JsonObject request = new JsonObject();
+            request.addProperty("id", id);
+            request.addProperty("url", url.toExternalForm());
+
+            // Only lookups count toward retiring the worker, not health checks
+            worker.requests++;
+
+            Message response;
+            try {
+                response = worker.call(request, infoReader, timeoutMillis);
+            } catch (TimeoutException e) {
+                throw new TrackDownloadException(new HttpTimeoutException(
+                        "youtube-dl resolver timed out after " + timeoutMillis + "ms"
+                ));
+            } catch (IOException e) {
+                cancellation.throwIfCancelled();
+                throw new UnavailableException("youtube-dl resolver failed: " + worker.describeFailure(), e);
+            }
+
+            reusable = true;
+
+            if (!response.ok)
+                throw new TrackDownloadException("youtube-dl failed: " +
+                        (response.error != null ? response.error : "unknown error"));
+
+            if (response.info == null)
+                throw new TrackDownloadException("youtube-dl returned no metadata");
+
+            @SuppressWarnings("unchecked")
+            T info = (T) response.info;
+            return info;
+        } finally {
+            release(worker, reusable && !cancellation.isCancelled());
+        }
+    }
+
+    @Override
+    public void close() {
+        List<Worker> workers;
+
+        synchronized (this) {
+            closed = true;
+            workers = new ArrayList<>(idle);
+            idle.clear();
+        }
+
+        workers.forEach(Worker::kill);
+    }
+
+    private Worker borrow() throws UnavailableException {
+        while (true) {
+            Worker worker;
+
+            synchronized (this) {
+                if (closed) throw new UnavailableException("resolver pool is closed", null);
+                worker = idle.pollFirst();
+            }
+
+            if (worker == null) return start();
+            if (!worker.isAlive()) continue;
+
+            // Make sure a worker that sat around for a while still answers before giving it a lookup
+            if (System.currentTimeMillis() - worker.lastUsed >= healthCheckMillis && !worker.ping()) {
+                worker.kill();
+                continue;
+            }
+
+            return worker;
+        }
+    }
+
+    private void release(Worker worker, boolean reusable) {
+        worker.lastUsed = System.currentTimeMillis();
+
+        if (reusable && worker.isAlive() && worker.requests < maxRequests) {
+            synchronized (this) {
+                if (!closed) {
+                    idle.addFirst(worker);
+                    return;
+                }
+            }
+        }
+
+        worker.kill();
+    }
+
+    private Worker start() throws UnavailableException {
+        if (!isAvailable())
+            throw new UnavailableException("resolver pool is unavailable", null);
+
+        Worker worker = null;
+
+        try {
+            Process process = new ProcessBuilder(pythonPath, getShim().toString()).start();
+            worker = new Worker(process);
+
+            if (!worker.awaitReady())
+                throw new IOException("worker didn't start: " + worker.describeFailure());
+
+            return worker;
+        } catch (IOException e) {
+            if (worker != null) worker.kill();
+
+            // Python or youtube-dl probably isn't installed the way we need it; stop trying for a while
+            unavailableUntil = System.currentTimeMillis() + UNAVAILABLE_BACKOFF_MILLIS;
+            Logger.getGlobal().log(Level.WARNING, "Problem starting youtube-dl resolver; falling back to " +
+                    "running youtube-dl for each lookup", e);
+
+            throw new UnavailableException("couldn't start youtube-dl resolver", e);
+        }
+    }
+
+    private synchronized Path getShim() throws IOException {
+        if (shim != null && Files.exists(shim)) return shim;
+
+        try (InputStream inputStream = YoutubeDLResolverPool.class.getResourceAsStream(SHIM_RESOURCE)) {
+            if (inputStream == null) throw new FileNotFoundException(SHIM_RESOURCE);
+
+            Path path = Files.createTempFile("youtube_dl_resolver", ".py");
+            path.toFile().deleteOnExit();
+            Files.copy(inputStream, path, StandardCopyOption.REPLACE_EXISTING);
+
+            return shim = path;
+        }
+    }
+
+    private class Worker {
+        private final Process process;
+        private final Writer stdin;
+        private final BlockingQueue<Optional<Message>> messages = new LinkedBlockingQueue<>();
+        private final Deque<String> stderr = new ArrayDeque<>();
+
+        // The request being answered, so its metadata can be read as it comes off stdout
+        private volatile long pendingId = -1L;
+        private volatile InfoReader<?> pendingReader;
+
+        private volatile long lastUsed = System.currentTimeMillis();
+        private int requests = 0;
+
+        private Worker(Process process) {
+            this.process = process;
+            this.stdin = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8));
+
+            Virtual.getInstance().create(() -> {
+                try (JsonReader reader = new JsonReader(
+                        new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                    reader.setLenient(true); // one document per line
+
+                    while (reader.peek() != JsonToken.END_DOCUMENT)
+                        messages.add(Optional.of(readMessage(reader)));
+                } catch (IOException | RuntimeException e) {
+                    // process went away, or wrote something we can't follow; either way it's no use any more
+                    if (process.isAlive()) {
+                        Logger.getGlobal().log(Level.FINE, "Unexpected youtube-dl resolver output", e);
+                        kill();
+                    }
+                } finally {
+                    messages.add(Optional.empty());
+                }
+            }).start();
+
+            Virtual.getInstance().create(() -> {
+                try (BufferedReader reader = new BufferedReader(
+                        new InputStreamReader(process.getErrorStream(), StandardCharsets.UTF_8))) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        synchronized (stderr) {
+                            stderr.addLast(line);
+                            if (stderr.size() > STDERR_LINES) stderr.removeFirst();
+                        }
+                    }
+                } catch (IOException e) {
+                    // process went away
+                }
+            }).start();
+        }
+
+        private Message readMessage(JsonReader reader) throws IOException {
+            Message message = new Message();
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "id":
+                        message.id = reader.nextLong();
+                        break;
+                    case "ready":
+                        message.ready = reader.nextBoolean();
+                        break;
+                    case "ok":
+                        message.ok = reader.nextBoolean();
+                        break;
+                    case "error":
+                        if (reader.peek() == JsonToken.NULL) reader.nextNull();
+                        else message.error = reader.nextString();
+                        break;
+                    case "info":
+                        InfoReader<?> infoReader = pendingReader;
+
+                        // Anything left over from an earlier request is skipped without being read
+                        if (infoReader != null && message.id == pendingId && reader.peek() == JsonToken.BEGIN_OBJECT)
+                            message.info = infoReader.read(reader);
+                        else
+                            reader.skipValue();
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+
+            return message;
+        }
+
+        private boolean isAlive() {
+            return process.isAlive();
+        }
+
+        private boolean awaitReady() throws IOException {
+            try {
+                return read(STARTUP_TIMEOUT_MILLIS).ready;
+            } catch (TimeoutException e) {
+                return false;
+            }
+        }
+
+        private boolean ping() {
+            JsonObject request = new JsonObject();
+            request.addProperty("id", requestIds.incrementAndGet());
+            request.addProperty("ping", true);
+
+            try {
+                return call(request, null, PING_TIMEOUT_MILLIS).ok;
+            } catch (IOException | TimeoutException e) {
+                return false;
+            }
+        }
+
+        private Message call(JsonObject request, InfoReader<?> infoReader, long timeoutMillis)
+                throws IOException, TimeoutException {
+            long id = request.get("id").getAsLong();
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+
+            pendingId = id;
+            pendingReader = infoReader;
+
+            try {
+                stdin.write(request.toString());
+                stdin.write('\n');
+                stdin.flush();
+
+                while (true) {
+                    Message response = read(deadline - System.currentTimeMillis());
+
+                    // Skip anything left over from an earlier request
+                    if (response.id == id)
+                        return response;
+                }
+            } finally {
+                pendingId = -1L;
+                pendingReader = null;
+            }
+        }
+
+        private Message read(long timeoutMillis) throws IOException, TimeoutException {
+            Optional<Message> message;
+
+            try {
+                message = timeoutMillis > 0 ? messages.poll(timeoutMillis, TimeUnit.MILLISECONDS) : null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                kill();
+                throw new InterruptedIOException("interrupted waiting for youtube-dl resolver");
+            }
+
+            if (message == null) {
+                // Whatever it's stuck on, it won't be useful for anything else
+                kill();
+                throw new TimeoutException();
+            }
+
+            if (!message.isPresent()) {
+                messages.add(message); // keep reporting EOF
+                throw new EOFException("youtube-dl resolver exited");
+            }
+
+            return message.get();
+        }
+
+        private String describeFailure() {
+            synchronized (stderr) {
+                return stderr.isEmpty() ? "no output" : String.join(" ", stderr);
+            }
+        }
+
+        private void kill() {
+            process.destroyForcibly();
+        }
+    }
+
+    private static class Message {
+        private long id = -1L;
+        private boolean ready;
+        private boolean ok;
+        private String error;
+        private Object info;
+    }
+
+    /**
+     * Reads the youtube-dl JSON document of a lookup.
+     * @param <T> type the document is read into.
+     */
+    @FunctionalInterface
+    public interface InfoReader<T> {
+        /**
+         * Reads the document.  The reader is positioned at its opening brace, and must be left after its closing one.
+         * @param reader reader to read from.
+         * @return value read.
+         * @throws IOException if the document couldn't be read.
+         */
+        T read(JsonReader reader) throws IOException;
+    }
+
+    /**
+     * Thrown when the pool can't handle a lookup, and the caller should resolve the URL another way.
+     */
+    public static class UnavailableException extends Exception {
+        public UnavailableException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+}
@@ -1,10 +1,17 @@
 package io.manebot.plugin.music.source;
 
+import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 import io.manebot.plugin.audio.mixer.input.*;
 import io.manebot.plugin.music.*;
+import io.manebot.plugin.music.config.AudioDownloadFormat;
+import io.manebot.plugin.music.config.AudioFormat;
 import io.manebot.plugin.music.database.model.Community;
+import io.manebot.plugin.music.database.model.TrackRepository;
+import io.manebot.plugin.music.repository.Repository;
+import io.manebot.plugin.music.util.UrlCanonicalizer;
 import io.manebot.virtual.Virtual;
 import org.apache.commons.io.IOUtils;
 
@@ -14,9 +21,18 @@ import java.net.*;
 
 import java.net.http.HttpTimeoutException;
 
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.*;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
 
 public class YoutubeDLTrackSource implements TrackSource {
     private static final Set<String> live_protocols = new LinkedHashSet<>();
@@ -28,12 +44,49 @@ public class YoutubeDLTrackSource implements TrackSource {
     }
     
     private static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
+    // Flat playlist extraction pages through the whole collection, so it gets longer than a single lookup
+    private static final int EXPAND_TIMEOUT_FACTOR = 10;
+
+    // Cached media URLs must outlive the track playing from them by this much
+    private static final long EXPIRY_MARGIN_MILLIS = 60_000L;
+    // Formats kept to hedge with, after the one selected
+    private static final int MAX_ALTERNATIVES = 2;
+    // How often a lookup waiting on a resolver checks whether it was cancelled
+    private static final long PERMIT_POLL_MILLIS = 100L;
+    private static final DateTimeFormatter AMZ_DATE_FORMAT =
+            DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'").withZone(ZoneOffset.UTC);
+
     private final String executablePath;
     private final int timeoutSeconds;
+    private final MetadataCache metadataCache;
+    private final long defaultTtlMillis;
+    private final YoutubeDLResolverPool resolverPool;
+    private final Semaphore resolverPermits;
+    private final FormatPolicy formatPolicy;
+    private final AudioFormat playbackFormat;
+    private final FailureCache failureCache;
+    private final RangedFetcher fetcher;
+    private final long hedgeDelayMillis;
+    private final int hlsSegmentsAhead;
 
     public YoutubeDLTrackSource(String executablePath, int timeoutSeconds) {
-        this.executablePath = executablePath;
-        this.timeoutSeconds = timeoutSeconds;
+        this(new Builder(executablePath, timeoutSeconds));
+    }
+
+    private YoutubeDLTrackSource(Builder builder) {
+        this.executablePath = builder.executablePath;
+        this.timeoutSeconds = builder.timeoutSeconds;
+        this.metadataCache = builder.metadataCache;
+        this.defaultTtlMillis = TimeUnit.SECONDS.toMillis(builder.defaultTtlSeconds);
+        this.resolverPool = builder.resolverPool;
+        this.resolverPermits = resolverPool != null ? new Semaphore(resolverPool.getWorkers(), true) : null;
+        this.formatPolicy = builder.formatPolicy;
+        this.playbackFormat = builder.playbackFormat;
+        this.failureCache = builder.failureCache;
+        this.fetcher = builder.fetcher;
+        this.hedgeDelayMillis = builder.hedgeDelayMillis;
+        this.hlsSegmentsAhead = builder.hlsSegmentsAhead;
     }
 
     @Override
@@ -46,25 +99,81 @@ public class YoutubeDLTrackSource implements TrackSource {
         return true;
     }
 
+    @Override
+    public Collection<String> getSchemes() {
+        return Arrays.asList("http", "https");
+    }
+
     /**
-     * Grabs all metadata from the specified video in JSON format using youtube-dl
+     * Grabs the metadata of the specified video using youtube-dl, on a resident resolver if possible
      * @param trackUrl Video's URL
-     * @return JSON metadata
-     * @throws IOException
+     * @param cancellation token that stops the lookup when cancelled
+     * @return metadata
+     * @throws TrackDownloadException
      */
-    private JsonObject getJsonMetadata(URL trackUrl) throws TrackDownloadException {
+    private Metadata getMetadata(URL trackUrl, CancellationToken cancellation) throws TrackDownloadException {
+        if (resolverPermits == null)
+            return exec(trackUrl, new String[] { "-j" }, timeoutSeconds, cancellation, Metadata::read);
+
+        // Wait no longer than a lookup itself may take, and give up as soon as nobody wants the result
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+
+        try {
+            while (!resolverPermits.tryAcquire(PERMIT_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                cancellation.throwIfCancelled();
+
+                if (System.nanoTime() - deadline >= 0L)
+                    throw new TrackDownloadException(new HttpTimeoutException(
+                            "no youtube-dl resolver free after " + timeoutSeconds + " seconds"));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TrackDownloadException("interrupted waiting for a youtube-dl resolver", e);
+        }
+
+        try {
+            if (resolverPool.isAvailable()) {
+                try {
+                    return resolverPool.resolve(
+                            trackUrl,
+                            TimeUnit.SECONDS.toMillis(timeoutSeconds),
+                            cancellation,
+                            Metadata::read
+                    );
+                } catch (YoutubeDLResolverPool.UnavailableException e) {
+                    Logger.getGlobal().log(Level.FINE, "Resolving " + trackUrl + " with youtube-dl directly", e);
+                }
+            }
+
+            return exec(trackUrl, new String[] { "-j" }, timeoutSeconds, cancellation, Metadata::read);
+        } finally {
+            resolverPermits.release();
+        }
+    }
+
+    /**
+     * Runs youtube-dl on the specified URL, parsing the JSON document it outputs as it is written
+     * @param trackUrl Video's URL
+     * @param options youtube-dl options selecting the JSON output (such as -j); we never download the file itself
+     * @param timeoutSeconds seconds to wait for youtube-dl
+     * @param cancellation token that kills the process when cancelled
+     * @param documentReader reader for the JSON document
+     * @return document, as read by <b>documentReader</b>
+     * @throws TrackDownloadException
+     */
+    private <T> T exec(URL trackUrl, String[] options, int timeoutSeconds, CancellationToken cancellation,
+                       YoutubeDLResolverPool.InfoReader<T> documentReader) throws TrackDownloadException {
+        List<String> command = new ArrayList<>();
+        command.add(executablePath); /* youtube-dl executable path */
+        command.add("-4"); /* force IPv4. YouTube is very strict about IPv6 */
+        command.add("--no-warnings"); /* warnings would flood our error stream */
+        command.addAll(Arrays.asList(options));
+        command.add(trackUrl.toExternalForm()); /* track URL */
+
         Process process;
         
         try {
-            process = Runtime.getRuntime().exec(
-                    new String[] {
-                            executablePath, /* youtube-dl executable path */
-                            "-4", /* force IPv4. YouTube is very strict about IPv6 */
-                            "--no-warnings", /* warnings would flood our error stream */
-                            "-j", /* require JSON metadata output; don't output the actual file (we do that ourselves) */
-                            trackUrl.toExternalForm() /* track URL */
-                    }
-            );
+            process = Runtime.getRuntime().exec(command.toArray(new String[0]));
         } catch (IOException e) {
             throw new TrackDownloadException("problem opening youtube-dl process", e);
         }
@@ -94,12 +203,33 @@ public class YoutubeDLTrackSource implements TrackSource {
             }
         }
 
-        AsyncCopy stdout_copy, stderr_copy;
+        // The document is parsed straight off stdout; only the fields we use are kept
+        CompletableFuture<T> stdout_document = new CompletableFuture<>();
+        Runnable stdout_parse = () -> {
+            InputStream inputStream = process.getInputStream();
+
+            try {
+                JsonReader reader = new JsonReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
+                stdout_document.complete(documentReader.read(reader));
+            } catch (Throwable e) {
+                stdout_document.completeExceptionally(e);
+            } finally {
+                // Drain anything left so youtube-dl never blocks on a full pipe
+                try {
+                    byte[] discard = new byte[8192];
+                    while (inputStream.read(discard) >= 0) ;
+                } catch (IOException ignored) {
+                    // process went away
+                }
+            }
+        };
+
+        AsyncCopy stderr_copy;
         Virtual.getInstance().create(stderr_copy = new AsyncCopy(process.getErrorStream())).start();
-        Virtual.getInstance().create(stdout_copy = new AsyncCopy(process.getInputStream())).start();
+        Virtual.getInstance().create(stdout_parse).start();
 
         // Wait up to the specified timeout to obtain metadata.
-        try {
+        try (CancellationToken.Registration ignored = cancellation.onCancel(process::destroyForcibly)) {
             if (!process.waitFor(timeoutSeconds, TimeUnit.SECONDS)) {
                 if (process.isAlive()) process.destroyForcibly(); // don't leak the process
                 throw new TrackDownloadException(new HttpTimeoutException("youtube-dl process timed out after " + timeoutSeconds + " seconds"));
@@ -108,7 +238,9 @@ public class YoutubeDLTrackSource implements TrackSource {
             throw new TrackDownloadException("interrupted waiting for youtube-dl process", e);
         }
 
-        InputStream stdout = stdout_copy.complete();
+        // Killed because nobody wants the result anymore
+        cancellation.throwIfCancelled();
+
         InputStream stderr = stderr_copy.complete();
 
         // A non-zero exit code will fail the download
@@ -140,19 +272,35 @@ public class YoutubeDLTrackSource implements TrackSource {
                 throw new TrackDownloadException("youtube-dl exited with code " + process.exitValue());
             }
         }
-    
-        String jsonString;
+
         try {
-            jsonString = IOUtils.toString(stdout);
-        } catch (IOException e) {
-            throw new TrackDownloadException("problem parsing youtube-dl output", e);
+            return stdout_document.join();
+        } catch (CompletionException e) {
+            throw new TrackDownloadException("problem parsing youtube-dl output", e.getCause());
         }
-    
-        return new JsonParser().parse(jsonString).getAsJsonObject();
+    }
+
+    @Override
+    public List<Listing> expand(URL url, CancellationToken cancellation) throws TrackDownloadException {
+        return exec(
+                url,
+                new String[] {
+                        "--flat-playlist", /* list entries without looking each of them up */
+                        "-J" /* a single JSON document for the whole playlist */
+                },
+                timeoutSeconds * EXPAND_TIMEOUT_FACTOR,
+                cancellation,
+                reader -> readPlaylist(reader, url)
+        );
     }
 
     @Override
     public Result find(Community community, URL url) throws TrackDownloadException {
+        return find(community, url, CancellationToken.NONE);
+    }
+
+    @Override
+    public Result find(Community community, URL url, CancellationToken cancellation) throws TrackDownloadException {
         // force HTTP for caching and consistency reasons
         if (url.getProtocol().equals("https")) {
             try {
@@ -162,15 +310,88 @@ public class YoutubeDLTrackSource implements TrackSource {
             }
         }
 
+        Resolution resolution = lookup(community, url, false, cancellation);
+
+        // Cached metadata is shared by every community, but each ranks the formats for its own repository
+        return createResult(community, url, resolution, select(url, resolution, getDownloadFormat(community)));
+    }
+
+    /**
+     * Looks up a URL, through the metadata cache when possible.
+     * @param community community the track is being found for.
+     * @param url URL to look up.
+     * @param fresh true to skip the metadata cache, such as when the media URL cached for the track has died.
+     * @param cancellation token that kills youtube-dl when cancelled.
+     * @return resolved metadata.
+     */
+    private Resolution lookup(Community community, URL url, boolean fresh, CancellationToken cancellation)
+            throws TrackDownloadException {
+        Resolution resolution = null;
+
+        // every link to the same content shares one cache entry (and one failure record)
+        URL key = UrlCanonicalizer.canonicalize(url);
+
+        if (fresh && metadataCache != null) metadataCache.invalidate(key);
+
+        MetadataCache.Entry cached = metadataCache != null && !fresh ? metadataCache.get(key) : null;
+        if (cached != null) {
+            try {
+                resolution = Resolution.fromJson(cached.getPayload());
+            } catch (RuntimeException e) {
+                Logger.getGlobal().log(Level.FINE, "Problem reading cached metadata for " + url, e);
+            }
+
+            // The media URL has to last until the track is done playing from it
+            if (resolution != null && !resolution.isValidUntil(cached.getExpires()))
+                resolution = null;
+        }
+
+        if (resolution == null) {
+            // Don't spend a youtube-dl run on something that just failed, or on a site that is down
+            if (failureCache != null) failureCache.check(key);
+
+            try {
+                resolution = resolve(url, cancellation);
+            } catch (TrackDownloadException e) {
+                if (failureCache != null && !cancellation.isCancelled()) failureCache.failure(key, e);
+                throw e;
+            }
+
+            if (failureCache != null) failureCache.success(key);
+
+            if (metadataCache != null && defaultTtlMillis > 0L) {
+                // Any of the formats may be selected, so the entry lasts as long as the first of them to expire
+                Long expires = resolution.getFormats().stream()
+                        .map(formatOption -> getExpiry(formatOption.getUri()))
+                        .filter(Objects::nonNull)
+                        .min(Long::compare)
+                        .orElse(null);
+                metadataCache.put(
+                        key,
+                        resolution.toJson(),
+                        expires != null ? expires : System.currentTimeMillis() + defaultTtlMillis
+                );
+            }
+        }
+
+        return resolution;
+    }
+
+    /**
+     * Resolves a URL with youtube-dl, keeping every format it offers.  Which one to play depends on who is playing
+     * it, so formats are ranked per lookup by <b>select</b>.
+     * @param url URL to resolve.
+     * @param cancellation token that kills youtube-dl when cancelled.
+     * @return resolved metadata.
+     */
+    private Resolution resolve(URL url, CancellationToken cancellation) throws TrackDownloadException {
         // download metadata
-        JsonObject response = getJsonMetadata(url);
+        Metadata response = getMetadata(url, cancellation);
 
-        String extractor = response.has("extractor") ?
-                response.get("extractor").getAsString() : "unknown";
+        String extractor = response.extractor != null ? response.extractor : "unknown";
     
         // track url
-        String urlString = response.has("webpage_url") ?
-                response.get("webpage_url").getAsString() : url.toExternalForm();
+        String urlString = response.webpageUrl != null ? response.webpageUrl : url.toExternalForm();
     
         final URI realUri = URI.create(urlString);
         final URL friendlyUrl;
@@ -181,169 +402,945 @@ public class YoutubeDLTrackSource implements TrackSource {
         }
     
         // track title
-        String youtubeDlTitle = response.has("fulltitle") ?
-                response.get("fulltitle").getAsString() :
-                response.get("title").getAsString();
+        String youtubeDlTitle = response.fullTitle != null ? response.fullTitle : response.title;
         String title = youtubeDlTitle != null && youtubeDlTitle.length() > 0 ? youtubeDlTitle : url.getPath();
 
         Double duration;
 
-        if (response.has("duration") && response.get("duration").getAsDouble() > 0)
-            duration = response.get("duration").getAsDouble();
+        if (response.duration != null && response.duration > 0)
+            duration = response.duration;
         else
             duration = null; // pod-cast? live video?
 
-        List<FormatOption> formatOptions = new LinkedList<>();
-        if (!response.has("formats") || response.get("formats").isJsonNull()) {
-            if (response.get("direct").getAsBoolean()) {
+        List<FormatOption> formatOptions;
+        if (response.formats == null) {
+            if (response.direct) {
                 FormatOption formatOption = new FormatOption(
                         Integer.MAX_VALUE, false, realUri, 0L, 0D, 0D,
-                                response.get("ext").getAsString(), "direct", null, null, DEFAULT_BUFFER_SIZE
+                                response.ext, "direct", null, null, 0, 0, DEFAULT_BUFFER_SIZE, 0
                 );
-                if (response.has("http_headers"))
-                    response.getAsJsonObject("http_headers").entrySet()
-                            .forEach(y -> formatOption.getHttpHeaders().put(y.getKey(), y.getValue().getAsString()));
+                formatOption.getHttpHeaders().putAll(response.httpHeaders);
 
-                formatOptions.add(formatOption);
+                formatOptions = Collections.singletonList(formatOption);
             } else {
                 throw new TrackDownloadException("JSON result has no \"formats\" property, and media is not direct");
             }
         } else {
-            response.get("formats").getAsJsonArray().forEach((x) -> {
-                if (x == null || !x.isJsonObject()) return;
-
-                JsonObject object = x.getAsJsonObject();
-                if (!object.has("url") || object.get("url").isJsonNull()) return;
-
-                String downloadUrl = object.get("url").getAsString();
-                URI downloadUri = URI.create(downloadUrl);
-                try {
-                    downloadUri.toURL();
-                } catch (MalformedURLException e) {
-                    Logger.getGlobal().log(Level.WARNING, "Problem parsing URL " + downloadUrl, e);
-                    return;
-                }
-
-                String format;
-                if (object.has("ext") && !object.get("ext").isJsonNull())
-                    format = object.get("ext").getAsString().trim().toLowerCase();
-                else
-                    format = null;
-                
-                String protocol;
-                if (object.has("protocol") && !object.get("protocol").isJsonNull())
-                    protocol = object.get("protocol").getAsString().trim().toLowerCase();
-                else
-                    protocol = null;
-                
-                int bufferSize = DEFAULT_BUFFER_SIZE;
-                if (object.has("downloader_options")) {
-                    JsonObject downloaderOptions = object.get("downloader_options").getAsJsonObject();
-                    if (downloaderOptions.has("http_chunk_size")) {
-                        bufferSize = downloaderOptions.get("http_chunk_size").getAsInt();
-                    }
-                }
-
-                int preference;
-                if (object.has("preference") && !object.get("preference").isJsonNull())
-                    preference = object.get("preference").getAsInt();
-                else
-                    preference = Integer.MAX_VALUE;
+            formatOptions = response.formats;
+        }
 
-                FormatOption formatOption = new FormatOption(
-                        preference,
-                        protocol != null && live_protocols.contains(protocol),
-                        downloadUri,
-                        object.has("filesize") && !object.get("filesize").isJsonNull() ?
-                                object.get("filesize").getAsLong() : 0,
-                        object.has("abr") && !object.get("abr").isJsonNull() ?
-                                object.get("abr").getAsDouble() : 0D,
-                        object.has("vbr") && !object.get("vbr").isJsonNull() ?
-                                object.get("vbr").getAsDouble() : 0D,
-                        format,
-                        object.has("format_note") && !object.get("format_note").isJsonNull() ?
-                                object.get("format_note").getAsString().trim() : null,
-                        object.has("acodec") && !object.get("acodec").isJsonNull() ?
-                                object.get("acodec").getAsString().trim() : null,
-                        object.has("vcodec") && !object.get("vcodec").isJsonNull() ?
-                                object.get("vcodec").getAsString().trim() : null,
-                        bufferSize
-                );
+        if (formatOptions.isEmpty())
+            throw new IllegalArgumentException("youtube-dl (" + extractor + ") offered no formats");
 
-                if (object.has("http_headers"))
-                    object.getAsJsonObject("http_headers").entrySet()
-                            .forEach(y -> formatOption.getHttpHeaders().put(y.getKey(), y.getValue().getAsString()));
+        return new Resolution(friendlyUrl, title, duration, extractor, formatOptions);
+    }
 
-                formatOptions.add(formatOption);
-            });
-        }
+    /**
+     * Selects the best of the formats a URL resolved to, and the next-best formats to hedge with.
+     * @param url URL the formats were offered for.
+     * @param resolution resolved metadata.
+     * @param downloadFormat format the track will be cached in, or null if it won't be.
+     * @return selected formats.
+     */
+    private Selection select(URL url, Resolution resolution, AudioDownloadFormat downloadFormat) {
+        List<FormatOption> formatOptions = resolution.getFormats();
+        String extractor = resolution.getExtractor();
 
         // Select the optimal format for acquisition
-        FormatOption selectedFormat;
+        List<FormatOption> rankedFormats;
 
         if (formatOptions.size() == 1) {
-            selectedFormat = formatOptions.get(0);
-        } else if (formatOptions.size() > 1) {
-            if (formatOptions.stream().anyMatch(format -> format.getAudioBitrate() > 0)) {
-                // We want the highest bitrate, but the lowest filesize.
-                // YouTube throttles the DASH audio options so we totally exclude those from the results
-                // Then, we look for options which explicitly provide an audio codec and a bitrate for that codec
-                // And then, we descend by abr, then ascend by the file size
-                // First option is the video we want
-                selectedFormat = formatOptions.stream()
-                        .filter(x -> !extractor.equalsIgnoreCase("youtube") ||
-                                x.getNote() == null || !x.getNote().equals("DASH audio"))
-                        .filter(x -> x.getAudioBitrate() > 0)
-                        .min(((Comparator<FormatOption>)
-                                (a, b) -> Double.compare(b.getAudioBitrate(), a.getAudioBitrate()))
-                                .thenComparingLong(FormatOption::getFilesize)
-                        ).orElse(null);
-            } else {
-                // Best effort, just pick the first one sorted by "preference" value as a last resort
-                selectedFormat = formatOptions
-                        .stream()
-                        .min(Comparator.comparingInt(FormatOption::getPreference))
-                        .orElse(null);
-            }
+            rankedFormats = formatOptions;
         } else {
-            throw new IllegalArgumentException("youtube-dl (" + extractor + ") offered no formats");
+            rankedFormats = rankFormats(url, formatOptions,
+                    new FormatPolicy.Context(extractor, playbackFormat, downloadFormat));
         }
         
-        if (selectedFormat == null)
+        if (rankedFormats.isEmpty())
             throw new IllegalArgumentException("youtube-dl (" + extractor + ") offered no suitable choice from " +
                     formatOptions.size() + " format(s)");
 
-        final FormatOption format = selectedFormat;
+        FormatOption selectedFormat = rankedFormats.get(0);
+
+        // The next-best formats can stand in for the selected one if its host is slow to respond
+        List<FormatOption> alternatives = new ArrayList<>();
+        if (!selectedFormat.isLive()) {
+            for (FormatOption formatOption : rankedFormats.subList(1, rankedFormats.size())) {
+                if (alternatives.size() >= MAX_ALTERNATIVES) break;
+                if (formatOption.isLive() || formatOption.getUri().equals(selectedFormat.getUri())) continue;
+
+                alternatives.add(formatOption);
+            }
+        }
+
+        return new Selection(selectedFormat, alternatives);
+    }
+
+    /**
+     * Ranks formats by the policy's score.  Ties go to the highest audio bitrate, then the smallest file, then
+     * youtube-dl's own preference.
+     * @param url URL the formats were offered for.
+     * @param formatOptions formats offered.
+     * @param context what the format will be played and cached as.
+     * @return formats the policy didn't exclude, best first.
+     */
+    private List<FormatOption> rankFormats(URL url, List<FormatOption> formatOptions, FormatPolicy.Context context) {
+        Map<FormatOption, FormatPolicy.Score> scores = new LinkedHashMap<>();
+
+        for (FormatOption formatOption : formatOptions) {
+            FormatPolicy.Score score = new FormatPolicy.Score();
+            formatPolicy.score(formatOption, context, score);
+            scores.put(formatOption, score);
+        }
+
+        List<FormatOption> rankedFormats = scores.entrySet().stream()
+                .filter(entry -> !entry.getValue().isExcluded())
+                .map(Map.Entry::getKey)
+                .sorted(Comparator.<FormatOption>comparingDouble(x -> -scores.get(x).getTotal())
+                        .thenComparingDouble(x -> -x.getAudioBitrate())
+                        .thenComparingLong(FormatOption::getFilesize)
+                        .thenComparingInt(FormatOption::getPreference))
+                .collect(Collectors.toList());
+
+        FormatOption selectedFormat = rankedFormats.isEmpty() ? null : rankedFormats.get(0);
+
+        Logger logger = Logger.getGlobal();
+        if (selectedFormat != null && logger.isLoggable(Level.FINE)) {
+            StringBuilder message = new StringBuilder("Selected ").append(selectedFormat)
+                    .append(" for ").append(url).append(": ").append(scores.get(selectedFormat));
+
+            scores.forEach((formatOption, score) -> {
+                if (formatOption != selectedFormat)
+                    message.append("\n  over ").append(formatOption).append(": ").append(score);
+            });
+
+            logger.fine(message.toString());
+        }
+
+        return rankedFormats;
+    }
+
+    private static AudioDownloadFormat getDownloadFormat(Community community) {
+        try {
+            TrackRepository repository = community.getRepository();
+            Repository instance = repository != null ? repository.getInstance() : null;
+            return instance != null ? instance.getDownloadFormat() : null;
+        } catch (RuntimeException e) {
+            Logger.getGlobal().log(Level.FINE, "Problem reading the download format of " + community.getName(), e);
+            return null;
+        }
+    }
+
+    private Result createResult(Community community, URL url, Resolution resolution, Selection selection) {
+        final URL friendlyUrl = resolution.getUrl();
+        final FormatOption format = selection.getFormat();
+
         return new DownloadResult(
                 community, friendlyUrl,
                 ResultPriority.LOW,
                 (builder) -> {
                     // this code will set the attributes of a new track to recognize this URL if needed
-                    builder.setName(title);
-                    builder.setLength(duration);
+                    builder.setName(resolution.getTitle());
+                    builder.setLength(resolution.getDuration());
                     builder.setUrl(friendlyUrl);
                 }) {
             @Override
             public AudioProvider openProvider(AudioProtocol protocol) throws IOException {
+                return openProvider(protocol, CancellationToken.NONE);
+            }
+
+            @Override
+            public AudioProvider openProvider(AudioProtocol protocol, CancellationToken cancellation)
+                    throws IOException {
+                cancellation.throwIfCancelled();
+
                 if (format.isLive()) {
-                    return protocol.openProvider(format.getUri(), format.getBufferSize());
+                    if (fetcher == null || hlsSegmentsAhead <= 0)
+                        return protocol.openProvider(format.getUri(), format.getBufferSize());
+
+                    HlsInputStream stream = openStream();
+
+                    // Closing the stream aborts whoever is reading it, and stops the segment fetches
+                    return CancellableAudioProvider.open(cancellation, stream,
+                            () -> protocol.openProvider(stream, null, format.getBufferSize()));
                 } else {
-                    return protocol.openProvider(openConnection(), format.getBufferSize());
+                    SeekableRangedChannel channel;
+                    if (hedgeDelayMillis > 0L && fetcher != null && !selection.getAlternatives().isEmpty())
+                        channel = openHedged(cancellation);
+                    else
+                        channel = openChannel(format, cancellation);
+
+                    // Closing the channel aborts whoever is reading it, and stops the fetch
+                    return CancellableAudioProvider.open(cancellation, channel,
+                            () -> protocol.openProvider(channel, null, format.getBufferSize()));
                 }
             }
             
             @Override
             public InputStream openConnection() throws IOException {
-                return new RangedInputStream(format.getUri().toURL(), format.getHttpHeaders(), format.getBufferSize());
+                if (format.isLive() && fetcher != null && hlsSegmentsAhead > 0)
+                    return openStream();
+
+                return new RangedInputStream(
+                        format.getUri().toURL(),
+                        format.getHttpHeaders(),
+                        format.getBufferSize(),
+                        () -> resolve(format, CancellationToken.NONE),
+                        fetcher,
+                        format.getChunkLimit(),
+                        0L
+                );
+            }
+
+            private HlsInputStream openStream() throws IOException {
+                return new HlsInputStream(format.getUri().toURL(), format.getHttpHeaders(), fetcher, hlsSegmentsAhead);
+            }
+
+            /**
+             * Opens the selected format, and if it hasn't started responding within the hedge delay, the next-best
+             * format alongside it, and so on.  Whichever format responds first is kept, and the others are closed.
+             * A format that fails outright is replaced by the next one straight away.
+             */
+            private SeekableRangedChannel openHedged(CancellationToken cancellation) throws IOException {
+                List<FormatOption> formats = new ArrayList<>();
+                formats.add(format);
+                formats.addAll(selection.getAlternatives());
+
+                CompletionService<SeekableRangedChannel> opens = new ExecutorCompletionService<>(fetcher.getExecutor());
+                List<SeekableRangedChannel> channels = new CopyOnWriteArrayList<>();
+                SeekableRangedChannel winner = null;
+                IOException failure = null;
+                int failed = 0;
+
+                try (CancellationToken.Registration ignored =
+                             cancellation.onCancel(() -> channels.forEach(YoutubeDLTrackSource::closeQuietly))) {
+                    while (winner == null) {
+                        int started = channels.size();
+                        Future<SeekableRangedChannel> opened;
+
+                        if (started == failed) {
+                            // nothing is in flight, so move on to the next format now
+                            if (started >= formats.size()) throw failure;
+                            opened = null;
+                        } else if (started < formats.size()) {
+                            opened = opens.poll(hedgeDelayMillis, TimeUnit.MILLISECONDS);
+                            if (opened == null) fetcher.recordHedge();
+                        } else {
+                            opened = opens.take();
+                        }
+
+                        if (opened == null) {
+                            cancellation.throwIfCancelled();
+
+                            SeekableRangedChannel channel = openChannel(formats.get(started), cancellation);
+                            channels.add(channel);
+
+                            // Finding the size makes the first request, and returns once the response starts
+                            opens.submit(() -> {
+                                channel.size();
+                                return channel;
+                            });
+                        } else {
+                            try {
+                                winner = opened.get();
+                            } catch (ExecutionException e) {
+                                failed++;
+
+                                IOException ex = e.getCause() instanceof IOException ?
+                                        (IOException) e.getCause() : new IOException(e.getCause());
+                                if (failure == null) failure = ex;
+                                else failure.addSuppressed(ex);
+                            }
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted opening " + url);
+                } finally {
+                    for (SeekableRangedChannel channel : channels)
+                        if (channel != winner) closeQuietly(channel);
+                }
+
+                int index = channels.indexOf(winner);
+                if (index > 0) {
+                    fetcher.recordHedgeWon();
+                    Logger.getGlobal().fine("Playing " + url + " as " + formats.get(index) +
+                            " instead of " + format + ", which was slower to respond");
+                }
+
+                return winner;
+            }
+
+            private SeekableRangedChannel openChannel(FormatOption option, CancellationToken cancellation)
+                    throws IOException {
+                // Each seek opens a new stream; start it from the freshest URL, not one that has already expired
+                AtomicReference<RangedInputStream.Endpoint> endpoint = new AtomicReference<>(
+                        new RangedInputStream.Endpoint(option.getUri().toURL(), option.getHttpHeaders())
+                );
+
+                RangedInputStream.Resolver resolver = () -> {
+                    RangedInputStream.Endpoint fresh = resolve(option, cancellation);
+                    endpoint.set(fresh);
+                    return fresh;
+                };
+
+                return new SeekableRangedChannel(position -> new RangedInputStream(
+                        endpoint.get().getUrl(),
+                        endpoint.get().getRequestProperties(),
+                        option.getBufferSize(),
+                        resolver,
+                        fetcher,
+                        option.getChunkLimit(),
+                        position
+                ));
+            }
+
+            // Signed media URLs can expire partway through a long track; look the track up again when they do
+            private RangedInputStream.Endpoint resolve(FormatOption option, CancellationToken cancellation)
+                    throws IOException {
+                cancellation.throwIfCancelled();
+
+                try {
+                    Resolution resolved = lookup(community, url, true, cancellation);
+
+                    // Stay on the same format, so the bytes after the new URL line up with the bytes before it
+                    FormatOption fresh = resolved.getFormats().stream()
+                            .filter(option::isSameMedia)
+                            .findFirst()
+                            .orElse(null);
+
+                    if (fresh == null)
+                        throw new IOException(url + " no longer offers " + option);
+                    if (fresh.isLive())
+                        throw new IOException(url + " is now a live stream");
+
+                    return new RangedInputStream.Endpoint(fresh.getUri().toURL(), fresh.getHttpHeaders());
+                } catch (TrackDownloadException e) {
+                    throw new IOException("Problem re-resolving " + url, e);
+                }
             }
         };
     }
 
+    private static void closeQuietly(SeekableRangedChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    /**
+     * Finds when a media URL expires, from the signature parameters embedded in it.
+     * @param uri media URL.
+     * @return expiry time in milliseconds since the epoch, or null if the URL doesn't say.
+     */
+    private static Long getExpiry(URI uri) {
+        Map<String, String> parameters = new HashMap<>();
+
+        String query = uri.getRawQuery();
+        if (query != null) {
+            for (String pair : query.split("&")) {
+                int equals = pair.indexOf('=');
+                if (equals <= 0) continue;
+
+                parameters.put(
+                        URLDecoder.decode(pair.substring(0, equals), StandardCharsets.UTF_8).toLowerCase(),
+                        URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8)
+                );
+            }
+        }
+
+        // googlevideo manifests carry their parameters in the path: /expire/1600000000/...
+        String path = uri.getRawPath();
+        if (path != null) {
+            String[] segments = path.split("/");
+            for (int i = 0; i + 1 < segments.length; i++)
+                if (segments[i].equalsIgnoreCase("expire")) parameters.putIfAbsent("expire", segments[i + 1]);
+        }
+
+        Long expiry = null;
+
+        try {
+            // YouTube ("expire"), CloudFront and S3 query string auth ("Expires"): seconds since the epoch
+            for (String name : Arrays.asList("expire", "expires")) {
+                String value = parameters.get(name);
+                if (value == null) continue;
+
+                long seconds = Long.parseLong(value.trim());
+                expiry = expiry == null ? seconds * 1000L : Math.min(expiry, seconds * 1000L);
+            }
+
+            // S3 signature version 4: signing time plus a validity in seconds
+            String amzDate = parameters.get("x-amz-date");
+            String amzExpires = parameters.get("x-amz-expires");
+            if (amzDate != null && amzExpires != null) {
+                long expires = Instant.from(AMZ_DATE_FORMAT.parse(amzDate.trim())).toEpochMilli() +
+                        Long.parseLong(amzExpires.trim()) * 1000L;
+                expiry = expiry == null ? expires : Math.min(expiry, expires);
+            }
+        } catch (NumberFormatException | DateTimeException e) {
+            // Not what we think it is; fall back to the default lifetime
+            return null;
+        }
+
+        return expiry;
+    }
+
+    /**
+     * Reads the entries of a flat playlist document.
+     * @param reader reader positioned at the document.
+     * @param playlistUrl URL the document was extracted from.
+     * @return entries, or null if the document isn't a playlist.
+     */
+    private static List<Listing> readPlaylist(JsonReader reader, URL playlistUrl) throws IOException {
+        List<Listing> entries = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!reader.nextName().equals("entries") || reader.peek() != JsonToken.BEGIN_ARRAY) {
+                reader.skipValue();
+                continue;
+            }
+
+            entries = new ArrayList<>();
+
+            reader.beginArray();
+            while (reader.hasNext()) {
+                if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                    reader.skipValue();
+                    continue;
+                }
+
+                Listing entry = readPlaylistEntry(reader, playlistUrl);
+                if (entry != null) entries.add(entry);
+            }
+            reader.endArray();
+        }
+        reader.endObject();
+
+        return entries;
+    }
+
+    private static Listing readPlaylistEntry(JsonReader reader, URL playlistUrl) throws IOException {
+        String url = null, webpageUrl = null, id = null, extractor = null, title = null;
+        Double duration = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "url":
+                    url = Metadata.nextString(reader);
+                    break;
+                case "webpage_url":
+                    webpageUrl = Metadata.nextString(reader);
+                    break;
+                case "id":
+                    id = Metadata.nextString(reader);
+                    break;
+                case "ie_key":
+                    extractor = Metadata.nextString(reader);
+                    break;
+                case "title":
+                    title = Metadata.nextString(reader);
+                    break;
+                case "duration":
+                    duration = Metadata.nextDouble(reader);
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        String urlString = webpageUrl != null ? webpageUrl : url;
+
+        // youtube-dl lists YouTube entries by video ID alone
+        if (id != null && "youtube".equalsIgnoreCase(extractor) && (urlString == null || !urlString.contains("/")))
+            urlString = "https://www.youtube.com/watch?v=" + id;
+
+        if (urlString == null) return null;
+
+        URL entryUrl;
+        try {
+            entryUrl = new URL(playlistUrl, urlString);
+        } catch (MalformedURLException e) {
+            Logger.getGlobal().log(Level.FINE, "Skipping playlist entry " + urlString + " of " + playlistUrl, e);
+            return null;
+        }
+
+        return new Listing(
+                entryUrl,
+                title != null && title.length() > 0 ? title : null,
+                duration != null && duration > 0 ? duration : null
+        );
+    }
+
+    /**
+     * Builds a youtube-dl track source.  Anything left unset is left out: metadata isn't cached, every lookup runs
+     * youtube-dl, and downloads fetch one range at a time.
+     */
+    public static class Builder {
+        private final String executablePath;
+        private final int timeoutSeconds;
+        private MetadataCache metadataCache;
+        private long defaultTtlSeconds;
+        private YoutubeDLResolverPool resolverPool;
+        private FormatPolicy formatPolicy = new DefaultFormatPolicy();
+        private AudioFormat playbackFormat = new AudioFormat(48000, 2);
+        private FailureCache failureCache;
+        private RangedFetcher fetcher;
+        private long hedgeDelayMillis;
+        private int hlsSegmentsAhead;
+
+        /**
+         * Creates a new builder.
+         * @param executablePath path to the youtube-dl executable.
+         * @param timeoutSeconds seconds to wait for youtube-dl to resolve a URL.
+         */
+        public Builder(String executablePath, int timeoutSeconds) {
+            this.executablePath = executablePath;
+            this.timeoutSeconds = timeoutSeconds;
+        }
+
+        /**
+         * Sets the cache for resolved metadata.
+         * @param metadataCache cache for resolved metadata, or null to resolve every URL every time.
+         * @param defaultTtlSeconds seconds to cache metadata whose media URL doesn't state when it expires.
+         * @return Builder instance.
+         */
+        public Builder setMetadataCache(MetadataCache metadataCache, long defaultTtlSeconds) {
+            this.metadataCache = metadataCache;
+            this.defaultTtlSeconds = defaultTtlSeconds;
+            return this;
+        }
+
+        /**
+         * Sets the pool of resident resolvers.  Lookups are capped at the pool's worker count, whether or not the pool
+         * is available.
+         * @param resolverPool pool of resident resolvers to look URLs up on, or null to run youtube-dl for each lookup.
+         * @return Builder instance.
+         */
+        public Builder setResolverPool(YoutubeDLResolverPool resolverPool) {
+            this.resolverPool = resolverPool;
+            return this;
+        }
+
+        /**
+         * Sets the policy scoring the formats youtube-dl offers.
+         * @param formatPolicy format policy.
+         * @return Builder instance.
+         */
+        public Builder setFormatPolicy(FormatPolicy formatPolicy) {
+            this.formatPolicy = Objects.requireNonNull(formatPolicy);
+            return this;
+        }
+
+        /**
+         * Sets the format tracks are mixed in.  Tracks are found before a channel is known, so this is the format the
+         * channels' mixers are expected to run at.
+         * @param playbackFormat playback format.
+         * @return Builder instance.
+         */
+        public Builder setPlaybackFormat(AudioFormat playbackFormat) {
+            this.playbackFormat = playbackFormat;
+            return this;
+        }
+
+        /**
+         * Sets the cache of recent failures, refusing lookups that are bound to fail again.
+         * @param failureCache failure cache, or null to always run youtube-dl.
+         * @return Builder instance.
+         */
+        public Builder setFailureCache(FailureCache failureCache) {
+            this.failureCache = failureCache;
+            return this;
+        }
+
+        /**
+         * Sets the fetcher downloads fetch ranges ahead on.
+         * @param fetcher fetcher, or null to fetch one range at a time.
+         * @return Builder instance.
+         */
+        public Builder setFetcher(RangedFetcher fetcher) {
+            this.fetcher = fetcher;
+            return this;
+        }
+
+        /**
+         * Sets how long a format may take to start responding before the next-best format is opened alongside it.
+         * Hedging needs a fetcher.
+         * @param hedgeDelayMillis hedge delay, or 0 to never hedge.
+         * @return Builder instance.
+         */
+        public Builder setHedgeDelay(long hedgeDelayMillis) {
+            if (hedgeDelayMillis < 0L) throw new IllegalArgumentException("hedgeDelayMillis");
+            this.hedgeDelayMillis = hedgeDelayMillis;
+            return this;
+        }
+
+        /**
+         * Sets the number of HLS segments fetched at once.  Fetching HLS streams needs a fetcher.
+         * @param hlsSegmentsAhead segments fetched at once, or 0 to leave HLS streams to FFmpeg.
+         * @return Builder instance.
+         */
+        public Builder setHlsSegmentsAhead(int hlsSegmentsAhead) {
+            if (hlsSegmentsAhead < 0) throw new IllegalArgumentException("hlsSegmentsAhead");
+            this.hlsSegmentsAhead = hlsSegmentsAhead;
+            return this;
+        }
+
+        public YoutubeDLTrackSource build() {
+            return new YoutubeDLTrackSource(this);
+        }
+    }
+
     /**
-     * Represents a download option. These are obtained from youtube-dl and used to determine the best bitrate
-     * to efficiency ratio for quickly downloading tracks with youtube-dl with the least byte overhead.
+     * The fields of youtube-dl's JSON document that we use.  The document is read as a stream; everything else
+     * (thumbnails, subtitles, automatic captions and so on, often the bulk of it) is skipped without being built.
      */
-    private static class FormatOption {
+    private static class Metadata {
+        private String extractor;
+        private String webpageUrl;
+        private String fullTitle;
+        private String title;
+        private Double duration;
+        private boolean direct;
+        private String ext;
+        private final Map<String, String> httpHeaders = new HashMap<>();
+        private List<FormatOption> formats; // null if youtube-dl gave none
+
+        private static Metadata read(JsonReader reader) throws IOException {
+            Metadata metadata = new Metadata();
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "extractor":
+                        metadata.extractor = nextString(reader);
+                        break;
+                    case "webpage_url":
+                        metadata.webpageUrl = nextString(reader);
+                        break;
+                    case "fulltitle":
+                        metadata.fullTitle = nextString(reader);
+                        break;
+                    case "title":
+                        metadata.title = nextString(reader);
+                        break;
+                    case "duration":
+                        metadata.duration = nextDouble(reader);
+                        break;
+                    case "direct":
+                        metadata.direct = nextBoolean(reader);
+                        break;
+                    case "ext":
+                        metadata.ext = nextString(reader);
+                        break;
+                    case "http_headers":
+                        readHeaders(reader, metadata.httpHeaders);
+                        break;
+                    case "formats":
+                        metadata.formats = readFormats(reader);
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+
+            return metadata;
+        }
+
+        private static List<FormatOption> readFormats(JsonReader reader) throws IOException {
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+                return null;
+            }
+
+            List<FormatOption> formats = new ArrayList<>();
+
+            reader.beginArray();
+            while (reader.hasNext()) {
+                if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                    reader.skipValue();
+                    continue;
+                }
+
+                FormatOption format = readFormat(reader);
+                if (format != null) formats.add(format);
+            }
+            reader.endArray();
+
+            return formats;
+        }
+
+        private static FormatOption readFormat(JsonReader reader) throws IOException {
+            String downloadUrl = null, format = null, protocol = null, note = null, audioCodec = null,
+                    videoCodec = null;
+            Double preference = null, filesize = null, audioBitrate = null, videoBitrate = null, chunkSize = null,
+                    sampleRate = null, channels = null;
+            Map<String, String> httpHeaders = new HashMap<>();
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "url":
+                        downloadUrl = nextString(reader);
+                        break;
+                    case "ext":
+                        format = nextString(reader);
+                        break;
+                    case "protocol":
+                        protocol = nextString(reader);
+                        break;
+                    case "format_note":
+                        note = nextString(reader);
+                        break;
+                    case "acodec":
+                        audioCodec = nextString(reader);
+                        break;
+                    case "vcodec":
+                        videoCodec = nextString(reader);
+                        break;
+                    case "preference":
+                        preference = nextDouble(reader);
+                        break;
+                    case "filesize":
+                        filesize = nextDouble(reader);
+                        break;
+                    case "abr":
+                        audioBitrate = nextDouble(reader);
+                        break;
+                    case "vbr":
+                        videoBitrate = nextDouble(reader);
+                        break;
+                    case "asr":
+                        sampleRate = nextDouble(reader);
+                        break;
+                    case "audio_channels":
+                        channels = nextDouble(reader);
+                        break;
+                    case "downloader_options":
+                        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                            reader.skipValue();
+                            break;
+                        }
+
+                        reader.beginObject();
+                        while (reader.hasNext()) {
+                            if (reader.nextName().equals("http_chunk_size"))
+                                chunkSize = nextDouble(reader);
+                            else
+                                reader.skipValue();
+                        }
+                        reader.endObject();
+                        break;
+                    case "http_headers":
+                        readHeaders(reader, httpHeaders);
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+
+            if (downloadUrl == null) return null;
+
+            URI downloadUri = URI.create(downloadUrl);
+            try {
+                downloadUri.toURL();
+            } catch (MalformedURLException e) {
+                Logger.getGlobal().log(Level.WARNING, "Problem parsing URL " + downloadUrl, e);
+                return null;
+            }
+
+            if (protocol != null) protocol = protocol.trim().toLowerCase();
+
+            FormatOption formatOption = new FormatOption(
+                    preference != null ? preference.intValue() : Integer.MAX_VALUE,
+                    protocol != null && live_protocols.contains(protocol),
+                    downloadUri,
+                    filesize != null ? filesize.longValue() : 0,
+                    audioBitrate != null ? audioBitrate : 0D,
+                    videoBitrate != null ? videoBitrate : 0D,
+                    format != null ? format.trim().toLowerCase() : null,
+                    note != null ? note.trim() : null,
+                    audioCodec != null ? audioCodec.trim() : null,
+                    videoCodec != null ? videoCodec.trim() : null,
+                    sampleRate != null ? sampleRate.intValue() : 0,
+                    channels != null ? channels.intValue() : 0,
+                    chunkSize != null ? chunkSize.intValue() : DEFAULT_BUFFER_SIZE,
+                    chunkSize != null ? chunkSize.intValue() : 0
+            );
+
+            formatOption.getHttpHeaders().putAll(httpHeaders);
+            return formatOption;
+        }
+
+        private static void readHeaders(JsonReader reader, Map<String, String> headers) throws IOException {
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                reader.skipValue();
+                return;
+            }
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                String value = nextString(reader);
+                if (value != null) headers.put(name, value);
+            }
+            reader.endObject();
+        }
+
+        private static String nextString(JsonReader reader) throws IOException {
+            switch (reader.peek()) {
+                case STRING:
+                case NUMBER:
+                    return reader.nextString();
+                case BOOLEAN:
+                    return Boolean.toString(reader.nextBoolean());
+                default:
+                    reader.skipValue();
+                    return null;
+            }
+        }
+
+        private static Double nextDouble(JsonReader reader) throws IOException {
+            switch (reader.peek()) {
+                case NUMBER:
+                    return reader.nextDouble();
+                case STRING:
+                    try {
+                        return Double.parseDouble(reader.nextString());
+                    } catch (NumberFormatException e) {
+                        return null;
+                    }
+                default:
+                    reader.skipValue();
+                    return null;
+            }
+        }
+
+        private static boolean nextBoolean(JsonReader reader) throws IOException {
+            if (reader.peek() == JsonToken.BOOLEAN)
+                return reader.nextBoolean();
+
+            reader.skipValue();
+            return false;
+        }
+    }
+
+    /**
+     * Metadata resolved for a URL: what the track is, and every format it can be fetched in.
+     */
+    private static class Resolution {
+        private final URL url;
+        private final String title;
+        private final Double duration;
+        private final String extractor;
+        private final List<FormatOption> formats;
+
+        private Resolution(URL url, String title, Double duration, String extractor, List<FormatOption> formats) {
+            this.url = url;
+            this.title = title;
+            this.duration = duration;
+            this.extractor = extractor;
+            this.formats = formats;
+        }
+
+        public URL getUrl() {
+            return url;
+        }
+
+        public String getTitle() {
+            return title;
+        }
+
+        public Double getDuration() {
+            return duration;
+        }
+
+        public String getExtractor() {
+            return extractor;
+        }
+
+        /**
+         * Gets every format offered, in the order youtube-dl listed them.
+         * @return offered formats.
+         */
+        public List<FormatOption> getFormats() {
+            return formats;
+        }
+
+        /**
+         * Finds if media URLs expiring at the given time are good for playing this track from start to end.
+         */
+        public boolean isValidUntil(long expires) {
+            long needed = EXPIRY_MARGIN_MILLIS + (duration != null ? (long) (duration * 1000D) : 0L);
+            return expires - System.currentTimeMillis() >= needed;
+        }
+
+        public JsonObject toJson() {
+            JsonObject object = new JsonObject();
+            object.addProperty("url", url.toExternalForm());
+            object.addProperty("title", title);
+            if (duration != null) object.addProperty("duration", duration);
+            object.addProperty("extractor", extractor);
+
+            JsonArray formats = new JsonArray();
+            this.formats.forEach(format -> formats.add(format.toJson()));
+            object.add("formats", formats);
+
+            return object;
+        }
+
+        public static Resolution fromJson(JsonObject object) {
+            try {
+                return new Resolution(
+                        new URL(object.get("url").getAsString()),
+                        object.get("title").getAsString(),
+                        object.has("duration") ? object.get("duration").getAsDouble() : null,
+                        object.get("extractor").getAsString(),
+                        StreamSupport.stream(object.getAsJsonArray("formats").spliterator(), false)
+                                .map(format -> FormatOption.fromJson(format.getAsJsonObject()))
+                                .collect(Collectors.toList())
+                );
+            } catch (MalformedURLException e) {
+                throw new IllegalArgumentException(e);
+            }
+        }
+    }
+
+    /**
+     * The format selected to play a track, and the next-best formats that can stand in for it.
+     */
+    private static class Selection {
+        private final FormatOption format;
+        private final List<FormatOption> alternatives;
+
+        private Selection(FormatOption format, List<FormatOption> alternatives) {
+            this.format = format;
+            this.alternatives = alternatives;
+        }
+
+        public FormatOption getFormat() {
+            return format;
+        }
+
+        /**
+         * Gets the next-best formats, which can stand in for the selected one.
+         * @return alternative formats, best first.
+         */
+        public List<FormatOption> getAlternatives() {
+            return alternatives;
+        }
+    }
+
+    /**
+     * A format youtube-dl offers a track in.
+     */
+    public static class FormatOption {
         private final int preference;
         private final boolean live;
         private final double audio_bitrate;
@@ -353,13 +1350,15 @@ public class YoutubeDLTrackSource implements TrackSource {
         private final double video_efficiency;
         private final URI uri;
         private final String format,note,audioCodec,videoCodec;
+        private final int sampleRate, channels;
         private final int bufferSize;
+        private final int chunkLimit;
         private final Map<String, String> httpHeaders = new HashMap<>();
 
         FormatOption(int preference, boolean live, URI uri, long filesize, double audio_bitrate, double video_bitrate,
                      String format, String note, String audioCodec,
-                     String videoCodec,
-                     int bufferSize) {
+                     String videoCodec, int sampleRate, int channels,
+                     int bufferSize, int chunkLimit) {
             this.preference = preference;
             this.live = live;
             this.audio_bitrate = audio_bitrate;
@@ -369,7 +1368,10 @@ public class YoutubeDLTrackSource implements TrackSource {
             this.format = format;
             this.audioCodec = audioCodec;
             this.videoCodec = videoCodec;
+            this.sampleRate = sampleRate;
+            this.channels = channels;
             this.bufferSize = bufferSize;
+            this.chunkLimit = chunkLimit;
     
             if (filesize <= 0) {
                 this.audio_efficiency = this.video_efficiency = 0;
@@ -412,12 +1414,33 @@ public class YoutubeDLTrackSource implements TrackSource {
         public String getVideoCodec() {
             return videoCodec;
         }
+        /**
+         * Gets the sample rate of the audio.
+         * @return sample rate in Hz, or 0 if unknown.
+         */
+        public int getSampleRate() {
+            return sampleRate;
+        }
+        /**
+         * Gets the number of audio channels.
+         * @return channel count, or 0 if unknown.
+         */
+        public int getChannels() {
+            return channels;
+        }
         public Map<String, String> getHttpHeaders() {
             return httpHeaders;
         }
         public int getBufferSize() {
             return bufferSize;
         }
+        /**
+         * Gets the largest range the server hands out at full speed (youtube-dl's http_chunk_size).
+         * @return range size in bytes, or 0 if the server doesn't say.
+         */
+        public int getChunkLimit() {
+            return chunkLimit;
+        }
     
         public boolean isLive() {
             return live;
@@ -426,5 +1449,75 @@ public class YoutubeDLTrackSource implements TrackSource {
         public int getPreference() {
             return preference;
         }
+
+        /**
+         * Finds if another format is this same format, as offered by a later lookup of the same track.  Media URLs
+         * change between lookups, so formats are compared by what they contain.
+         * @param other format to compare to.
+         * @return true if both formats hold the same bytes.
+         */
+        public boolean isSameMedia(FormatOption other) {
+            return live == other.live && filesize == other.filesize &&
+                    Objects.equals(format, other.format) && Objects.equals(note, other.note) &&
+                    Objects.equals(audioCodec, other.audioCodec) && Objects.equals(videoCodec, other.videoCodec);
+        }
+
+        @Override
+        public String toString() {
+            return (format != null ? format : "?") + " " +
+                    (audioCodec != null ? audioCodec : "?") + "/" + (videoCodec != null ? videoCodec : "?") +
+                    (sampleRate > 0 ? " " + sampleRate + "Hz" : "") +
+                    (audio_bitrate > 0 ? String.format(" %.0fkbps", audio_bitrate) : "") +
+                    (note != null ? " (" + note + ")" : "");
+        }
+
+        public JsonObject toJson() {
+            JsonObject object = new JsonObject();
+            object.addProperty("preference", preference);
+            object.addProperty("live", live);
+            object.addProperty("url", uri.toString());
+            object.addProperty("filesize", filesize);
+            object.addProperty("abr", audio_bitrate);
+            object.addProperty("vbr", video_bitrate);
+            if (format != null) object.addProperty("ext", format);
+            if (note != null) object.addProperty("format_note", note);
+            if (audioCodec != null) object.addProperty("acodec", audioCodec);
+            if (videoCodec != null) object.addProperty("vcodec", videoCodec);
+            if (sampleRate > 0) object.addProperty("asr", sampleRate);
+            if (channels > 0) object.addProperty("audio_channels", channels);
+            object.addProperty("buffer_size", bufferSize);
+            if (chunkLimit > 0) object.addProperty("http_chunk_size", chunkLimit);
+
+            JsonObject headers = new JsonObject();
+            httpHeaders.forEach(headers::addProperty);
+            object.add("http_headers", headers);
+
+            return object;
+        }
+
+        public static FormatOption fromJson(JsonObject object) {
+            FormatOption option = new FormatOption(
+                    object.get("preference").getAsInt(),
+                    object.get("live").getAsBoolean(),
+                    URI.create(object.get("url").getAsString()),
+                    object.get("filesize").getAsLong(),
+                    object.get("abr").getAsDouble(),
+                    object.get("vbr").getAsDouble(),
+                    object.has("ext") ? object.get("ext").getAsString() : null,
+                    object.has("format_note") ? object.get("format_note").getAsString() : null,
+                    object.has("acodec") ? object.get("acodec").getAsString() : null,
+                    object.has("vcodec") ? object.get("vcodec").getAsString() : null,
+                    object.has("asr") ? object.get("asr").getAsInt() : 0,
+                    object.has("audio_channels") ? object.get("audio_channels").getAsInt() : 0,
+                    object.get("buffer_size").getAsInt(),
+                    object.has("http_chunk_size") ? object.get("http_chunk_size").getAsInt() : 0
+            );
+
+            if (object.has("http_headers"))
+                object.getAsJsonObject("http_headers").entrySet()
+                        .forEach(y -> option.getHttpHeaders().put(y.getKey(), y.getValue().getAsString()));
+
+            return option;
+        }
     }
 }
@@ -0,0 +1,159 @@
+package io.manebot.plugin.music.util;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Reduces the many URLs that name the same content to one canonical URL, so a track can be recognized however it was
+ * linked: <b>youtu.be/X</b>, <b>m.youtube.com/watch?v=X&amp;t=30</b> and <b>http://www.youtube.com/watch?v=X</b>
+ * all become <b>https://www.youtube.com/watch?v=X</b>.
+ *
+ * Each site with its own URL scheme has a normalizer; anything else only loses its fragment, default port, trailing
+ * slashes and common tracking parameters.
+ */
+public final class UrlCanonicalizer {
+    private static final Set<String> TRACKING_PARAMETERS = new HashSet<>(Arrays.asList(
+            "fbclid", "gclid", "si", "feature", "ref", "ref_src"
+    ));
+
+    private static final Pattern YOUTUBE_ID = Pattern.compile("^[A-Za-z0-9_-]{11}$");
+    private static final Pattern YOUTUBE_PATH = Pattern.compile("^/(?:embed|v|shorts|live|e)/([A-Za-z0-9_-]{11})");
+    private static final Pattern VIMEO_PATH = Pattern.compile("^/(?:video/)?([0-9]+)(?:/|$)");
+
+    private static final List<Normalizer> normalizers = Arrays.asList(
+            UrlCanonicalizer::normalizeYoutube,
+            UrlCanonicalizer::normalizeSoundcloud,
+            UrlCanonicalizer::normalizeVimeo
+    );
+
+    private UrlCanonicalizer() {
+
+    }
+
+    /**
+     * Finds the canonical URL of some content.
+     * @param url URL to canonicalize.
+     * @return canonical URL.
+     */
+    public static URL canonicalize(URL url) {
+        String host = url.getHost().toLowerCase(Locale.ROOT);
+
+        for (Normalizer normalizer : normalizers) {
+            try {
+                URL normalized = normalizer.normalize(url, host);
+                if (normalized != null) return normalized;
+            } catch (MalformedURLException e) {
+                // not one of ours after all
+            }
+        }
+
+        try {
+            return normalizeGeneric(url, host);
+        } catch (MalformedURLException e) {
+            return url;
+        }
+    }
+
+    /**
+     * Gets the key content is recognized by.  Like the canonical URL, but with no scheme, so the http and https
+     * forms of a URL share a key.
+     * @param url URL to get the key of.
+     * @return canonical key.
+     */
+    public static String getKey(URL url) {
+        URL canonical = canonicalize(url);
+        return "//" + canonical.getAuthority() + canonical.getFile();
+    }
+
+    private static URL normalizeYoutube(URL url, String host) throws MalformedURLException {
+        String id = null;
+
+        if (host.equals("youtu.be")) {
+            String path = url.getPath().replaceAll("^/+", "").replaceAll("/+$", "");
+            if (YOUTUBE_ID.matcher(path).matches()) id = path;
+        } else if (host.equals("youtube.com") || host.endsWith(".youtube.com") ||
+                host.equals("youtube-nocookie.com") || host.endsWith(".youtube-nocookie.com")) {
+            Matcher matcher = YOUTUBE_PATH.matcher(url.getPath());
+
+            if (matcher.find())
+                id = matcher.group(1);
+            else if (url.getPath().equals("/watch"))
+                id = getParameters(url.getQuery()).get("v");
+        } else {
+            return null;
+        }
+
+        if (id == null || !YOUTUBE_ID.matcher(id).matches()) return null;
+
+        return new URL("https://www.youtube.com/watch?v=" + id);
+    }
+
+    private static URL normalizeSoundcloud(URL url, String host) throws MalformedURLException {
+        // Only the site itself; other hosts (such as on.soundcloud.com short links) have case-sensitive paths of their own
+        if (!host.equals("soundcloud.com") && !host.equals("www.soundcloud.com") && !host.equals("m.soundcloud.com"))
+            return null;
+
+        // Tracks are named by their path; the query only ever carries sharing and tracking noise
+        return new URL("https://soundcloud.com" + trimTrailingSlashes(url.getPath()).toLowerCase(Locale.ROOT));
+    }
+
+    private static URL normalizeVimeo(URL url, String host) throws MalformedURLException {
+        if (!host.equals("vimeo.com") && !host.endsWith(".vimeo.com")) return null;
+
+        Matcher matcher = VIMEO_PATH.matcher(url.getPath());
+        if (!matcher.find()) return null;
+
+        return new URL("https://vimeo.com/" + matcher.group(1));
+    }
+
+    private static URL normalizeGeneric(URL url, String host) throws MalformedURLException {
+        String scheme = url.getProtocol().toLowerCase(Locale.ROOT);
+        int port = url.getPort() == url.getDefaultPort() ? -1 : url.getPort();
+
+        StringBuilder query = new StringBuilder();
+        if (url.getQuery() != null) {
+            for (String parameter : url.getQuery().split("&")) {
+                if (parameter.isEmpty()) continue;
+
+                String name = parameter.split("=", 2)[0].toLowerCase(Locale.ROOT);
+                if (name.startsWith("utm_") || TRACKING_PARAMETERS.contains(name)) continue;
+
+                query.append(query.length() > 0 ? "&" : "?").append(parameter);
+            }
+        }
+
+        String path = trimTrailingSlashes(url.getPath());
+
+        return new URL(scheme, host, port, (path.isEmpty() ? "/" : path) + query);
+    }
+
+    private static Map<String, String> getParameters(String query) {
+        Map<String, String> parameters = new LinkedHashMap<>();
+        if (query == null) return parameters;
+
+        for (String parameter : query.split("&")) {
+            String[] pair = parameter.split("=", 2);
+            parameters.putIfAbsent(pair[0], pair.length > 1 ? pair[1] : "");
+        }
+
+        return parameters;
+    }
+
+    private static String trimTrailingSlashes(String path) {
+        while (path.endsWith("/")) path = path.substring(0, path.length() - 1);
+        return path;
+    }
+
+    private interface Normalizer {
+        /**
+         * Normalizes a URL on a site this normalizer knows.
+         * @param url URL to normalize.
+         * @param host lowercase host of the URL.
+         * @return normalized URL, or null if the URL isn't on a site this normalizer knows.
+         */
+        URL normalize(URL url, String host) throws MalformedURLException;
+    }
+}
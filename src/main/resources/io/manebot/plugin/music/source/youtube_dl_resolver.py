@@ -0,0 +1,58 @@
+# Resident youtube-dl resolver used by YoutubeDLResolverPool.
+#
+# Reads one JSON request per line from stdin and writes one JSON response per line to stdout:
+#   {"id": 1, "url": "..."}  ->  {"id": 1, "ok": true, "info": {...}}  (the same document as "youtube-dl -j")
+#                            ->  {"id": 1, "ok": false, "error": "..."}
+#   {"id": 2, "ping": true}  ->  {"id": 2, "ok": true}
+# A {"ready": true} line is written once youtube-dl has been imported.
+
+import json
+import sys
+
+try:
+    import youtube_dl
+except ImportError:
+    import yt_dlp as youtube_dl
+
+# youtube-dl prints to stdout in places; keep the protocol stream to ourselves
+protocol = sys.stdout
+sys.stdout = sys.stderr
+
+
+def respond(message):
+    protocol.write(json.dumps(message, default=str) + "\n")
+    protocol.flush()
+
+
+def resolve(url):
+    options = {
+        "quiet": True,
+        "no_warnings": True,
+        "simulate": True,
+        "skip_download": True,
+        "noplaylist": True,
+        "source_address": "0.0.0.0",  # force IPv4, as -4 does; YouTube is very strict about IPv6
+    }
+
+    with youtube_dl.YoutubeDL(options) as ydl:
+        return ydl.extract_info(url, download=False)
+
+
+respond({"ready": True})
+
+for line in sys.stdin:
+    line = line.strip()
+    if not line:
+        continue
+
+    request = json.loads(line)
+    request_id = request.get("id")
+
+    if request.get("ping"):
+        respond({"id": request_id, "ok": True})
+        continue
+
+    try:
+        respond({"id": request_id, "ok": True, "info": resolve(request["url"])})
+    except Exception as e:
+        respond({"id": request_id, "ok": False, "error": str(e)})